@@ -0,0 +1,31 @@
+package org.mayconbordin.oauth2.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the benchmarks with the JMH command line, writing the results as JSON
+ * to {@value #DEFAULT_RESULT_FILE} unless another format or file is given.
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class BenchmarkRunner {
+    public static final String DEFAULT_RESULT_FILE = "target/jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+
+        if (!options.contains("-rf")) {
+            options.add("-rf");
+            options.add("json");
+        }
+        if (!options.contains("-rff")) {
+            options.add("-rff");
+            options.add(DEFAULT_RESULT_FILE);
+        }
+
+        Main.main(options.toArray(new String[options.size()]));
+    }
+}
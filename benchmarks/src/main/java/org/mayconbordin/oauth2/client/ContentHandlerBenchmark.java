@@ -0,0 +1,85 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of token responses in each content type, with a number of extra
+ * fields besides the ones of the token.
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentHandlerBenchmark {
+    @Param({"0", "16", "256"})
+    public int extraFields;
+
+    private String json;
+    private byte[] jsonBytes;
+    private String urlEncoded;
+    private String xml;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder jsonBuilder = new StringBuilder("{\"access_token\":\"uP6WPncIMox6baxNjxihw8aUeObS3WTjSnPQ0efu\","
+                + "\"token_type\":\"Bearer\",\"expires_in\":3600,\"refresh_token\":\"5XA1GXSgeynoN4T9AnWkaqPUUq0hDFK5ndhTNZqP\"");
+        StringBuilder urlBuilder = new StringBuilder("access_token=uP6WPncIMox6baxNjxihw8aUeObS3WTjSnPQ0efu"
+                + "&token_type=Bearer&expires_in=3600&refresh_token=5XA1GXSgeynoN4T9AnWkaqPUUq0hDFK5ndhTNZqP");
+        StringBuilder xmlBuilder = new StringBuilder("<?xml version=\"1.0\"?><response>"
+                + "<access_token>uP6WPncIMox6baxNjxihw8aUeObS3WTjSnPQ0efu</access_token><token_type>Bearer</token_type>"
+                + "<expires_in>3600</expires_in><refresh_token>5XA1GXSgeynoN4T9AnWkaqPUUq0hDFK5ndhTNZqP</refresh_token>");
+
+        for (int i = 0; i < extraFields; i++) {
+            String value = "value of the extra field " + i;
+
+            jsonBuilder.append(",\"field").append(i).append("\":\"").append(value).append('"');
+            urlBuilder.append("&field").append(i).append('=').append(URLEncoder.encode(value, "UTF-8"));
+            xmlBuilder.append("<field").append(i).append('>').append(value).append("</field").append(i).append('>');
+        }
+
+        json = jsonBuilder.append('}').toString();
+        jsonBytes = json.getBytes(StandardCharsets.UTF_8);
+        urlEncoded = urlBuilder.toString();
+        xml = xmlBuilder.append("</response>").toString();
+    }
+
+    @Benchmark
+    public Map<String, Object> handleJsonResponse() throws ParseErrorException {
+        return ContentHandler.handleJsonResponse(json);
+    }
+
+    @Benchmark
+    public AccessToken parseJsonToken() throws ParseErrorException, IOException {
+        return AccessTokenParser.parse(new ByteArrayInputStream(jsonBytes));
+    }
+
+    @Benchmark
+    public Map<String, Object> handleURLEncodedResponse() {
+        return ContentHandler.handleURLEncodedResponse(urlEncoded);
+    }
+
+    @Benchmark
+    public Map<String, Object> handleXmlResponse() throws ParseErrorException {
+        return ContentHandler.handleXmlResponse(xml);
+    }
+}
@@ -0,0 +1,53 @@
+package org.mayconbordin.oauth2.client;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the pooled JSON parsers of {@link ContentHandler}, on a single
+ * thread and with as many threads as processors contending for the pool, against
+ * a new parser per response. Divide the throughput of the contended benchmarks
+ * by the number of threads to compare it with the single-threaded one.
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonParserPoolBenchmark {
+    private final String json = "{\"access_token\":\"uP6WPncIMox6baxNjxihw8aUeObS3WTjSnPQ0efu\","
+            + "\"token_type\":\"Bearer\",\"expires_in\":3600,\"refresh_token\":\"5XA1GXSgeynoN4T9AnWkaqPUUq0hDFK5ndhTNZqP\"}";
+
+    @Benchmark
+    @Threads(1)
+    public Map<String, Object> pooledSingleThread() throws ParseErrorException {
+        return ContentHandler.handleJsonResponse(json);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Map<String, Object> pooledContended() throws ParseErrorException {
+        return ContentHandler.handleJsonResponse(json);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object newParserContended() throws ParseException {
+        return new JSONParser().parse(json);
+    }
+}
@@ -0,0 +1,73 @@
+package org.mayconbordin.oauth2.client;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building of the token request for each grant type, from scratch and from
+ * its compiled template, and encoding of the client credentials for basic
+ * authentication.
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestBuilderBenchmark {
+    @Param({OAuth2Constants.GRANT_CLIENT_CREDENTIALS, OAuth2Constants.GRANT_PASSWORD, OAuth2Constants.GRANT_REFRESH_TOKEN})
+    public String grantType;
+
+    private OAuth2Config config;
+    private AccessToken token;
+    private TokenRequestTemplate template;
+
+    @Setup
+    public void setUp() {
+        config = new OAuth2Config.Builder("client1id", "client1secret", "http://localhost/api/oauth/access_token")
+                .grantType(grantType)
+                .credentials("oauth_user", "oauth_user_password")
+                .scope("read write")
+                .build();
+
+        token = OAuth2Constants.GRANT_REFRESH_TOKEN.equals(grantType)
+                ? new AccessToken(3600, "Bearer", "5XA1GXSgeynoN4T9AnWkaqPUUq0hDFK5ndhTNZqP", "uP6WPncIMox6baxNjxihw8aUeObS3WTjSnPQ0efu")
+                : null;
+
+        template = TokenRequestTemplate.compile(config, ClientAuthScheme.BASIC_CLIENT);
+    }
+
+    @Benchmark
+    public HttpUriRequest build() {
+        return new OAuth2RequestBuilder(HttpPost.METHOD_NAME, config, token).build();
+    }
+
+    @Benchmark
+    public HttpUriRequest buildWithBasicAuthentication() {
+        return ClientAuthScheme.BASIC_CLIENT.apply(new OAuth2RequestBuilder(HttpPost.METHOD_NAME, config, token), config).build();
+    }
+
+    @Benchmark
+    public HttpUriRequest buildFromTemplate() {
+        return template.build(token);
+    }
+
+    @Benchmark
+    public String encodeCredentials() {
+        return OAuth2RequestBuilder.encodeCredentials(config.getClientId(), config.getClientSecret());
+    }
+}
@@ -0,0 +1,131 @@
+package org.mayconbordin.oauth2.client;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to fetch a batch of protected resources from a slow local server, with
+ * the asynchronous HTTP client, with blocking requests on a pool of platform
+ * threads, and with blocking requests on virtual threads.
+ *
+ * <p>The virtual mode needs Java 21, on older JVMs run the others only with
+ * {@code -p mode=async,platform}.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResourceFanOutBenchmark {
+    private static final int PLATFORM_THREADS = 32;
+    private static final byte[] RESPONSE = "{\"username\":\"oauth_user\",\"email\":\"oauth_user@test.org\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Param({"async", "platform", "virtual"})
+    public String mode;
+
+    @Param({"256"})
+    public int resources;
+
+    @Param({"20"})
+    public int latency;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private ExecutorService platformExecutor;
+    private OAuth2Client client;
+    private List<String> urls;
+
+    @Setup
+    public void setUp() throws IOException, OAuth2Exception {
+        serverExecutor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        server.setExecutor(serverExecutor);
+        server.createContext("/api/user_info", exchange -> {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(RESPONSE);
+            }
+        });
+        server.start();
+
+        String url = "http://localhost:" + server.getAddress().getPort() + "/api/user_info";
+        urls = new ArrayList<>();
+        for (int i = 0; i < resources; i++) {
+            urls.add(url);
+        }
+
+        OAuth2Config.Builder builder = new OAuth2Config.Builder("client1id", "client1secret", "http://localhost/api/oauth/access_token")
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .maxConnections(resources, resources)
+                .maxConcurrentResources(resources)
+                .tokenStore(new TokenStore() {
+                    @Override
+                    public AccessToken load(OAuth2Config config) {
+                        return new AccessToken(3600, "Bearer", null, "token");
+                    }
+
+                    @Override
+                    public void save(OAuth2Config config, AccessToken token) {}
+
+                    @Override
+                    public void remove(OAuth2Config config) {}
+                });
+
+        if ("platform".equals(mode)) {
+            platformExecutor = Executors.newFixedThreadPool(PLATFORM_THREADS);
+            builder.executor(platformExecutor);
+        } else if ("virtual".equals(mode)) {
+            builder.virtualThreads();
+        }
+
+        client = OAuth2Client.withConfig(builder.build());
+        client.getAccessToken();
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+
+        if (platformExecutor != null) {
+            platformExecutor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public List<ResourceResult> getResources() throws InterruptedException, ExecutionException {
+        return client.getResources(urls).getResults().get();
+    }
+}
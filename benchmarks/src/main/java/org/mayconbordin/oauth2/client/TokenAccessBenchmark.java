@@ -0,0 +1,88 @@
+package org.mayconbordin.oauth2.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contention of many threads reading the token of a single client, and the
+ * tokens of many configurations from a registry.
+ *
+ * <p>The tokens are served by an in-memory {@link TokenStore}, so no request is
+ * made to a token endpoint.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class TokenAccessBenchmark {
+    private static final int TENANTS = 1000;
+
+    private OAuth2Client client;
+    private TokenRegistry registry;
+    private OAuth2Config[] tenants;
+
+    @Setup
+    public void setUp() throws OAuth2Exception {
+        TokenStore store = new TokenStore() {
+            @Override
+            public AccessToken load(OAuth2Config config) {
+                return new AccessToken(3600, "Bearer", null, "token-" + config.getScope());
+            }
+
+            @Override
+            public void save(OAuth2Config config, AccessToken token) {}
+
+            @Override
+            public void remove(OAuth2Config config) {}
+        };
+
+        tenants = new OAuth2Config[TENANTS];
+        for (int i = 0; i < TENANTS; i++) {
+            tenants[i] = new OAuth2Config.Builder("client1id", "client1secret", "http://localhost/api/oauth/access_token")
+                    .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                    .scope("tenant" + i)
+                    .tokenStore(store)
+                    .build();
+        }
+
+        client = OAuth2Client.withConfig(tenants[0]);
+        client.getAccessToken();
+
+        registry = new TokenRegistry();
+        for (OAuth2Config tenant : tenants) {
+            registry.getAccessToken(tenant);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+    }
+
+    @Benchmark
+    public AccessToken clientGetAccessToken() throws OAuth2Exception {
+        return client.getAccessToken();
+    }
+
+    @Benchmark
+    public AccessToken registryGetAccessToken() throws OAuth2Exception {
+        return registry.getAccessToken(tenants[ThreadLocalRandom.current().nextInt(TENANTS)]);
+    }
+}
@@ -1,6 +1,17 @@
 package org.mayconbordin.oauth2.client;
 
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
 import static org.mayconbordin.oauth2.client.OAuth2Constants.*;
 
 /**
@@ -9,20 +20,32 @@ import static org.mayconbordin.oauth2.client.OAuth2Constants.*;
  * @author Maycon Bordin <mayconbordin@gmail.com>
  */
 public class AccessToken {
+    /**
+     * Value of {@link #getExpiresAt()} for a token whose lifetime is unknown,
+     * because the server sent no {@code expires_in} and it is not a JWT with an
+     * {@code exp} claim. Such a token never expires on its own.
+     */
+    public static final long NO_EXPIRATION = Long.MAX_VALUE;
+
     private final long expiresIn;
     private final long expiresAt;
+    private final long receivedAt;
     private final String tokenType;
     private final String refreshToken;
     private final String accessToken;
+    private final String scope;
+    private final JwtClaims claims;
+    private volatile Set<String> scopes;
+    private HttpTransport transport;
     
     /**
      * Create an access token from a map.
      * @param map Required keys: {@link #EXPIRES_IN}, {@link #TOKEN_TYPE}, {@link #ACCESS_TOKEN}.
-     *            Optional keys: {@link #REFRESH_TOKEN}.
+     *            Optional keys: {@link #REFRESH_TOKEN}, {@link #SCOPE}.
      */
     public AccessToken(Map<String, Object> map) {
-        this((Long) map.get(EXPIRES_IN), (String) map.get(TOKEN_TYPE),
-             (String) map.get(REFRESH_TOKEN), (String) map.get(ACCESS_TOKEN));
+        this(parseExpiresIn(map.get(EXPIRES_IN)), (String) map.get(TOKEN_TYPE),
+             (String) map.get(REFRESH_TOKEN), (String) map.get(ACCESS_TOKEN), parseScope(map.get(SCOPE)));
     }
 
     /**
@@ -34,19 +57,119 @@ public class AccessToken {
      * @param accessToken The access token value.
      */
     public AccessToken(long expiresIn, String tokenType, String refreshToken, String accessToken) {
+        this(expiresIn, tokenType, refreshToken, accessToken, null);
+    }
+
+    /**
+     * Create an access token.
+     * 
+     * @param expiresIn The life expectancy of the token in seconds.
+     * @param tokenType The type of token.
+     * @param refreshToken The refresh token value.
+     * @param accessToken The access token value.
+     * @param scope The scope granted, if the server sent it.
+     */
+    public AccessToken(long expiresIn, String tokenType, String refreshToken, String accessToken, String scope) {
+        this(expiresIn, (expiresIn * 1000) + System.currentTimeMillis(), tokenType, refreshToken, accessToken, scope, null);
+    }
+
+    /**
+     * Create an access token from a token response.
+     * 
+     * @param expiresIn The life expectancy of the token in seconds, or null if the
+     *                  server did not send it, in which case the token has no
+     *                  known lifetime, see {@link #NO_EXPIRATION}.
+     * @param tokenType The type of token.
+     * @param refreshToken The refresh token value.
+     * @param accessToken The access token value.
+     * @param scope The scope granted, if the server sent it.
+     */
+    AccessToken(Long expiresIn, String tokenType, String refreshToken, String accessToken, String scope) {
+        this((expiresIn != null) ? expiresIn : 0,
+             (expiresIn != null) ? (expiresIn * 1000) + System.currentTimeMillis() : NO_EXPIRATION,
+             tokenType, refreshToken, accessToken, scope, null);
+    }
+    
+    AccessToken(long expiresIn, long expiresAt, String tokenType, String refreshToken,
+            String accessToken, HttpTransport transport) {
+        this(expiresIn, expiresAt, tokenType, refreshToken, accessToken, null, transport);
+    }
+    
+    AccessToken(long expiresIn, long expiresAt, String tokenType, String refreshToken,
+            String accessToken, String scope, HttpTransport transport) {
+        this(expiresIn, expiresAt, (expiresIn > 0 && expiresAt != NO_EXPIRATION) ? expiresAt - expiresIn * 1000 : System.currentTimeMillis(),
+             tokenType, refreshToken, accessToken, scope, JwtClaims.of(accessToken), transport);
+    }
+    
+    private AccessToken(long expiresIn, long expiresAt, long receivedAt, String tokenType, String refreshToken,
+            String accessToken, String scope, JwtClaims claims, HttpTransport transport) {
         this.expiresIn    = expiresIn;
+        this.expiresAt    = expiresAt;
+        this.receivedAt   = receivedAt;
         this.tokenType    = tokenType;
         this.refreshToken = refreshToken;
         this.accessToken  = accessToken;
-        this.expiresAt    = (expiresIn * 1000) + System.currentTimeMillis();
+        this.scope        = scope;
+        this.claims       = claims;
+        this.transport    = transport;
     }
 
+    /**
+     * @param value The expiration as sent by the server, either a number or a string.
+     * @return The expiration in seconds, null if unknown.
+     */
+    private static Long parseExpiresIn(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value instanceof String) {
+            return Long.parseLong(((String) value).trim());
+        }
+        return null;
+    }
+
+    /**
+     * @param value The scope as sent by the server, either a string or an array of strings.
+     * @return The space separated scopes, null if not sent.
+     */
+    private static String parseScope(Object value) {
+        if (value instanceof List) {
+            StringBuilder sb = new StringBuilder();
+            
+            for (Object item : (List<?>) value) {
+                sb.append(sb.length() > 0 ? " " : "").append(item);
+            }
+            return sb.toString();
+        }
+        return (value != null) ? value.toString() : null;
+    }
+
+    /**
+     * @return The life expectancy of the token in seconds, or zero if the server
+     *         did not send it.
+     */
     public long getExpiresIn() {
         return expiresIn;
     }
 
+    /**
+     * @return The time the token expires, in milliseconds since the epoch: the
+     *         {@code exp} claim if the token is a JWT that has it, otherwise the
+     *         time the token was received plus {@link #getExpiresIn()}, or
+     *         {@link #NO_EXPIRATION} if neither is known.
+     */
     public long getExpiresAt() {
-        return expiresAt;
+        long exp = (claims != null) ? claims.getExpiration() : 0;
+        return (exp > 0) ? exp * 1000 : expiresAt;
+    }
+
+    /**
+     * @return The time the token was issued, in milliseconds since the epoch: the
+     *         {@code iat} claim if the token is a JWT that has it, otherwise the
+     *         time the token was received.
+     */
+    public long getIssuedAt() {
+        long iat = (claims != null) ? claims.getIssuedAt() : 0;
+        return (iat > 0) ? iat * 1000 : receivedAt;
     }
 
     public String getTokenType() {
@@ -62,14 +185,120 @@ public class AccessToken {
     }
 
     /**
-     * Checks if the access token might have expired, by comparing  the time the token
-     * was created plus {@link #expiresIn} and the current time.
+     * @return The scope granted, from the token response or else from the claims
+     *         of a JWT, or null if unknown, in which case it is the one requested.
+     */
+    public String getScope() {
+        if (scope != null) {
+            return scope;
+        }
+        return (claims != null) ? claims.getScope() : null;
+    }
+
+    /**
+     * @return The set of scopes granted, see {@link #getScope()}, empty if unknown.
+     */
+    public Set<String> getScopes() {
+        Set<String> set = scopes;
+
+        if (set == null) {
+            scopes = set = OAuth2Utils.parseScopes(getScope());
+        }
+        return set;
+    }
+
+    /**
+     * @param scopes The scopes needed, e.g. {@link OAuth2Config#getScopes()}.
+     * @return True if all the scopes were granted to this token.
+     */
+    public boolean hasScopes(Collection<String> scopes) {
+        return getScopes().containsAll(scopes);
+    }
+
+    /**
+     * @return The claims of the token, decoded on first access, or null if the
+     *         token is not a JWT.
+     */
+    public JwtClaims getClaims() {
+        return claims;
+    }
+
+    /**
+     * Verify the signature of this token, if it is a JWT.
+     * 
+     * @param keys The signing keys of the provider, such as {@link OAuth2Client#getJwksCache()}.
+     * @return The claims of the token.
+     * @throws InvalidTokenException If the token is not a JWT or its signature is not valid.
+     * @throws OAuth2Exception If the keys could not be fetched.
+     */
+    public JwtClaims verify(JwksCache keys) throws OAuth2Exception {
+        return keys.verify(accessToken);
+    }
+
+    /**
+     * @return The transport used to request resources with this token, null for the default transport.
+     */
+    HttpTransport getTransport() {
+        return transport;
+    }
+    
+    void setTransport(HttpTransport transport) {
+        this.transport = transport;
+    }
+    
+    /**
+     * @param transport
+     * @return This token if it already uses the given transport, or a copy of it using the transport.
+     */
+    AccessToken withTransport(HttpTransport transport) {
+        if (this.transport == transport) {
+            return this;
+        }
+        return new AccessToken(expiresIn, expiresAt, receivedAt, tokenType, refreshToken, accessToken, scope, claims, transport);
+    }
+    
+    /**
+     * @param refreshToken
+     * @return A copy of this token with the given refresh token.
+     */
+    AccessToken withRefreshToken(String refreshToken) {
+        return new AccessToken(expiresIn, expiresAt, receivedAt, tokenType, refreshToken, accessToken, scope, claims, transport);
+    }
+    
+    /**
+     * The server is not required to issue a new refresh token on a refresh, nor 
+     * to repeat the scope when it did not change.
+     * 
+     * @param previous The token that was refreshed.
+     * @return This token if it has a refresh token and a scope, or a copy of it
+     *         with the ones of the previous token.
+     */
+    AccessToken inherit(AccessToken previous) {
+        if ((refreshToken != null || previous.refreshToken == null) && (scope != null || previous.scope == null)) {
+            return this;
+        }
+        return new AccessToken(expiresIn, expiresAt, receivedAt, tokenType, 
+                (refreshToken != null) ? refreshToken : previous.refreshToken, accessToken, 
+                (scope != null) ? scope : previous.scope, claims, transport);
+    }
+
+    /**
+     * Checks if the access token might have expired, by comparing {@link #getExpiresAt()}
+     * and the current time.
      * @return True if the token expired, false otherwise.
      */
     public boolean isExpired() {
         return (System.currentTimeMillis() >= this.getExpiresAt());
     }
 
+    /**
+     * @return True if the lifetime of the token is known, false if it is only
+     *         replaced once the server rejects it.
+     */
+    public boolean hasExpiration() {
+        return getExpiresAt() != NO_EXPIRATION;
+    }
+
     /**
      * Get a resource using this token.
      * 
@@ -81,6 +310,136 @@ public class AccessToken {
         return OAuth2Utils.getProtectedResource(this, path);
     }
 
+    /**
+     * Get a resource using this token, as a stream. The stream must be closed
+     * to release the connection.
+     * 
+     * @param path The full path to the resource.
+     * @return The content of the resource.
+     * @throws OAuth2Exception 
+     */
+    public InputStream getResourceAsStream(String path) throws OAuth2Exception {
+        return OAuth2Utils.getProtectedResourceAsStream(this, path);
+    }
+
+    /**
+     * Get a resource using this token, passing its content as a stream to the handler.
+     * 
+     * @param <T> The type of the result of the handler.
+     * @param path The full path to the resource.
+     * @param handler The handler that consumes the content of the resource.
+     * @return The result of the handler.
+     * @throws OAuth2Exception 
+     */
+    public <T> T getResource(String path, ResourceHandler<T> handler) throws OAuth2Exception {
+        return OAuth2Utils.getProtectedResource(this, path, handler);
+    }
+
+    /**
+     * Get a resource using this token, writing its content to the channel.
+     * 
+     * @param path The full path to the resource.
+     * @param target The channel the content is written to, it is not closed.
+     * @return The number of bytes written.
+     * @throws OAuth2Exception 
+     */
+    public long getResource(String path, WritableByteChannel target) throws OAuth2Exception {
+        return OAuth2Utils.getProtectedResource(this, path, target);
+    }
+
+    /**
+     * Get a resource using this token, writing its content to the file.
+     * 
+     * @param path The full path to the resource.
+     * @param target The file the content is written to, replaced if it exists.
+     * @return The number of bytes written.
+     * @throws OAuth2Exception 
+     */
+    public long getResource(String path, Path target) throws OAuth2Exception {
+        return OAuth2Utils.getProtectedResource(this, path, target);
+    }
+
+    /**
+     * Create a resource using this token, streaming the body as it is sent.
+     * 
+     * @param path The full path to the resource.
+     * @param body The content to be sent.
+     * @return The content of the response.
+     * @throws OAuth2Exception 
+     */
+    public String postResource(String path, ResourceBody body) throws OAuth2Exception {
+        return OAuth2Utils.sendProtectedResource(this, HttpPost.METHOD_NAME, path, body);
+    }
+
+    /**
+     * Replace a resource using this token, streaming the body as it is sent.
+     * 
+     * @param path The full path to the resource.
+     * @param body The content to be sent.
+     * @return The content of the response.
+     * @throws OAuth2Exception 
+     */
+    public String putResource(String path, ResourceBody body) throws OAuth2Exception {
+        return OAuth2Utils.sendProtectedResource(this, HttpPut.METHOD_NAME, path, body);
+    }
+
+    /**
+     * Update a resource using this token, streaming the body as it is sent.
+     * 
+     * @param path The full path to the resource.
+     * @param body The content to be sent.
+     * @return The content of the response.
+     * @throws OAuth2Exception 
+     */
+    public String patchResource(String path, ResourceBody body) throws OAuth2Exception {
+        return OAuth2Utils.sendProtectedResource(this, HttpPatch.METHOD_NAME, path, body);
+    }
+
+    /**
+     * Delete a resource using this token.
+     * 
+     * @param path The full path to the resource.
+     * @return The content of the response.
+     * @throws OAuth2Exception 
+     */
+    public String deleteResource(String path) throws OAuth2Exception {
+        return OAuth2Utils.sendProtectedResource(this, HttpDelete.METHOD_NAME, path, null);
+    }
+
+    /**
+     * Get a resource using this token, without blocking the calling thread.
+     * 
+     * @param path The full path to the resource.
+     * @return The future content of the resource, completed exceptionally with
+     *         an {@link OAuth2Exception} if the request fails.
+     */
+    public CompletableFuture<String> getResourceAsync(String path) {
+        return OAuth2Utils.getProtectedResourceAsync(this, path);
+    }
+
+    /**
+     * Get resources using this token, executing up to {@link OAuth2Config#getMaxConcurrentResources()}
+     * requests at the same time. A failed request does not cancel the others.
+     * 
+     * @param paths The full paths to the resources.
+     * @return The batch of requests, with a result per resource.
+     */
+    public ResourceBatch getResources(Collection<String> paths) {
+        return getResources(paths, OAuth2Utils.getMaxConcurrentResources(transport));
+    }
+
+    /**
+     * Get resources using this token, executing up to the given number of
+     * requests at the same time. A failed request does not cancel the others.
+     * 
+     * @param paths The full paths to the resources.
+     * @param concurrency Maximum number of requests executed at the same time.
+     * @return The batch of requests, with a result per resource.
+     */
+    public ResourceBatch getResources(Collection<String> paths, int concurrency) {
+        return OAuth2Utils.getProtectedResources(this, paths, concurrency);
+    }
+
     /**
      * Refresh this token.
      * 
@@ -93,13 +452,28 @@ public class AccessToken {
                 .grantType(OAuth2Constants.GRANT_REFRESH_TOKEN)
                 .build();
         
-        return OAuth2Utils.refreshAccessToken(this, oauthConfig);
+        return OAuth2Utils.refreshAccessToken(this, oauthConfig, client.getTransport());
+    }
+
+    /**
+     * Refresh this token, without blocking the calling thread.
+     * 
+     * @param client The client for refreshing the token, the same used to create this token.
+     * @return The future refreshed token, completed exceptionally with an 
+     *         {@link OAuth2Exception} if the request fails.
+     */
+    public CompletableFuture<AccessToken> refreshAsync(OAuth2Client client) {
+        OAuth2Config oauthConfig = new OAuth2Config.Builder(client.getConfig())
+                .grantType(OAuth2Constants.GRANT_REFRESH_TOKEN)
+                .build();
+        
+        return OAuth2Utils.refreshAccessTokenAsync(this, oauthConfig, client.getTransport());
     }
 
     @Override
     public String toString() {
-        return "Token{" + "expiresIn=" + expiresIn + ", expiresAt=" + expiresAt 
+        return "Token{" + "expiresIn=" + expiresIn + ", expiresAt=" + getExpiresAt() 
                 + ", tokenType=" + tokenType + ", refreshToken=" + refreshToken 
-                + ", accessToken=" + accessToken + '}';
+                + ", accessToken=" + accessToken + ", scope=" + scope + '}';
     }
 }
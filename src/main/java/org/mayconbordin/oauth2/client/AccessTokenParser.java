@@ -0,0 +1,394 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Streaming parser for JSON token responses, that reads the response once and
+ * binds the fields of the token directly, without building an intermediate
+ * string or map. Fields other than the ones of {@link AccessToken} are skipped.
+ *
+ * <p>Instances are not thread-safe, a new parser is used for each response.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class AccessTokenParser {
+    private static final int BUFFER_SIZE = 512;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final StringBuilder text = new StringBuilder(64);
+    private int position;
+    private int limit;
+    private int offset;
+
+    public AccessTokenParser(InputStream in) {
+        this.reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse a JSON token response.
+     *
+     * @param in The content of the response.
+     * @return The access token.
+     * @throws ParseErrorException If the content is not a valid JSON object.
+     * @throws IOException If the content can't be read.
+     */
+    public static AccessToken parse(InputStream in) throws ParseErrorException, IOException {
+        return new AccessTokenParser(in).parse();
+    }
+
+    /**
+     * @return The access token.
+     * @throws ParseErrorException If the content is not a valid JSON object.
+     * @throws IOException If the content can't be read.
+     */
+    public AccessToken parse() throws ParseErrorException, IOException {
+        Long expiresIn = null;
+        String tokenType = null;
+        String refreshToken = null;
+        String accessToken = null;
+        String scope = null;
+
+        expect('{');
+
+        if (peek() == '}') {
+            read();
+        } else {
+            do {
+                expect('"');
+                String name = readString();
+                expect(':');
+
+                switch (name) {
+                    case OAuth2Constants.ACCESS_TOKEN:
+                        accessToken = readStringOrNull();
+                        break;
+                    case OAuth2Constants.TOKEN_TYPE:
+                        tokenType = readStringOrNull();
+                        break;
+                    case OAuth2Constants.REFRESH_TOKEN:
+                        refreshToken = readStringOrNull();
+                        break;
+                    case OAuth2Constants.EXPIRES_IN:
+                        expiresIn = readLong();
+                        break;
+                    case OAuth2Constants.SCOPE:
+                        scope = readScope();
+                        break;
+                    default:
+                        skipValue();
+                }
+            } while (nextMember());
+        }
+
+        if (peek() != -1) {
+            throw error(ParseException.ERROR_UNEXPECTED_CHAR, (char) peek());
+        }
+
+        return new AccessToken(expiresIn, tokenType, refreshToken, accessToken, scope);
+    }
+
+    /**
+     * Read the scope as a string, joining the items with spaces if it was sent as an array.
+     */
+    private String readScope() throws ParseErrorException, IOException {
+        if (peek() != '[') {
+            return readStringOrNull();
+        }
+
+        read();
+        StringBuilder scopes = new StringBuilder();
+
+        if (peek() == ']') {
+            read();
+            return "";
+        }
+
+        do {
+            String item = readStringOrNull();
+
+            if (item != null) {
+                scopes.append(scopes.length() > 0 ? " " : "").append(item);
+            }
+        } while (nextElement());
+
+        return scopes.toString();
+    }
+
+    /**
+     * Parse the expiration, whether it was sent as a number or as a string.
+     *
+     * @return The expiration in seconds, null if it was sent as null.
+     */
+    private Long readLong() throws ParseErrorException, IOException {
+        int c = peek();
+
+        if (c == '"') {
+            read();
+            String value = readString().trim();
+
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw error(ParseException.ERROR_UNEXPECTED_TOKEN, value);
+            }
+        } else if (c == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+
+        boolean negative = false;
+        long value = 0;
+        int digits = 0;
+
+        if (c == '-') {
+            negative = true;
+            read();
+        }
+
+        while ((c = peekRaw()) >= '0' && c <= '9') {
+            value = value * 10 + (read() - '0');
+            digits++;
+        }
+
+        if (digits == 0) {
+            throw error(ParseException.ERROR_UNEXPECTED_CHAR, (char) c);
+        }
+
+        // fractional seconds are truncated
+        if (c == '.' || c == 'e' || c == 'E') {
+            skipNumber();
+        }
+
+        return negative ? -value : value;
+    }
+
+    private String readStringOrNull() throws ParseErrorException, IOException {
+        int c = peek();
+
+        if (c == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+
+        expect('"');
+        return readString();
+    }
+
+    /**
+     * Read the rest of a string, after the opening quote.
+     */
+    private String readString() throws ParseErrorException, IOException {
+        text.setLength(0);
+
+        while (true) {
+            int c = read();
+
+            if (c == '"') {
+                return text.toString();
+            } else if (c == '\\') {
+                text.append(readEscape());
+            } else if (c == -1) {
+                throw error(ParseException.ERROR_UNEXPECTED_EXCEPTION, "end of content");
+            } else {
+                text.append((char) c);
+            }
+        }
+    }
+
+    private char readEscape() throws ParseErrorException, IOException {
+        int c = read();
+
+        switch (c) {
+            case '"':  return '"';
+            case '\\': return '\\';
+            case '/':  return '/';
+            case 'b':  return '\b';
+            case 'f':  return '\f';
+            case 'n':  return '\n';
+            case 'r':  return '\r';
+            case 't':  return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw error(ParseException.ERROR_UNEXPECTED_CHAR, "\\u");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            default:
+                throw error(ParseException.ERROR_UNEXPECTED_CHAR, (char) c);
+        }
+    }
+
+    private void skipValue() throws ParseErrorException, IOException {
+        int c = peek();
+
+        switch (c) {
+            case '"':
+                read();
+                skipString();
+                break;
+            case '{':
+                read();
+                if (peek() == '}') {
+                    read();
+                    break;
+                }
+                do {
+                    expect('"');
+                    skipString();
+                    expect(':');
+                    skipValue();
+                } while (nextMember());
+                break;
+            case '[':
+                read();
+                if (peek() == ']') {
+                    read();
+                    break;
+                }
+                do {
+                    skipValue();
+                } while (nextElement());
+                break;
+            case 't':
+                expectLiteral("true");
+                break;
+            case 'f':
+                expectLiteral("false");
+                break;
+            case 'n':
+                expectLiteral("null");
+                break;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    skipNumber();
+                } else {
+                    throw error(ParseException.ERROR_UNEXPECTED_CHAR, (char) c);
+                }
+        }
+    }
+
+    private void skipString() throws ParseErrorException, IOException {
+        while (true) {
+            int c = read();
+
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                read();
+            } else if (c == -1) {
+                throw error(ParseException.ERROR_UNEXPECTED_EXCEPTION, "end of content");
+            }
+        }
+    }
+
+    private void skipNumber() throws IOException {
+        int c;
+        while ((c = peekRaw()) == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')) {
+            read();
+        }
+    }
+
+    /**
+     * @return True if another member follows in the current object, false if it ended.
+     */
+    private boolean nextMember() throws ParseErrorException, IOException {
+        int c = readNonWhitespace();
+
+        if (c == ',') {
+            return true;
+        } else if (c == '}') {
+            return false;
+        }
+
+        throw error(ParseException.ERROR_UNEXPECTED_CHAR, (char) c);
+    }
+
+    /**
+     * @return True if another element follows in the current array, false if it ended.
+     */
+    private boolean nextElement() throws ParseErrorException, IOException {
+        int c = readNonWhitespace();
+
+        if (c == ',') {
+            return true;
+        } else if (c == ']') {
+            return false;
+        }
+
+        throw error(ParseException.ERROR_UNEXPECTED_CHAR, (char) c);
+    }
+
+    private void expect(char expected) throws ParseErrorException, IOException {
+        int c = readNonWhitespace();
+
+        if (c != expected) {
+            throw error(ParseException.ERROR_UNEXPECTED_CHAR, c == -1 ? "end of content" : (char) c);
+        }
+    }
+
+    private void expectLiteral(String literal) throws ParseErrorException, IOException {
+        peek();
+
+        for (int i = 0; i < literal.length(); i++) {
+            if (read() != literal.charAt(i)) {
+                throw error(ParseException.ERROR_UNEXPECTED_TOKEN, literal);
+            }
+        }
+    }
+
+    private int readNonWhitespace() throws IOException {
+        peek();
+        return read();
+    }
+
+    /**
+     * @return The next character that is not whitespace, without consuming it.
+     */
+    private int peek() throws IOException {
+        int c;
+        while ((c = peekRaw()) == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            read();
+        }
+        return c;
+    }
+
+    private int peekRaw() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        offset++;
+        return buffer[position++];
+    }
+
+    private boolean fill() throws IOException {
+        limit = reader.read(buffer, 0, buffer.length);
+        position = 0;
+
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private ParseErrorException error(int type, Object unexpected) {
+        return new ParseErrorException("json", null, new ParseException(offset, type, unexpected));
+    }
+}
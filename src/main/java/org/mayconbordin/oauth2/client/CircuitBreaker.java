@@ -0,0 +1,198 @@
+package org.mayconbordin.oauth2.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Circuit breaker and retry budget of the requests to an endpoint: an endpoint
+ * of the provider, or the protected resources of a host, see
+ * {@link OAuth2Utils#getCircuitBreaker(ResiliencePolicy, String)}.
+ *
+ * <p>After {@link ResiliencePolicy#getFailureThreshold()} consecutive failures
+ * (I/O errors or 5xx responses) the circuit opens, and requests fail fast with a
+ * {@link CircuitOpenException} for {@link ResiliencePolicy#getOpenTime()}
+ * milliseconds. Then a single request is let through to probe the endpoint: if it
+ * succeeds the circuit closes, otherwise it opens again.</p>
+ *
+ * <p>Retries are taken from a budget that only successful requests refill, so
+ * an endpoint that keeps failing is retried at most {@link ResiliencePolicy#getRetryBudget()}
+ * times.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String endpoint;
+    private final ResiliencePolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openUntil;
+    private long probeStart;
+    private double retryBalance;
+
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong openCount = new AtomicLong();
+
+    public CircuitBreaker(String endpoint, ResiliencePolicy policy) {
+        this.endpoint = endpoint;
+        this.policy = policy;
+        this.retryBalance = policy.getRetryBudget();
+    }
+
+    /**
+     * Ask permission to send a request.
+     *
+     * @return True if the request is the probe of a half-open circuit.
+     * @throws CircuitOpenException If the circuit is open, or half-open with a
+     *                              probe already in flight.
+     */
+    public boolean acquire() throws CircuitOpenException {
+        lock.lock();
+        try {
+            if (policy.getFailureThreshold() <= 0 || state == State.CLOSED) {
+                return false;
+            }
+
+            long now = System.nanoTime();
+
+            if (state == State.OPEN && now - openUntil < 0) {
+                rejectedCount.incrementAndGet();
+                throw new CircuitOpenException(endpoint, TimeUnit.NANOSECONDS.toMillis(openUntil - now));
+            }
+
+            // a probe that never reported back is replaced after the open time
+            if (state == State.HALF_OPEN && now - probeStart < TimeUnit.MILLISECONDS.toNanos(policy.getOpenTime())) {
+                rejectedCount.incrementAndGet();
+                throw new CircuitOpenException(endpoint, 0);
+            }
+
+            state = State.HALF_OPEN;
+            probeStart = now;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a successful request.
+     *
+     * @param probe Whether the request was the probe of a half-open circuit.
+     */
+    public void onSuccess(boolean probe) {
+        lock.lock();
+        try {
+            consecutiveFailures = 0;
+            retryBalance = Math.min(policy.getRetryBudget(), retryBalance + policy.getRetryRatio());
+
+            if (probe) {
+                state = State.CLOSED;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a failed request.
+     *
+     * @param probe Whether the request was the probe of a half-open circuit.
+     */
+    public void onFailure(boolean probe) {
+        lock.lock();
+        try {
+            failureCount.incrementAndGet();
+
+            if (probe || (state == State.CLOSED && policy.getFailureThreshold() > 0
+                    && ++consecutiveFailures >= policy.getFailureThreshold())) {
+                state = State.OPEN;
+                openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.getOpenTime());
+                consecutiveFailures = 0;
+                openCount.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take a retry from the budget of the endpoint.
+     *
+     * @return True if there was a retry left in the budget.
+     */
+    public boolean tryRetry() {
+        lock.lock();
+        try {
+            if (retryBalance < 1) {
+                return false;
+            }
+
+            retryBalance -= 1;
+            retryCount.incrementAndGet();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public State getState() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of retries left in the budget.
+     */
+    public double getRetryBalance() {
+        lock.lock();
+        try {
+            return retryBalance;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of failed requests.
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * @return The number of requests failed fast while the circuit was open.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return The number of retried requests.
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * @return The number of times the circuit opened.
+     */
+    public long getOpenCount() {
+        return openCount.get();
+    }
+}
@@ -0,0 +1,23 @@
+package org.mayconbordin.oauth2.client;
+
+/**
+ * The request was not sent because the circuit of the endpoint is open, after it
+ * failed too many times in a row.
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class CircuitOpenException extends OAuth2Exception {
+    private final long retryAfter;
+
+    public CircuitOpenException(String endpoint, long retryAfter) {
+        super("The circuit of " + endpoint + " is open after repeated failures.");
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return Time until a request is allowed to probe the endpoint, in milliseconds.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
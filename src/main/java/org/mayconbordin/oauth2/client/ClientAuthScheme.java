@@ -0,0 +1,47 @@
+package org.mayconbordin.oauth2.client;
+
+/**
+ * The ways a client can authenticate itself on the token endpoint.
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public enum ClientAuthScheme {
+    /**
+     * Client credentials in the form body only.
+     */
+    BODY {
+        @Override
+        public OAuth2RequestBuilder apply(OAuth2RequestBuilder builder, OAuth2Config config) {
+            return builder;
+        }
+    },
+
+    /**
+     * Basic authentication with the user credentials.
+     */
+    BASIC_USER {
+        @Override
+        public OAuth2RequestBuilder apply(OAuth2RequestBuilder builder, OAuth2Config config) {
+            return builder.authorization(config.getUsername(), config.getPassword());
+        }
+    },
+
+    /**
+     * Basic authentication with the client credentials.
+     */
+    BASIC_CLIENT {
+        @Override
+        public OAuth2RequestBuilder apply(OAuth2RequestBuilder builder, OAuth2Config config) {
+            return builder.authorization(config.getClientId(), config.getClientSecret());
+        }
+    };
+
+    /**
+     * Add the client authentication to the request.
+     *
+     * @param builder The builder of the token request.
+     * @param config The configuration with the credentials.
+     * @return The same builder.
+     */
+    public abstract OAuth2RequestBuilder apply(OAuth2RequestBuilder builder, OAuth2Config config);
+}
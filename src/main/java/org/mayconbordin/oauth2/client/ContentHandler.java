@@ -1,28 +1,32 @@
 package org.mayconbordin.oauth2.client;
 
+import java.io.FilterReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /**
  * Class for handling content from HTTP entities, with auto-detection and parsing 
@@ -31,9 +35,27 @@ import org.xml.sax.SAXException;
  * @author Maycon Bordin <mayconbordin@gmail.com>
  */
 public class ContentHandler {
+    /**
+     * Maximum number of characters of a XML document.
+     */
+    public static final int MAX_XML_SIZE = 256 * 1024;
+    
+    /**
+     * Maximum nesting depth of the elements of a XML document.
+     */
+    public static final int MAX_XML_DEPTH = 32;
+    
     private static final Logger LOG = LoggerFactory.getLogger(ContentHandler.class);
-    private static JSONParser jsonParser;
-    private static DocumentBuilder xmlDocumentBuilder;
+    
+    // the JSON parser is not thread-safe, idle instances are pooled rather than
+    // kept per thread, which would create one for every virtual thread. The pool
+    // is shared by all the clients, so its size is fixed: it only bounds the idle
+    // parsers that are kept, callers never wait for one
+    private static final int MAX_IDLE_JSON_PARSERS = 64;
+    private static final BlockingQueue<JSONParser> jsonParsers = new ArrayBlockingQueue<>(MAX_IDLE_JSON_PARSERS);
+    
+    // the factory is thread-safe once configured
+    private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
     
     /**
      * Extracts the HTTP entity from the response by using the {@link #handleEntity(org.apache.http.HttpEntity)} method.
@@ -47,9 +69,56 @@ public class ContentHandler {
         return handleEntity(response.getEntity());
     }
     
+    /**
+     * Extracts the access token from a token response.
+     * 
+     * <p>JSON responses are parsed with the streaming {@link AccessTokenParser}, 
+     * directly from the content of the entity. Other content types are parsed
+     * into a map by {@link #handleEntity(org.apache.http.HttpEntity)}.</p>
+     * 
+     * @param response The HTTP response object.
+     * @return The access token.
+     * @throws OAuth2Exception If the entity can't be parsed or the content type is not supported.
+     * @throws IOException If the entity content can't be read.
+     */
+    public static AccessToken handleTokenResponse(HttpResponse response) throws OAuth2Exception, IOException {
+        return handleTokenResponse(response, OAuth2Metrics.NOOP);
+    }
+    
+    /**
+     * Extracts the access token from a token response, reporting the parsing 
+     * time by content type to the given listener.
+     * 
+     * @param response The HTTP response object.
+     * @param metrics The listener of the parsing time.
+     * @return The access token.
+     * @throws OAuth2Exception If the entity can't be parsed or the content type is not supported.
+     * @throws IOException If the entity content can't be read.
+     */
+    public static AccessToken handleTokenResponse(HttpResponse response, OAuth2Metrics metrics) throws OAuth2Exception, IOException {
+        HttpEntity entity = response.getEntity();
+        long start = System.nanoTime();
+        
+        if (entity.getContentType() != null 
+                && !entity.getContentType().getValue().contains(OAuth2Constants.JSON_CONTENT)) {
+            AccessToken token = new AccessToken(handleEntity(entity));
+            metrics.parse(entity.getContentType().getValue(), System.nanoTime() - start);
+            return token;
+        }
+        
+        try (InputStream in = entity.getContent()) {
+            AccessToken token = AccessTokenParser.parse(in);
+            metrics.parse(OAuth2Constants.JSON_CONTENT, System.nanoTime() - start);
+            return token;
+        }
+    }
+    
     /**
      * Parses the HTTP entity based on its content type and returns the parsed data.
      * 
+     * <p>XML content is parsed as it is read, so a document larger than
+     * {@link #MAX_XML_SIZE} is rejected without being buffered.</p>
+     * 
      * @param entity The HTTP entity object.
      * @return The parsed data from the entity as a key/value hashmap.
      * @throws OAuth2Exception If the entity can't be parsed or the content type is not supported.
@@ -57,18 +126,22 @@ public class ContentHandler {
      */
     public static Map<String, Object> handleEntity(HttpEntity entity) throws OAuth2Exception, IOException {
         String contentType = OAuth2Constants.JSON_CONTENT;
-        String content = readHttpEntity(entity);
 
         if (entity.getContentType() != null) {
             contentType = entity.getContentType().getValue();
         }
 
         if (contentType.contains(OAuth2Constants.JSON_CONTENT)) {
-            return handleJsonResponse(content);
+            return handleJsonResponse(readHttpEntity(entity));
         } else if (contentType.contains(OAuth2Constants.URL_ENCODED_CONTENT)) {
-            return handleURLEncodedResponse(content);
+            return handleURLEncodedResponse(readHttpEntity(entity));
         } else if (contentType.contains(OAuth2Constants.XML_CONTENT)) {
-            return handleXmlResponse(content);
+            ContentType type = ContentType.get(entity);
+            Charset charset = (type != null && type.getCharset() != null) ? type.getCharset() : StandardCharsets.UTF_8;
+            
+            try (InputStream in = entity.getContent()) {
+                return handleXml(new InputStreamReader(in, charset), null);
+            }
         } else {
             throw new UnsupportedContentType(contentType);
         }
@@ -82,11 +155,15 @@ public class ContentHandler {
      * @throws ParseErrorException
      */
     public static Map<String, Object> handleJsonResponse(String content) throws ParseErrorException {
+        JSONParser parser = getJsonParser();
+        
         try {
-            return (Map<String, Object>) getJsonParser().parse(content);
+            return (Map<String, Object>) parser.parse(content);
         } catch (ParseException e) {
             LOG.error("JSON parse error: " + e.getMessage());
             throw new ParseErrorException("json", content, e);
+        } finally {
+            releaseJsonParser(parser);
         }
     }
 
@@ -109,53 +186,89 @@ public class ContentHandler {
     }
 
     /**
-     * Handles a XML string.
+     * Handles a XML string, with a streaming parser that extracts the text of
+     * each leaf element in a single pass.
+     * 
+     * <p>Documents larger than {@link #MAX_XML_SIZE} characters or nested deeper 
+     * than {@link #MAX_XML_DEPTH} elements are rejected, as are DTDs and external entities.</p>
      * 
      * @param content The string to be parsed.
-     * @return The parsed data.
+     * @return The parsed data, with the name of each leaf element mapped to its text.
      * @throws ParseErrorException 
      */
     public static Map<String, Object> handleXmlResponse(String content) throws ParseErrorException {
+        return handleXml(new StringReader(content), content);
+    }
+    
+    /**
+     * @param in The XML document, read at most up to {@link #MAX_XML_SIZE} characters.
+     * @param content The document, for the parse errors, or null if it is streamed.
+     */
+    private static Map<String, Object> handleXml(Reader in, String content) throws ParseErrorException {
         Map<String, Object> oauthResponse = new HashMap<>();
+        XMLStreamReader reader = null;
         
         try {
-            Document doc = getXmlDocumentBuilder().parse(new InputSource(new StringReader(content)));
-            parseXmlDoc(null, doc, oauthResponse);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            reader = xmlInputFactory.createXMLStreamReader(new LimitedReader(in, MAX_XML_SIZE));
+            StringBuilder text = new StringBuilder();
+            boolean leaf = false;
+            int depth = 0;
+            
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        if (++depth > MAX_XML_DEPTH) {
+                            throw new XMLStreamException("Content exceeds the maximum depth of " 
+                                    + MAX_XML_DEPTH + " elements.", reader.getLocation());
+                        }
+                        leaf = true;
+                        text.setLength(0);
+                        break;
+                        
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (leaf) {
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                        
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (leaf && text.length() > 0) {
+                            oauthResponse.put(getXmlName(reader), text.toString());
+                        }
+                        leaf = false;
+                        depth--;
+                        break;
+                        
+                    case XMLStreamConstants.DTD:
+                    case XMLStreamConstants.ENTITY_REFERENCE:
+                        throw new XMLStreamException("DTDs and entity references are not allowed.", reader.getLocation());
+                }
+            }
+        } catch (XMLStreamException e) {
             LOG.error("XML parse error: " + e.getMessage());
             throw new ParseErrorException("xml", content, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    LOG.warn("Error closing XML reader: " + e.getMessage());
+                }
+            }
         }
         
         return oauthResponse;
     }
-
-    /**
-     * Traverses the XML document, adding each tag and its contents to a map object.
-     * 
-     * @param element The current element to be traversed or null if is the root of the document.
-     * @param doc The document to be traversed.
-     * @param response The object to be used to store the XML tags.
-     */
-    protected static void parseXmlDoc(Element element, Document doc, Map<String, Object> response) {
-        NodeList child = null;
-        
-        if (element == null) {
-            child = doc.getChildNodes();
-        } else {
-            child = element.getChildNodes();
-        }
+    
+    private static String getXmlName(XMLStreamReader reader) {
+        String prefix = reader.getPrefix();
         
-        for (int j = 0; j < child.getLength(); j++) {
-            if (child.item(j).getNodeType() == org.w3c.dom.Node.ELEMENT_NODE) {
-                org.w3c.dom.Element childElement = (org.w3c.dom.Element) child.item(j);
-                
-                if (childElement.hasChildNodes()) {
-                    response.put(childElement.getTagName(), childElement.getTextContent());
-                    parseXmlDoc(childElement, null, response);
-                }
-
-            }
+        if (prefix == null || prefix.isEmpty()) {
+            return reader.getLocalName();
         }
+        return prefix + ":" + reader.getLocalName();
     }
     
     /**
@@ -169,21 +282,82 @@ public class ContentHandler {
         return EntityUtils.toString(entity, StandardCharsets.UTF_8);
     }
 
+    /**
+     * @return A JSON parser for the exclusive use of the caller, to be given
+     *         back with {@link #releaseJsonParser(JSONParser)}.
+     */
     protected static JSONParser getJsonParser() {
-        if (jsonParser == null) {
-            jsonParser = new JSONParser();
-        }
-        return jsonParser;
+        JSONParser parser = jsonParsers.poll();
+        return (parser != null) ? parser : new JSONParser();
+    }
+    
+    /**
+     * @param parser A parser obtained from {@link #getJsonParser()}, which must
+     *               not be used by the caller anymore.
+     */
+    protected static void releaseJsonParser(JSONParser parser) {
+        jsonParsers.offer(parser);
     }
+    
+    /**
+     * Create the XML factory, once, with DTDs and external entities disabled.
+     * 
+     * @return The factory for XML stream readers.
+     */
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, false);
+        return factory;
+    }
+    
+    /**
+     * Reader that fails once more than a maximum number of characters are read.
+     */
+    private static class LimitedReader extends FilterReader {
+        private final int limit;
+        private int count;
 
-    protected static DocumentBuilder getXmlDocumentBuilder() throws ParserConfigurationException {
-        if (xmlDocumentBuilder == null) {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            xmlDocumentBuilder = factory.newDocumentBuilder();
-        } else {
-            xmlDocumentBuilder.reset();
+        public LimitedReader(Reader in, int limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            
+            if (c != -1) {
+                consumed(1);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            // one more than the limit, to tell a document of exactly the limit from a larger one
+            int n = super.read(cbuf, off, Math.min(len, limit - count + 1));
+            
+            if (n > 0) {
+                consumed(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, limit - count + 1));
+            consumed((int) skipped);
+            return skipped;
+        }
+
+        private void consumed(int n) throws IOException {
+            count += n;
+            
+            if (count > limit) {
+                throw new IOException("Content exceeds the maximum size of " + limit + " characters.");
+            }
         }
-        
-        return xmlDocumentBuilder;
     }
 }
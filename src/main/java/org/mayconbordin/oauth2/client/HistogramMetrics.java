@@ -0,0 +1,218 @@
+package org.mayconbordin.oauth2.client;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reference implementation of {@link OAuth2Metrics} that keeps the events in
+ * memory, with a {@link Histogram} for each latency and counters for the rest.
+ * Durations are recorded in nanoseconds and lead times in milliseconds.
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class HistogramMetrics implements OAuth2Metrics {
+    private static final int MAX_STATUS_CODE = 600;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Histogram>> tokenLatencies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> parseTimes = new ConcurrentHashMap<>();
+    private final Histogram resourceLatency = new Histogram();
+    private final Histogram refreshLeadTime = new Histogram();
+
+    private final AtomicLongArray tokenStatusCodes = new AtomicLongArray(MAX_STATUS_CODE);
+    private final AtomicLongArray resourceStatusCodes = new AtomicLongArray(MAX_STATUS_CODE);
+
+    private final LongAdder tokenRequestFailures = new LongAdder();
+    private final LongAdder resourceRequestFailures = new LongAdder();
+    private final LongAdder authSchemeFallbacks = new LongAdder();
+    private final LongAdder refreshFallbacks = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+    private final LongAdder tokenThrottles = new LongAdder();
+    private final LongAdder resourceReplays = new LongAdder();
+    private final LongAdder resourceReplayFailures = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    @Override
+    public void tokenRequest(String endpoint, String grantType, int statusCode, long nanos) {
+        getTokenLatency(endpoint, grantType).record(nanos);
+        countStatusCode(tokenStatusCodes, statusCode);
+    }
+
+    @Override
+    public void tokenRequestFailed(String endpoint, String grantType, long nanos) {
+        tokenRequestFailures.increment();
+    }
+
+    @Override
+    public void authSchemeFallback(String endpoint, String grantType, ClientAuthScheme scheme) {
+        authSchemeFallbacks.increment();
+    }
+
+    @Override
+    public void resourceRequest(String url, int statusCode, long nanos) {
+        resourceLatency.record(nanos);
+        countStatusCode(resourceStatusCodes, statusCode);
+    }
+
+    @Override
+    public void resourceRequestFailed(String url, long nanos) {
+        resourceRequestFailures.increment();
+    }
+
+    @Override
+    public void resourceReplay() {
+        resourceReplays.increment();
+    }
+
+    @Override
+    public void resourceReplayFailed() {
+        resourceReplayFailures.increment();
+    }
+
+    @Override
+    public void parse(String contentType, long nanos) {
+        Histogram histogram = parseTimes.get(contentType);
+
+        if (histogram == null) {
+            histogram = parseTimes.computeIfAbsent(contentType, key -> new Histogram());
+        }
+        histogram.record(nanos);
+    }
+
+    @Override
+    public void tokenCacheHit() {
+        cacheHits.increment();
+    }
+
+    @Override
+    public void tokenCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    @Override
+    public void tokenRefresh(long leadTime, boolean succeeded) {
+        refreshLeadTime.record(leadTime);
+
+        if (!succeeded) {
+            refreshFailures.increment();
+        }
+    }
+
+    @Override
+    public void refreshFallback() {
+        refreshFallbacks.increment();
+    }
+
+    @Override
+    public void tokenRequestThrottled(String endpoint, long retryAfter) {
+        tokenThrottles.increment();
+    }
+
+    /**
+     * @param endpoint The URL of the token endpoint.
+     * @param grantType The grant type.
+     * @return The latency of the token requests to the endpoint with the grant type.
+     */
+    public Histogram getTokenLatency(String endpoint, String grantType) {
+        ConcurrentMap<String, Histogram> byGrantType = tokenLatencies.get(endpoint);
+
+        if (byGrantType == null) {
+            byGrantType = tokenLatencies.computeIfAbsent(endpoint, key -> new ConcurrentHashMap<>());
+        }
+
+        Histogram histogram = byGrantType.get(grantType);
+
+        if (histogram == null) {
+            histogram = byGrantType.computeIfAbsent(grantType, key -> new Histogram());
+        }
+
+        return histogram;
+    }
+
+    /**
+     * @return The parsing time of the token responses, by content type.
+     */
+    public Map<String, Histogram> getParseTimes() {
+        return Collections.unmodifiableMap(parseTimes);
+    }
+
+    /**
+     * @return The latency of the requests to protected resources.
+     */
+    public Histogram getResourceLatency() {
+        return resourceLatency;
+    }
+
+    /**
+     * @return The remaining validity of the tokens when they were refreshed in background.
+     */
+    public Histogram getRefreshLeadTime() {
+        return refreshLeadTime;
+    }
+
+    /**
+     * @param statusCode
+     * @return The number of responses of the token endpoints with the status code.
+     */
+    public long getTokenStatusCount(int statusCode) {
+        return (statusCode >= 0 && statusCode < MAX_STATUS_CODE) ? tokenStatusCodes.get(statusCode) : 0;
+    }
+
+    /**
+     * @param statusCode
+     * @return The number of responses of protected resources with the status code.
+     */
+    public long getResourceStatusCount(int statusCode) {
+        return (statusCode >= 0 && statusCode < MAX_STATUS_CODE) ? resourceStatusCodes.get(statusCode) : 0;
+    }
+
+    public long getTokenRequestFailures() {
+        return tokenRequestFailures.sum();
+    }
+
+    public long getResourceRequestFailures() {
+        return resourceRequestFailures.sum();
+    }
+
+    public long getAuthSchemeFallbacks() {
+        return authSchemeFallbacks.sum();
+    }
+
+    public long getRefreshFallbacks() {
+        return refreshFallbacks.sum();
+    }
+
+    public long getTokenThrottles() {
+        return tokenThrottles.sum();
+    }
+
+    public long getRefreshFailures() {
+        return refreshFailures.sum();
+    }
+
+    public long getResourceReplays() {
+        return resourceReplays.sum();
+    }
+
+    public long getResourceReplayFailures() {
+        return resourceReplayFailures.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    private static void countStatusCode(AtomicLongArray counts, int statusCode) {
+        if (statusCode >= 0 && statusCode < MAX_STATUS_CODE) {
+            counts.incrementAndGet(statusCode);
+        }
+    }
+}
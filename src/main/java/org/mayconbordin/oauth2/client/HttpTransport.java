@@ -0,0 +1,337 @@
+package org.mayconbordin.oauth2.client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The pooled HTTP clients used to talk to the OAuth2 provider and to the resource
+ * servers, configured from the transport settings of an {@link OAuth2Config}.
+ *
+ * <p>The blocking client is created with the transport, the asynchronous one on
+ * first use. Both are thread-safe and closed together with the transport.</p>
+ *
+ * <p>Expired and idle connections of both pools are evicted by a single thread
+ * shared by all the transports, which stops evicting once a transport is closed
+ * or garbage collected. The asynchronous client still runs its own I/O threads,
+ * so a transport must be closed when it is no longer used, see
+ * {@link OAuth2Client#close()}.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class HttpTransport implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(HttpTransport.class);
+
+    private static final ScheduledThreadPoolExecutor evictor = createEvictor();
+
+    private final OAuth2Config config;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private volatile PoolingNHttpClientConnectionManager asyncConnectionManager;
+    private volatile CloseableHttpAsyncClient httpAsyncClient;
+    private final ResourceCache resourceCache;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile boolean closed;
+
+    /**
+     * Create a transport with the settings of the given configuration.
+     *
+     * @param config
+     */
+    public HttpTransport(OAuth2Config config) {
+        this.config = config;
+        this.connectionManager = createConnectionManager(config);
+        this.httpClient = createHttpClient(config, connectionManager);
+        this.resourceCache = createResourceCache(config);
+
+        long idleTime = config.getIdleConnectionTimeout();
+        scheduleEviction(new WeakReference<>(this), (idleTime > 0) ? idleTime : OAuth2Config.DEFAULT_IDLE_CONNECTION_TIMEOUT);
+    }
+
+    /**
+     * Create a transport with existing HTTP clients, whose connections are not
+     * evicted by the transport.
+     *
+     * @param httpClient The blocking HTTP client.
+     * @param httpAsyncClient The asynchronous HTTP client, may be null to create
+     *                        one with the default settings on first use.
+     */
+    public HttpTransport(CloseableHttpClient httpClient, CloseableHttpAsyncClient httpAsyncClient) {
+        this(defaultConfig(), httpClient, httpAsyncClient);
+    }
+
+    /**
+     * Create a transport with existing HTTP clients, whose connections are not
+     * evicted by the transport, and the request settings of the given configuration:
+     * its metrics, resilience policy, executor and resource cache.
+     *
+     * @param config The configuration of the requests.
+     * @param httpClient The blocking HTTP client.
+     * @param httpAsyncClient The asynchronous HTTP client, may be null to create
+     *                        one with the settings of the configuration on first use.
+     */
+    public HttpTransport(OAuth2Config config, CloseableHttpClient httpClient, CloseableHttpAsyncClient httpAsyncClient) {
+        this.config = config;
+        this.connectionManager = null;
+        this.httpClient = httpClient;
+        this.httpAsyncClient = httpAsyncClient;
+        this.resourceCache = createResourceCache(config);
+    }
+
+    /**
+     * @return A transport with the default settings.
+     */
+    public static HttpTransport createDefault() {
+        return new HttpTransport(defaultConfig());
+    }
+
+    /**
+     * @return The listener of the requests made through the transport.
+     */
+    public OAuth2Metrics getMetrics() {
+        return config.getMetrics();
+    }
+
+    /**
+     * @return Maximum number of requests of a batch executed at the same time.
+     */
+    public int getMaxConcurrentResources() {
+        return config.getMaxConcurrentResources();
+    }
+
+    /**
+     * @return The retry and circuit breaker settings of the requests.
+     */
+    public ResiliencePolicy getResiliencePolicy() {
+        return config.getResiliencePolicy();
+    }
+
+    /**
+     * @return The executor of the blocking requests made asynchronously, or null
+     *         to use the asynchronous HTTP client.
+     */
+    public Executor getExecutor() {
+        return config.getExecutor();
+    }
+
+    /**
+     * @return The cache of the protected resources fetched through the transport,
+     *         or null if they are not cached.
+     */
+    public ResourceCache getResourceCache() {
+        return resourceCache;
+    }
+
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public CloseableHttpAsyncClient getHttpAsyncClient() {
+        CloseableHttpAsyncClient client = httpAsyncClient;
+
+        if (client == null) {
+            lock.lock();
+            try {
+                client = httpAsyncClient;
+
+                if (client == null) {
+                    PoolingNHttpClientConnectionManager manager = createAsyncConnectionManager(config);
+                    httpAsyncClient = client = createHttpAsyncClient(config, manager);
+                    asyncConnectionManager = manager;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        if (!client.isRunning()) {
+            client.start();
+        }
+
+        return client;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing the HTTP client: " + e.getMessage());
+        }
+
+        if (httpAsyncClient != null) {
+            try {
+                httpAsyncClient.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing the asynchronous HTTP client: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return The pool of connections of the blocking client, or null if the
+     *         client was not created by the transport.
+     */
+    PoolingHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * @return The pool of connections of the asynchronous client, or null if the
+     *         client was not created by the transport yet.
+     */
+    PoolingNHttpClientConnectionManager getAsyncConnectionManager() {
+        return asyncConnectionManager;
+    }
+
+    /**
+     * Close the expired connections, and those idle for longer than the
+     * configured timeout, of both clients.
+     *
+     * @return False if the transport is closed.
+     */
+    boolean evictIdleConnections() {
+        if (closed) {
+            return false;
+        }
+
+        long idleTime = config.getIdleConnectionTimeout();
+        PoolingNHttpClientConnectionManager asyncManager = asyncConnectionManager;
+
+        connectionManager.closeExpiredConnections();
+        if (idleTime > 0) {
+            connectionManager.closeIdleConnections(idleTime, TimeUnit.MILLISECONDS);
+        }
+
+        if (asyncManager != null) {
+            asyncManager.closeExpiredConnections();
+            if (idleTime > 0) {
+                asyncManager.closeIdleConnections(idleTime, TimeUnit.MILLISECONDS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The evictor is static, so the task only holds a weak reference to the
+     * transport, otherwise a transport that is never closed would never be collected.
+     */
+    private static void scheduleEviction(WeakReference<HttpTransport> ref, long interval) {
+        evictor.schedule(() -> {
+            HttpTransport transport = ref.get();
+
+            if (transport != null && transport.evictIdleConnections()) {
+                scheduleEviction(ref, interval);
+            }
+        }, interval, TimeUnit.MILLISECONDS);
+    }
+
+    protected static PoolingHttpClientConnectionManager createConnectionManager(OAuth2Config config) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(config.getMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(config.getMaxConnectionsPerRoute());
+        connectionManager.setValidateAfterInactivity(config.getValidateAfterInactivity());
+        return connectionManager;
+    }
+
+    protected static CloseableHttpClient createHttpClient(OAuth2Config config, PoolingHttpClientConnectionManager connectionManager) {
+        // idle connections are evicted by the shared evictor, not by a thread per client
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(createRequestConfig(config))
+                .setKeepAliveStrategy(createKeepAliveStrategy(config))
+                // retries are made by OAuth2Utils, according to the resilience policy
+                .disableAutomaticRetries()
+                .build();
+    }
+
+    protected static PoolingNHttpClientConnectionManager createAsyncConnectionManager(OAuth2Config config) {
+        IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(config.getIoThreads())
+                .setConnectTimeout(config.getConnectTimeout())
+                .setSoTimeout(config.getSocketTimeout())
+                .build();
+
+        try {
+            PoolingNHttpClientConnectionManager connectionManager =
+                    new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig));
+            connectionManager.setMaxTotal(config.getMaxConnections());
+            connectionManager.setDefaultMaxPerRoute(config.getMaxConnectionsPerRoute());
+            return connectionManager;
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("Unable to create the I/O reactor: " + e.getMessage(), e);
+        }
+    }
+
+    protected static CloseableHttpAsyncClient createHttpAsyncClient(OAuth2Config config, PoolingNHttpClientConnectionManager connectionManager) {
+        return HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(createRequestConfig(config))
+                .setKeepAliveStrategy(createKeepAliveStrategy(config))
+                .build();
+    }
+
+    protected static ResourceCache createResourceCache(OAuth2Config config) {
+        return (config.getResourceCacheSize() > 0) ? new ResourceCache(config.getResourceCacheSize()) : null;
+    }
+
+    protected static RequestConfig createRequestConfig(OAuth2Config config) {
+        return RequestConfig.custom()
+                .setConnectTimeout(config.getConnectTimeout())
+                .setSocketTimeout(config.getSocketTimeout())
+                .setConnectionRequestTimeout(config.getConnectionRequestTimeout())
+                .build();
+    }
+
+    /**
+     * Keep connections alive for as long as the server allows, up to the
+     * configured keep-alive time.
+     */
+    protected static ConnectionKeepAliveStrategy createKeepAliveStrategy(final OAuth2Config config) {
+        return new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                long max = config.getKeepAliveTime();
+
+                if (max <= 0) {
+                    return duration;
+                }
+
+                return (duration <= 0) ? max : Math.min(duration, max);
+            }
+        };
+    }
+
+    private static ScheduledThreadPoolExecutor createEvictor() {
+        return new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("oauth2-idle-connections-%d").build());
+    }
+
+    private static OAuth2Config defaultConfig() {
+        return new OAuth2Config.Builder(null, null, null).build();
+    }
+}
@@ -0,0 +1,14 @@
+package org.mayconbordin.oauth2.client;
+
+/**
+ * Thrown when the signature of a JWT can't be verified.
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class InvalidTokenException extends OAuth2Exception {
+
+    public InvalidTokenException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,304 @@
+package org.mayconbordin.oauth2.client;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.KeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A public key of a JSON Web Key Set (RFC 7517), used to verify the signature
+ * of JWTs with one of the RS256, RS384, RS512, ES256, ES384 or ES512 algorithms.
+ *
+ * <p>A key without an {@code alg} member verifies any algorithm of its type, the
+ * one named by the header of the token: an RSA key any of the RS algorithms, and an
+ * EC key the ES algorithm of its curve.</p>
+ *
+ * <p>The key is parsed once, and the {@link Signature} objects that verify with
+ * it are initialized once per algorithm and then pooled, so a verification only
+ * hashes the token and checks the signature.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class JsonWebKey {
+    private static final Logger LOG = LoggerFactory.getLogger(JsonWebKey.class);
+
+    private static final int MAX_POOLED_VERIFIERS = 16;
+
+    private final String kid;
+    private final String type;
+    private final String algorithm;
+    private final PublicKey publicKey;
+    private final Map<String, BlockingQueue<Signature>> verifiers = new ConcurrentHashMap<>();
+
+    private JsonWebKey(String kid, String type, String algorithm, PublicKey publicKey) throws GeneralSecurityException {
+        this.kid = kid;
+        this.type = type;
+        this.algorithm = algorithm;
+        this.publicKey = publicKey;
+
+        // fails now if the key does not fit the algorithm
+        String checked = (algorithm != null) ? algorithm : "RS256";
+        pool(checked).offer(createVerifier(checked));
+    }
+
+    /**
+     * Parse a key of a key set.
+     *
+     * @param map The members of the key.
+     * @return The key, or null if it is not a public signing key of a supported type.
+     */
+    public static JsonWebKey parse(Map<?, ?> map) {
+        String kty = asString(map.get("kty"));
+        String use = asString(map.get("use"));
+        String alg = asString(map.get("alg"));
+        String kid = asString(map.get("kid"));
+
+        if (use != null && !"sig".equals(use)) {
+            return null;
+        }
+
+        try {
+            if ("RSA".equals(kty)) {
+                if (alg != null && (!isSupported(alg) || !alg.startsWith("RS"))) {
+                    return null;
+                }
+
+                KeySpec spec = new RSAPublicKeySpec(decodeInteger(map.get("n")), decodeInteger(map.get("e")));
+                return new JsonWebKey(kid, kty, alg, KeyFactory.getInstance("RSA").generatePublic(spec));
+            }
+
+            if ("EC".equals(kty)) {
+                String curve = asString(map.get("crv"));
+                String expected = toAlgorithm(curve);
+
+                if (expected == null || (alg != null && !alg.equals(expected))) {
+                    return null;
+                }
+
+                AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+                parameters.init(new ECGenParameterSpec(toStandardName(curve)));
+                ECPoint point = new ECPoint(decodeInteger(map.get("x")), decodeInteger(map.get("y")));
+                KeySpec spec = new ECPublicKeySpec(point, parameters.getParameterSpec(ECParameterSpec.class));
+                return new JsonWebKey(kid, kty, expected, KeyFactory.getInstance("EC").generatePublic(spec));
+            }
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            LOG.warn("Invalid JSON web key " + kid + ": " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * @param algorithm The {@code alg} of a JWS header.
+     * @return True if keys for the algorithm are supported.
+     */
+    public static boolean isSupported(String algorithm) {
+        return algorithm != null && algorithm.matches("(RS|ES)(256|384|512)");
+    }
+
+    /**
+     * @return The key id, or null if the key has none.
+     */
+    public String getKid() {
+        return kid;
+    }
+
+    /**
+     * @return The type of the key, RSA or EC.
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return The JWS algorithm the key verifies, e.g. RS256, or null if it
+     *         verifies any of the RS algorithms.
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @param algorithm The {@code alg} of a JWS header.
+     * @return True if the key verifies tokens signed with the algorithm.
+     */
+    public boolean accepts(String algorithm) {
+        if (this.algorithm != null) {
+            return this.algorithm.equals(algorithm);
+        }
+        return isSupported(algorithm) && algorithm.startsWith("RS");
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * Verify a JWS signature.
+     *
+     * @param algorithm The {@code alg} of the header of the token.
+     * @param signingInput The encoded header and payload of the token, with the dot between them.
+     * @param signature The decoded signature of the token.
+     * @return True if the key accepts the algorithm and the signature is valid.
+     */
+    public boolean verify(String algorithm, byte[] signingInput, byte[] signature) {
+        if (!accepts(algorithm)) {
+            return false;
+        }
+
+        if (algorithm.startsWith("ES")) {
+            signature = toDer(signature, ecSize(algorithm));
+
+            if (signature == null) {
+                return false;
+            }
+        }
+
+        BlockingQueue<Signature> pool = pool(algorithm);
+        Signature verifier = pool.poll();
+
+        try {
+            if (verifier == null) {
+                verifier = createVerifier(algorithm);
+            }
+
+            verifier.update(signingInput);
+            boolean valid = verifier.verify(signature);
+
+            // verify() resets the object to its state after initVerify()
+            pool.offer(verifier);
+            return valid;
+        } catch (SignatureException e) {
+            return false;
+        } catch (GeneralSecurityException e) {
+            LOG.error("Signature error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private BlockingQueue<Signature> pool(String algorithm) {
+        return verifiers.computeIfAbsent(algorithm, a -> new ArrayBlockingQueue<>(MAX_POOLED_VERIFIERS));
+    }
+
+    private Signature createVerifier(String algorithm) throws GeneralSecurityException {
+        Signature verifier = Signature.getInstance(toJcaAlgorithm(algorithm));
+        verifier.initVerify(publicKey);
+        return verifier;
+    }
+
+    private static String toJcaAlgorithm(String algorithm) {
+        String hash = "SHA" + algorithm.substring(2);
+        return hash + (algorithm.startsWith("ES") ? "withECDSA" : "withRSA");
+    }
+
+    private static String toAlgorithm(String curve) {
+        if ("P-256".equals(curve)) return "ES256";
+        if ("P-384".equals(curve)) return "ES384";
+        if ("P-521".equals(curve)) return "ES512";
+        return null;
+    }
+
+    private static String toStandardName(String curve) {
+        return "secp" + curve.substring(2) + "r1";
+    }
+
+    private static int ecSize(String algorithm) {
+        switch (algorithm) {
+            case "ES256": return 32;
+            case "ES384": return 48;
+            default:      return 66;
+        }
+    }
+
+    /**
+     * Convert a JWS ECDSA signature, the concatenation of R and S, to the DER
+     * sequence expected by the JCA.
+     *
+     * @return The DER signature, or null if the signature has the wrong size.
+     */
+    static byte[] toDer(byte[] signature, int size) {
+        if (signature.length != size * 2) {
+            return null;
+        }
+
+        byte[] r = toDerInteger(signature, 0, size);
+        byte[] s = toDerInteger(signature, size, size);
+        int length = r.length + s.length;
+        int header = (length < 128) ? 2 : 3;
+
+        byte[] der = new byte[header + length];
+        der[0] = 0x30;
+        if (length < 128) {
+            der[1] = (byte) length;
+        } else {
+            der[1] = (byte) 0x81;
+            der[2] = (byte) length;
+        }
+        System.arraycopy(r, 0, der, header, r.length);
+        System.arraycopy(s, 0, der, header + r.length, s.length);
+        return der;
+    }
+
+    private static byte[] toDerInteger(byte[] bytes, int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+
+        while (start < end - 1 && bytes[start] == 0) {
+            start++;
+        }
+
+        // a leading zero keeps the integer positive
+        int pad = (bytes[start] < 0) ? 1 : 0;
+        int size = end - start + pad;
+
+        byte[] der = new byte[2 + size];
+        der[0] = 0x02;
+        der[1] = (byte) size;
+        System.arraycopy(bytes, start, der, 2 + pad, end - start);
+        return der;
+    }
+
+    private static BigInteger decodeInteger(Object value) {
+        String s = asString(value);
+
+        if (s == null) {
+            throw new IllegalArgumentException("missing key parameter");
+        }
+
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) == '=') {
+            end--;
+        }
+
+        byte[] bytes = JwtClaims.decode(s, 0, end);
+
+        if (bytes == null) {
+            throw new IllegalArgumentException("key parameter is not base64url");
+        }
+        return new BigInteger(1, bytes);
+    }
+
+    private static String asString(Object value) {
+        return (value instanceof String) ? (String) value : null;
+    }
+
+    @Override
+    public String toString() {
+        return "JsonWebKey{" + "kid=" + kid + ", type=" + type + ", algorithm=" + algorithm + '}';
+    }
+}
@@ -0,0 +1,253 @@
+package org.mayconbordin.oauth2.client;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The signing keys of an authorization server, fetched from its JSON Web Key
+ * Set through an {@link HttpTransport} and cached by key id, to verify the
+ * signature of JWTs without calling the server.
+ *
+ * <p>Keys are used for {@link OAuth2Config#getJwksTtl()}. When three quarters
+ * of that time have passed they are refreshed in background, so lookups only
+ * wait for the first fetch. A token signed with an unknown key, as after a key
+ * rotation, makes the set be fetched again, at most once per
+ * {@link OAuth2Config#getJwksMinRefetchInterval()}, so tokens with made up key
+ * ids can't flood the server. Concurrent fetches are coalesced, and when a
+ * fetch fails the keys at hand keep being used.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class JwksCache {
+    private static final Logger LOG = LoggerFactory.getLogger(JwksCache.class);
+
+    private final String url;
+    private final long ttl;
+    private final long minRefetchInterval;
+    private final HttpTransport transport;
+    private final SingleFlight<String, KeySet> fetches = new SingleFlight<>();
+
+    private final AtomicLong refreshAt = new AtomicLong();
+    private final AtomicLong lastFetch = new AtomicLong();
+    private volatile KeySet keys;
+
+    /**
+     * Create a cache of the key set with the default times.
+     *
+     * @param url The URL of the key set.
+     * @param transport The transport for the requests, null for the default transport.
+     */
+    public JwksCache(String url, HttpTransport transport) {
+        this(url, OAuth2Config.DEFAULT_JWKS_TTL, OAuth2Config.DEFAULT_JWKS_MIN_REFETCH_INTERVAL, transport);
+    }
+
+    /**
+     * Create a cache of the key set of a configuration.
+     *
+     * @param config The configuration with the URL of the key set and the cache times.
+     * @param transport The transport for the requests, null for the default transport.
+     */
+    public JwksCache(OAuth2Config config, HttpTransport transport) {
+        this(config.getUrlJwks(), config.getJwksTtl(), config.getJwksMinRefetchInterval(), transport);
+    }
+
+    /**
+     * Create a cache of the key set.
+     *
+     * @param url The URL of the key set.
+     * @param ttl Time the fetched keys are used, in milliseconds.
+     * @param minRefetchInterval Shortest time between two fetches caused by unknown keys, in milliseconds.
+     * @param transport The transport for the requests, null for the default transport.
+     */
+    public JwksCache(String url, long ttl, long minRefetchInterval, HttpTransport transport) {
+        this.url = url;
+        this.ttl = ttl;
+        this.minRefetchInterval = minRefetchInterval;
+        this.transport = transport;
+    }
+
+    /**
+     * Verify the signature of a JWT with the key named in its header.
+     *
+     * <p>Only the signature is checked, the claims, such as the expiration and
+     * the audience, are left to the caller.</p>
+     *
+     * @param token The token.
+     * @return The claims of the token.
+     * @throws InvalidTokenException If the token is not a JWT, is signed with an
+     *         unsupported algorithm or an unknown key, or the signature is not valid.
+     * @throws OAuth2Exception If the keys could not be fetched.
+     */
+    public JwtClaims verify(String token) throws OAuth2Exception {
+        JwtClaims claims = JwtClaims.of(token);
+
+        if (claims == null) {
+            throw new InvalidTokenException("The token is not a JWT.");
+        }
+
+        Object alg = claims.getHeader().get("alg");
+        Object kid = claims.getHeader().get("kid");
+
+        // also rejects "none" and the HMAC algorithms, which take no public key
+        if (!(alg instanceof String) || !JsonWebKey.isSupported((String) alg)) {
+            throw new InvalidTokenException("Unsupported signature algorithm: " + alg);
+        }
+
+        JsonWebKey key = getKey((kid instanceof String) ? (String) kid : null, (String) alg);
+
+        if (key == null) {
+            throw new InvalidTokenException("No key found for the token, kid: " + kid);
+        }
+
+        byte[] signature = claims.getSignature();
+
+        if (signature == null || !key.verify((String) alg, claims.getSigningInput(), signature)) {
+            throw new InvalidTokenException("The signature of the token is not valid.");
+        }
+        return claims;
+    }
+
+    /**
+     * Get a signing key, fetching the key set if it was not fetched yet, or
+     * again if the key is unknown.
+     *
+     * @param kid The key id, or null for the first key of the algorithm.
+     * @param algorithm The JWS algorithm the key must verify.
+     * @return The key, or null if the set has no such key.
+     * @throws OAuth2Exception If the keys could not be fetched and none are at hand.
+     */
+    public JsonWebKey getKey(String kid, String algorithm) throws OAuth2Exception {
+        long now = System.currentTimeMillis();
+        KeySet set = keys;
+
+        if (set == null || now >= set.expiresAt) {
+            set = load(set);
+        } else {
+            long at = refreshAt.get();
+
+            if (now >= at && refreshAt.compareAndSet(at, now + minRefetchInterval)) {
+                refreshInBackground();
+            }
+        }
+
+        JsonWebKey key = set.find(kid, algorithm);
+
+        if (key == null) {
+            long last = lastFetch.get();
+
+            if (now - last >= minRefetchInterval && lastFetch.compareAndSet(last, now)) {
+                LOG.info("Unknown signing key " + kid + ", fetching the keys of " + url);
+                key = load(set).find(kid, algorithm);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Fetch the keys now, e.g. to have them before the first token arrives.
+     *
+     * @throws OAuth2Exception If the keys could not be fetched.
+     */
+    public void refresh() throws OAuth2Exception {
+        fetch();
+    }
+
+    /**
+     * @return The keys at hand, empty if they were not fetched yet.
+     */
+    public List<JsonWebKey> getKeys() {
+        KeySet set = keys;
+        return (set != null) ? set.keys : Collections.<JsonWebKey>emptyList();
+    }
+
+    /**
+     * @return The number of requests made to the key set.
+     */
+    public long getFetchCount() {
+        return fetches.getExecutedCount();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Fetch the keys, keeping the given ones for a while if the fetch fails.
+     */
+    private KeySet load(KeySet current) throws OAuth2Exception {
+        try {
+            return fetch();
+        } catch (OAuth2Exception e) {
+            if (current == null) {
+                throw e;
+            }
+
+            LOG.warn("Error fetching the keys of " + url + ", using the previous ones: " + e.getMessage());
+            KeySet stale = new KeySet(current.keys, System.currentTimeMillis() + minRefetchInterval);
+            keys = stale;
+            return stale;
+        }
+    }
+
+    private KeySet fetch() throws OAuth2Exception {
+        if (url == null) {
+            throw new OAuth2Exception("The configuration has no JWKS endpoint.");
+        }
+        return fetches.execute(url, () -> store(OAuth2Utils.getJsonWebKeys(url, transport)));
+    }
+
+    private void refreshInBackground() {
+        fetches.executeAsync(url, () -> OAuth2Utils.getJsonWebKeysAsync(url, transport).thenApply(this::store))
+                .whenComplete((set, error) -> {
+                    if (error != null) {
+                        LOG.warn("Error refreshing the keys of " + url + ": " + error.getMessage());
+                    }
+                });
+    }
+
+    private KeySet store(List<JsonWebKey> fetched) {
+        long now = System.currentTimeMillis();
+        KeySet set = new KeySet(Collections.unmodifiableList(fetched), now + ttl);
+
+        keys = set;
+        refreshAt.set(now + ttl - ttl / 4);
+        lastFetch.set(now);
+        return set;
+    }
+
+    private static class KeySet {
+        final List<JsonWebKey> keys;
+        final Map<String, JsonWebKey> byKid = new HashMap<>();
+        final long expiresAt;
+
+        KeySet(List<JsonWebKey> keys, long expiresAt) {
+            this.keys = keys;
+            this.expiresAt = expiresAt;
+
+            for (JsonWebKey key : keys) {
+                if (key.getKid() != null) {
+                    byKid.putIfAbsent(key.getKid(), key);
+                }
+            }
+        }
+
+        JsonWebKey find(String kid, String algorithm) {
+            if (kid != null) {
+                JsonWebKey key = byKid.get(kid);
+                return (key != null && key.accepts(algorithm)) ? key : null;
+            }
+
+            for (JsonWebKey key : keys) {
+                if (key.accepts(algorithm)) {
+                    return key;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package org.mayconbordin.oauth2.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * The claims of an access token issued as a JSON Web Token (RFC 9068), read
+ * locally from the token without verifying its signature.
+ *
+ * <p>Nothing is decoded until a claim is read. Then the payload is decoded from
+ * the token string straight into a byte array, and scanned once for the
+ * {@code exp}, {@code iat}, {@code sub} and {@code scope} claims, which are
+ * only turned into values when asked for. The other claims are parsed into a
+ * map on the first call to {@link #asMap()}.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class JwtClaims {
+    private static final byte[] EXP_NAME = bytes("exp");
+    private static final byte[] IAT_NAME = bytes("iat");
+    private static final byte[] SUB_NAME = bytes("sub");
+    private static final byte[] SCOPE_NAME = bytes("scope");
+
+    private static final byte[] BASE64URL = new byte[128];
+
+    static {
+        Arrays.fill(BASE64URL, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64URL[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final String token;
+    private final int payloadStart;
+    private final int payloadEnd;
+
+    private volatile Payload payload;
+    private volatile Map<String, Object> claims;
+    private volatile Map<String, Object> header;
+
+    private JwtClaims(String token, int payloadStart, int payloadEnd) {
+        this.token = token;
+        this.payloadStart = payloadStart;
+        this.payloadEnd = payloadEnd;
+    }
+
+    /**
+     * Check whether a token has the shape of a JWT, without decoding it.
+     *
+     * @param token The access token.
+     * @return The lazily decoded claims of the token, or null if it is not a JWT.
+     */
+    public static JwtClaims of(String token) {
+        // a JWS in compact form, whose header is a JSON object, encoded as "eyJ..."
+        if (token == null || !token.startsWith("eyJ")) {
+            return null;
+        }
+
+        int first = token.indexOf('.');
+        int second = (first < 0) ? -1 : token.indexOf('.', first + 1);
+
+        if (second < 0 || token.indexOf('.', second + 1) >= 0 || second == first + 1) {
+            return null;
+        }
+        return new JwtClaims(token, first + 1, second);
+    }
+
+    /**
+     * @return The expiration time, in seconds since the epoch, or zero if absent.
+     */
+    public long getExpiration() {
+        return getPayload().exp;
+    }
+
+    /**
+     * @return The time the token was issued, in seconds since the epoch, or zero if absent.
+     */
+    public long getIssuedAt() {
+        return getPayload().iat;
+    }
+
+    /**
+     * @return The subject of the token, or null if absent.
+     */
+    public String getSubject() {
+        return getPayload().getString(Payload.SUB);
+    }
+
+    /**
+     * @return The space separated scopes of the token, or null if absent.
+     */
+    public String getScope() {
+        return getPayload().getString(Payload.SCOPE);
+    }
+
+    /**
+     * @return True if the payload is a JSON object that could be decoded.
+     */
+    public boolean isValid() {
+        return getPayload().valid;
+    }
+
+    /**
+     * @return All the claims of the token, empty if the payload could not be parsed.
+     */
+    public Map<String, Object> asMap() {
+        Map<String, Object> map = claims;
+
+        if (map == null) {
+            Payload p = getPayload();
+
+            try {
+                map = p.valid ? ContentHandler.handleJsonResponse(new String(p.bytes, StandardCharsets.UTF_8)) : null;
+            } catch (ParseErrorException | ClassCastException e) {
+                map = null;
+            }
+
+            claims = map = (map != null) ? Collections.unmodifiableMap(map) : Collections.<String, Object>emptyMap();
+        }
+        return map;
+    }
+
+    /**
+     * @return The members of the JOSE header of the token, such as {@code alg}
+     *         and {@code kid}, empty if the header could not be parsed.
+     */
+    public Map<String, Object> getHeader() {
+        Map<String, Object> map = header;
+
+        if (map == null) {
+            byte[] bytes = decode(token, 0, payloadStart - 1);
+
+            try {
+                map = (bytes != null) ? ContentHandler.handleJsonResponse(new String(bytes, StandardCharsets.UTF_8)) : null;
+            } catch (ParseErrorException | ClassCastException e) {
+                map = null;
+            }
+
+            header = map = (map != null) ? Collections.unmodifiableMap(map) : Collections.<String, Object>emptyMap();
+        }
+        return map;
+    }
+
+    /**
+     * @return The part of the token covered by the signature, the encoded header and payload.
+     */
+    byte[] getSigningInput() {
+        return token.substring(0, payloadEnd).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return The decoded signature, or null if it is not base64url.
+     */
+    byte[] getSignature() {
+        return decode(token, payloadEnd + 1, token.length());
+    }
+
+    private Payload getPayload() {
+        Payload p = payload;
+
+        if (p == null) {
+            // decoding twice in a race is harmless, the result is the same
+            payload = p = new Payload(decode(token, payloadStart, payloadEnd));
+        }
+        return p;
+    }
+
+    /**
+     * Decode base64url without padding from a region of a string.
+     *
+     * @return The decoded bytes, or null if the region is not base64url.
+     */
+    static byte[] decode(String s, int start, int end) {
+        int length = end - start;
+
+        if (length % 4 == 1) {
+            return null;
+        }
+
+        byte[] out = new byte[length / 4 * 3 + Math.max(0, length % 4 - 1)];
+        int bits = 0, count = 0, pos = 0;
+
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            int value = (c < 128) ? BASE64URL[c] : -1;
+
+            if (value < 0) {
+                return null;
+            }
+
+            bits = (bits << 6) | value;
+            count += 6;
+
+            if (count >= 8) {
+                count -= 8;
+                out[pos++] = (byte) (bits >> count);
+            }
+        }
+        return out;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The decoded payload, with the position of the value of each known claim.
+     */
+    private static class Payload {
+        static final int EXP = 0, IAT = 1, SUB = 2, SCOPE = 3;
+
+        final byte[] bytes;
+        final int[] offsets = {-1, -1, -1, -1};
+        final boolean valid;
+        // read on every expiration check, so parsed once
+        final long exp;
+        final long iat;
+
+        Payload(byte[] bytes) {
+            this.bytes = bytes;
+            this.valid = (bytes != null) && scan();
+
+            if (!valid) {
+                Arrays.fill(offsets, -1);
+            }
+
+            this.exp = getLong(EXP);
+            this.iat = getLong(IAT);
+        }
+
+        private long getLong(int claim) {
+            int offset = offsets[claim];
+
+            if (offset < 0) {
+                return 0;
+            }
+
+            int end = skipValue(offset);
+            String number = new String(bytes, offset, end - offset, StandardCharsets.US_ASCII);
+
+            try {
+                return Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                try {
+                    return (long) Double.parseDouble(number);
+                } catch (NumberFormatException ex) {
+                    return 0;
+                }
+            }
+        }
+
+        String getString(int claim) {
+            int offset = offsets[claim];
+
+            if (offset < 0) {
+                return null;
+            }
+
+            if (bytes[offset] == '"') {
+                return readString(offset);
+            }
+
+            // some servers send the scopes as an array of strings
+            if (bytes[offset] == '[') {
+                StringBuilder sb = new StringBuilder();
+                int i = skipWhitespace(offset + 1);
+
+                while (i < bytes.length && bytes[i] == '"') {
+                    if (sb.length() > 0) {
+                        sb.append(' ');
+                    }
+                    sb.append(readString(i));
+                    i = skipWhitespace(skipValue(i));
+                    i = (i < bytes.length && bytes[i] == ',') ? skipWhitespace(i + 1) : i;
+                }
+                return sb.toString();
+            }
+            return null;
+        }
+
+        /**
+         * Find the values of the known claims among the members of the top level object.
+         */
+        private boolean scan() {
+            int i = skipWhitespace(0);
+
+            if (i >= bytes.length || bytes[i] != '{') {
+                return false;
+            }
+
+            i = skipWhitespace(i + 1);
+
+            if (i < bytes.length && bytes[i] == '}') {
+                return true;
+            }
+
+            while (i < bytes.length && bytes[i] == '"') {
+                int keyEnd = skipValue(i);
+                int claim = claimOf(i + 1, keyEnd - 1);
+
+                i = skipWhitespace(keyEnd);
+                if (i >= bytes.length || bytes[i] != ':') {
+                    return false;
+                }
+
+                i = skipWhitespace(i + 1);
+                if (claim >= 0 && offsets[claim] < 0) {
+                    offsets[claim] = i;
+                }
+
+                i = skipWhitespace(skipValue(i));
+                if (i >= bytes.length) {
+                    return false;
+                } else if (bytes[i] == '}') {
+                    return true;
+                } else if (bytes[i] != ',') {
+                    return false;
+                }
+                i = skipWhitespace(i + 1);
+            }
+            return false;
+        }
+
+        private int claimOf(int start, int end) {
+            if (matches(start, end, EXP_NAME)) return EXP;
+            if (matches(start, end, IAT_NAME)) return IAT;
+            if (matches(start, end, SUB_NAME)) return SUB;
+            if (matches(start, end, SCOPE_NAME)) return SCOPE;
+            return -1;
+        }
+
+        private boolean matches(int start, int end, byte[] name) {
+            if (end - start != name.length) {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (bytes[start + i] != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int skipWhitespace(int i) {
+            while (i < bytes.length && (bytes[i] == ' ' || bytes[i] == '\t' || bytes[i] == '\n' || bytes[i] == '\r')) {
+                i++;
+            }
+            return i;
+        }
+
+        /**
+         * @return The position after the value that starts at the given position.
+         */
+        private int skipValue(int i) {
+            if (i >= bytes.length) {
+                return i;
+            }
+
+            if (bytes[i] == '"') {
+                for (i++; i < bytes.length; i++) {
+                    if (bytes[i] == '\\') {
+                        i++;
+                    } else if (bytes[i] == '"') {
+                        return i + 1;
+                    }
+                }
+                return i;
+            }
+
+            if (bytes[i] == '{' || bytes[i] == '[') {
+                int depth = 0;
+
+                while (i < bytes.length) {
+                    byte b = bytes[i];
+
+                    if (b == '"') {
+                        i = skipValue(i);
+                        continue;
+                    }
+                    if (b == '{' || b == '[') {
+                        depth++;
+                    } else if ((b == '}' || b == ']') && --depth == 0) {
+                        return i + 1;
+                    }
+                    i++;
+                }
+                return i;
+            }
+
+            // number, true, false or null
+            while (i < bytes.length && bytes[i] != ',' && bytes[i] != '}' && bytes[i] != ']'
+                    && bytes[i] != ' ' && bytes[i] != '\t' && bytes[i] != '\n' && bytes[i] != '\r') {
+                i++;
+            }
+            return i;
+        }
+
+        private String readString(int start) {
+            int end = skipValue(start) - 1;
+            boolean escaped = false;
+
+            for (int i = start + 1; i < end; i++) {
+                if (bytes[i] == '\\') {
+                    escaped = true;
+                    break;
+                }
+            }
+
+            if (!escaped) {
+                return new String(bytes, start + 1, end - start - 1, StandardCharsets.UTF_8);
+            }
+
+            JSONParser parser = ContentHandler.getJsonParser();
+
+            try {
+                return (String) parser.parse(new String(bytes, start, end - start + 1, StandardCharsets.UTF_8));
+            } catch (ParseException | ClassCastException e) {
+                return null;
+            } finally {
+                ContentHandler.releaseJsonParser(parser);
+            }
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Token store backed by a memory-mapped local file.
+ *
+ * <p>The file is an append-only log of records, one per saved or removed token,
+ * that is replayed into memory when the store is opened, skipping the tokens that
+ * have already expired. Loads are served from memory and saves only append a
+ * record to the mapped file. When the file is full it is compacted, keeping only
+ * the tokens still valid, into a new file that atomically replaces the old one.</p>
+ *
+ * <p>If a key is given the records are encrypted with AES-GCM, otherwise the
+ * tokens are written in clear text. Either way the files of the store are created
+ * readable and writable only by their owner, where the file system supports POSIX
+ * permissions. Records that can't be decrypted with the key are ignored.</p>
+ *
+ * <p>A store holds an exclusive lock on a sibling file, named after the store with
+ * a {@code .lock} suffix, until it is closed, so a file is only opened by a single
+ * store at a time, in this or any other process. Share the store instance between
+ * the clients of a process.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class MappedFileTokenStore implements TokenStore, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFileTokenStore.class);
+
+    public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    private static final int MAGIC = 0x4f415432;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte RECORD_REMOVED = 0;
+    private static final byte RECORD_TOKEN = 1;
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+
+    /** The store files open in this JVM, which the file lock alone does not exclude. */
+    private static final Set<Path> OPEN_PATHS = ConcurrentHashMap.newKeySet();
+
+    private final Path path;
+    private final SecretKey key;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentMap<String, AccessToken> tokens = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Path lockPath;
+    private FileChannel lockChannel;
+    private FileLock fileLock;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    /**
+     * Open the store, creating the file if it does not exist.
+     *
+     * @param path The path to the file.
+     * @throws IOException If the file can't be opened, is not a token store or
+     *                     is already open by another store.
+     */
+    public MappedFileTokenStore(Path path) throws IOException {
+        this(path, null, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Open the store, creating the file if it does not exist.
+     *
+     * @param path The path to the file.
+     * @param key The AES key used to encrypt the tokens, null to write them in clear text.
+     * @throws IOException If the file can't be opened, is not a token store or
+     *                     is already open by another store.
+     */
+    public MappedFileTokenStore(Path path, SecretKey key) throws IOException {
+        this(path, key, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Open the store, creating the file if it does not exist.
+     *
+     * @param path The path to the file.
+     * @param key The AES key used to encrypt the tokens, null to write them in clear text.
+     * @param capacity The initial size of the file, in bytes.
+     * @throws IOException If the file can't be opened, is not a token store or
+     *                     is already open by another store.
+     */
+    public MappedFileTokenStore(Path path, SecretKey key, int capacity) throws IOException {
+        this.path = path.toAbsolutePath().normalize();
+        this.lockPath = this.path.resolveSibling(this.path.getFileName() + ".lock");
+        this.key = key;
+
+        lock();
+        try {
+            open(Math.max(capacity, HEADER_SIZE));
+        } catch (IOException e) {
+            unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public AccessToken load(OAuth2Config config) {
+        AccessToken token = tokens.get(TokenStore.keyOf(config));
+
+        if (token != null && token.isExpired()) {
+            return null;
+        }
+
+        return token;
+    }
+
+    @Override
+    public void save(OAuth2Config config, AccessToken token) throws IOException {
+        lock.lock();
+        try {
+            String id = TokenStore.keyOf(config);
+
+            append(encode(RECORD_TOKEN, id, token));
+            tokens.put(id, token);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(OAuth2Config config) throws IOException {
+        lock.lock();
+        try {
+            String id = TokenStore.keyOf(config);
+
+            if (tokens.remove(id) != null) {
+                append(encode(RECORD_REMOVED, id, null));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of tokens held by the store, including expired ones.
+     */
+    public int size() {
+        return tokens.size();
+    }
+
+    /**
+     * @return The size of the file, in bytes.
+     */
+    public int getCapacity() {
+        lock.lock();
+        try {
+            return buffer.capacity();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flush the file to the disk and close it.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            try {
+                buffer.force();
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing the token store: " + e.getMessage());
+            }
+            unlock();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the lock of the store. It is held on a file of its own because the
+     * store file is replaced when it is compacted.
+     *
+     * <p>A store already open in this JVM is refused before the lock file is
+     * opened, because closing any channel to it would release the lock held by
+     * that store.</p>
+     */
+    private void lock() throws IOException {
+        if (!OPEN_PATHS.add(path)) {
+            throw new IOException("Token store is already open by another store or process: " + path);
+        }
+
+        try {
+            lockChannel = FileChannel.open(lockPath, options(StandardOpenOption.CREATE, StandardOpenOption.WRITE),
+                    ownerOnly(lockPath));
+
+            try {
+                fileLock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                fileLock = null;
+            }
+
+            if (fileLock == null) {
+                throw new IOException("Token store is already open by another store or process: " + path);
+            }
+        } catch (IOException e) {
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+            OPEN_PATHS.remove(path);
+            throw e;
+        }
+    }
+
+    private void unlock() {
+        if (fileLock == null) {
+            return;
+        }
+
+        try {
+            fileLock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            LOG.warn("Error releasing the lock of the token store: " + e.getMessage());
+        } finally {
+            fileLock = null;
+            OPEN_PATHS.remove(path);
+        }
+    }
+
+    /**
+     * The tokens are in clear text unless a key is given, so the files of the
+     * store are created readable only by their owner where the file system
+     * supports POSIX permissions.
+     */
+    private static FileAttribute<?>[] ownerOnly(Path file) {
+        if (!file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return new FileAttribute<?>[0];
+        }
+
+        return new FileAttribute<?>[] {
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))
+        };
+    }
+
+    private static Set<OpenOption> options(OpenOption... options) {
+        return new HashSet<>(Arrays.asList(options));
+    }
+
+    private void open(int capacity) throws IOException {
+        channel = FileChannel.open(path, options(StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE), ownerOnly(path));
+
+        long size = channel.size();
+
+        if (size > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("Token store file is too large: " + path);
+        }
+
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, capacity));
+
+        if (size == 0) {
+            buffer.putInt(MAGIC).putInt(VERSION);
+            return;
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            channel.close();
+            throw new IOException("Not a token store file: " + path);
+        }
+
+        replay();
+    }
+
+    /**
+     * Read the records into memory, leaving the buffer positioned after the last one.
+     */
+    private void replay() {
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+
+            if (length <= 0 || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+
+            byte[] record = new byte[length];
+            buffer.get(record);
+
+            try {
+                decode(decrypt(record));
+            } catch (IOException e) {
+                LOG.warn("Ignoring unreadable token record: " + e.getMessage());
+            }
+        }
+
+        tokens.values().removeIf(AccessToken::isExpired);
+    }
+
+    private void append(byte[] record) throws IOException {
+        byte[] data = encrypt(record);
+
+        if (buffer.remaining() < 4 + data.length) {
+            compact(4 + data.length);
+        }
+
+        buffer.putInt(data.length).put(data);
+    }
+
+    /**
+     * Rewrite the file with the tokens that are still valid, growing it if more than
+     * half of it would be used, and atomically replace the current file with it.
+     */
+    private void compact(int extra) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        int size = HEADER_SIZE + extra;
+
+        for (Map.Entry<String, AccessToken> entry : tokens.entrySet()) {
+            if (entry.getValue().isExpired()) {
+                tokens.remove(entry.getKey(), entry.getValue());
+                continue;
+            }
+
+            byte[] data = encrypt(encode(RECORD_TOKEN, entry.getKey(), entry.getValue()));
+            records.add(data);
+            size += 4 + data.length;
+        }
+
+        int capacity = buffer.capacity();
+        while (capacity < 2L * size && capacity < Integer.MAX_VALUE / 2) {
+            capacity *= 2;
+        }
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        // a leftover file would keep its permissions, so the temp file is always created anew
+        Files.deleteIfExists(temp);
+
+        try (FileChannel out = FileChannel.open(temp, options(StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE), ownerOnly(temp))) {
+            MappedByteBuffer compacted = out.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            compacted.putInt(MAGIC).putInt(VERSION);
+
+            for (byte[] data : records) {
+                compacted.putInt(data.length).put(data);
+            }
+            compacted.force();
+        }
+
+        buffer.force();
+        channel.close();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        buffer.position(size - extra);
+    }
+
+    private static byte[] encode(byte type, String id, AccessToken token) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(type);
+        out.writeUTF(id);
+
+        if (type == RECORD_TOKEN) {
+            out.writeLong(token.getExpiresIn());
+            out.writeLong(token.getExpiresAt());
+            writeString(out, token.getTokenType());
+            writeString(out, token.getRefreshToken());
+            writeString(out, token.getAccessToken());
+            writeString(out, token.getScope());
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+        byte type = in.readByte();
+        String id = in.readUTF();
+
+        if (type == RECORD_REMOVED) {
+            tokens.remove(id);
+        } else if (type == RECORD_TOKEN) {
+            long expiresIn = in.readLong();
+            long expiresAt = in.readLong();
+            String tokenType = readString(in);
+            String refreshToken = readString(in);
+            String accessToken = readString(in);
+            String scope = readString(in);
+
+            tokens.put(id, new AccessToken(expiresIn, expiresAt, tokenType, refreshToken, accessToken, scope, null));
+        } else {
+            throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private byte[] encrypt(byte[] record) throws IOException {
+        if (key == null) {
+            return record;
+        }
+
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+
+            ByteBuffer data = ByteBuffer.allocate(IV_LENGTH + cipher.getOutputSize(record.length));
+            data.put(iv);
+            cipher.doFinal(ByteBuffer.wrap(record), data);
+            return data.array();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to encrypt the token record", e);
+        }
+    }
+
+    private byte[] decrypt(byte[] data) throws IOException {
+        if (key == null) {
+            return data;
+        }
+
+        if (data.length < IV_LENGTH) {
+            throw new IOException("Token record is too short");
+        }
+
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, data, 0, IV_LENGTH));
+            return cipher.doFinal(data, IV_LENGTH, data.length - IV_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt the token record", e);
+        }
+    }
+}
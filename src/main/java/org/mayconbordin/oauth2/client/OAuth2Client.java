@@ -1,100 +1,310 @@
-package org.mayconbordin.oauth2.client;
-
-/**
- * The OAuth2 client.
- * 
- * @author Maycon Bordin <mayconbordin@gmail.com>
- */
-public class OAuth2Client {
-    private final OAuth2Config config;
-    
-    private OAuth2Client(OAuth2Config config) {
-        this.config = config;
-    }
-
-    /**
-     * @return The configuration of the client.
-     */
-    public OAuth2Config getConfig() {
-        return config;
-    }
-
-    /**
-     * Get a new access token.
-     * 
-     * @return
-     * @throws OAuth2Exception 
-     */
-    public AccessToken getAccessToken() throws OAuth2Exception {
-        return OAuth2Utils.getAccessToken(config);
-    }
-    
-    /**
-     * Create a client with client credentials grant type.
-     * 
-     * @param clientId
-     * @param clientSecret
-     * @param urlAccessToken
-     * @return 
-     */
-    public static OAuth2Client withClientCredentialsGrant(String clientId,
-            String clientSecret, String urlAccessToken) {
-        return withClientCredentialsGrant(clientId, clientSecret, null, urlAccessToken);
-    }
-    
-    /**
-     * Create a client with client credentials grant type.
-     * 
-     * @param clientId
-     * @param clientSecret
-     * @param scope
-     * @param urlAccessToken
-     * @return 
-     */
-    public static OAuth2Client withClientCredentialsGrant(String clientId,
-            String clientSecret, String scope, String urlAccessToken) {
-        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
-                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
-                .scope(scope)
-                .build();
-        
-        return new OAuth2Client(config);
-    }
-    
-    /**
-     * Create a client with password grant type.
-     * 
-     * @param username
-     * @param password
-     * @param clientId
-     * @param clientSecret
-     * @param urlAccessToken
-     * @return 
-     */
-    public static OAuth2Client withPasswordGrant(String username, String password,
-            String clientId, String clientSecret, String urlAccessToken) {
-        return withPasswordGrant(username, password, clientId, clientSecret, null, urlAccessToken);
-    }
-    
-    /**
-     * Create a client with password grant type.
-     * 
-     * @param username
-     * @param password
-     * @param clientId
-     * @param clientSecret
-     * @param scope
-     * @param urlAccessToken
-     * @return 
-     */
-    public static OAuth2Client withPasswordGrant(String username, String password,
-            String clientId, String clientSecret, String scope, String urlAccessToken) {
-        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
-                .grantType(OAuth2Constants.GRANT_PASSWORD)
-                .credentials(username, password)
-                .scope(scope)
-                .build();
-        
-        return new OAuth2Client(config);
-    }
-}
+package org.mayconbordin.oauth2.client;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+
+/**
+ * The OAuth2 client.
+ * 
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class OAuth2Client implements Closeable {
+    private final OAuth2Config config;
+    private final HttpTransport transport;
+    private final TokenManager tokenManager;
+    private final ResourceExecutor resourceExecutor;
+    private final TokenIntrospector tokenIntrospector;
+    private final JwksCache jwksCache;
+    
+    private OAuth2Client(OAuth2Config config) {
+        this.config = config;
+        this.transport = (config.getTransport() != null) ? config.getTransport() : new HttpTransport(config);
+        this.tokenManager = new TokenManager(this);
+        this.resourceExecutor = new ResourceExecutor(this);
+        this.tokenIntrospector = new TokenIntrospector(config, transport);
+        this.jwksCache = new JwksCache(config, transport);
+    }
+
+    /**
+     * @return The configuration of the client.
+     */
+    public OAuth2Config getConfig() {
+        return config;
+    }
+
+    /**
+     * @return The HTTP transport of the client, owned by it unless set in the
+     *         configuration, see {@link OAuth2Config.Builder#transport(HttpTransport)}.
+     */
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return The manager that holds and refreshes the access token of the client.
+     */
+    public TokenManager getTokenManager() {
+        return tokenManager;
+    }
+
+    /**
+     * @return The executor of requests to protected resources with the token of the client.
+     */
+    public ResourceExecutor getResourceExecutor() {
+        return resourceExecutor;
+    }
+
+    /**
+     * @return The introspector that validates the tokens received by a resource server.
+     */
+    public TokenIntrospector getTokenIntrospector() {
+        return tokenIntrospector;
+    }
+
+    /**
+     * @return The signing keys of the provider, used to verify JWTs.
+     */
+    public JwksCache getJwksCache() {
+        return jwksCache;
+    }
+
+    /**
+     * Get a valid access token. The token is kept in memory and refreshed in 
+     * background before it expires, a request to the provider is only made when
+     * there is no valid token.
+     * 
+     * @return
+     * @throws OAuth2Exception 
+     */
+    public AccessToken getAccessToken() throws OAuth2Exception {
+        return tokenManager.getAccessToken();
+    }
+
+    /**
+     * Get a valid access token without blocking the calling thread, as in 
+     * {@link #getAccessToken()}.
+     * 
+     * @return The future access token, completed exceptionally with an 
+     *         {@link OAuth2Exception} if the request fails.
+     */
+    public CompletableFuture<AccessToken> getAccessTokenAsync() {
+        return tokenManager.getAccessTokenAsync();
+    }
+
+    /**
+     * Get a protected resource with the token of the client. If the token is
+     * rejected as unauthorized, a new one is obtained and the request is replayed.
+     * 
+     * @param url The path to the resource.
+     * @return The contents of the resource.
+     * @throws OAuth2Exception 
+     */
+    public String getResource(String url) throws OAuth2Exception {
+        return resourceExecutor.getResource(url);
+    }
+
+    /**
+     * Create a protected resource with the token of the client, streaming the
+     * body as it is sent. The request is replayed with a new token only if it
+     * was rejected as unauthorized before the body was sent.
+     * 
+     * @param url The path to the resource.
+     * @param body The content to be sent.
+     * @return The contents of the response.
+     * @throws OAuth2Exception 
+     */
+    public String postResource(String url, ResourceBody body) throws OAuth2Exception {
+        return resourceExecutor.sendResource(HttpPost.METHOD_NAME, url, body);
+    }
+
+    /**
+     * Replace a protected resource, as in {@link #postResource(String, ResourceBody)}.
+     * 
+     * @param url The path to the resource.
+     * @param body The content to be sent.
+     * @return The contents of the response.
+     * @throws OAuth2Exception 
+     */
+    public String putResource(String url, ResourceBody body) throws OAuth2Exception {
+        return resourceExecutor.sendResource(HttpPut.METHOD_NAME, url, body);
+    }
+
+    /**
+     * Update a protected resource, as in {@link #postResource(String, ResourceBody)}.
+     * 
+     * @param url The path to the resource.
+     * @param body The content to be sent.
+     * @return The contents of the response.
+     * @throws OAuth2Exception 
+     */
+    public String patchResource(String url, ResourceBody body) throws OAuth2Exception {
+        return resourceExecutor.sendResource(HttpPatch.METHOD_NAME, url, body);
+    }
+
+    /**
+     * Delete a protected resource with the token of the client.
+     * 
+     * @param url The path to the resource.
+     * @return The contents of the response.
+     * @throws OAuth2Exception 
+     */
+    public String deleteResource(String url) throws OAuth2Exception {
+        return resourceExecutor.sendResource(HttpDelete.METHOD_NAME, url, null);
+    }
+
+    /**
+     * Get a protected resource without blocking the calling thread, as in
+     * {@link #getResource(String)}.
+     * 
+     * @param url The path to the resource.
+     * @return The future contents of the resource.
+     */
+    public CompletableFuture<String> getResourceAsync(String url) {
+        return resourceExecutor.getResourceAsync(url);
+    }
+
+    /**
+     * Get protected resources concurrently, as in {@link #getResource(String)}.
+     * At most {@link OAuth2Config#getMaxConcurrentResources()} requests are
+     * executed at the same time, and a failed request does not cancel the others.
+     * 
+     * @param urls The paths to the resources.
+     * @return The batch of requests, with a result per resource.
+     */
+    public ResourceBatch getResources(Collection<String> urls) {
+        return resourceExecutor.getResources(urls);
+    }
+
+    /**
+     * Validate a token received by a resource server with the introspection 
+     * endpoint of the configuration, see {@link OAuth2Config.Builder#introspectionUrl(String)}.
+     * Results are cached, see {@link TokenIntrospector}.
+     * 
+     * @param token The token to be validated.
+     * @return The state of the token.
+     * @throws OAuth2Exception If the request fails, but not if the token is inactive.
+     */
+    public TokenIntrospection introspect(String token) throws OAuth2Exception {
+        return tokenIntrospector.introspect(token);
+    }
+
+    /**
+     * Validate a token without blocking the calling thread, as in {@link #introspect(String)}.
+     * 
+     * @param token The token to be validated.
+     * @return The future state of the token.
+     */
+    public CompletableFuture<TokenIntrospection> introspectAsync(String token) {
+        return tokenIntrospector.introspectAsync(token);
+    }
+
+    /**
+     * Verify the signature of a JWT locally, with the keys of the provider, 
+     * see {@link OAuth2Config.Builder#jwksUrl(String)}. Keys are cached, see {@link JwksCache}.
+     * 
+     * @param token The token to be verified, received or obtained by this client.
+     * @return The claims of the token.
+     * @throws InvalidTokenException If the token is not a JWT or its signature is not valid.
+     * @throws OAuth2Exception If the keys could not be fetched.
+     */
+    public JwtClaims verify(String token) throws OAuth2Exception {
+        return jwksCache.verify(token);
+    }
+
+    /**
+     * Stop refreshing the access token of the client and release its HTTP connections,
+     * unless its transport is set in the configuration.
+     */
+    @Override
+    public void close() {
+        tokenManager.close();
+        
+        if (transport != config.getTransport()) {
+            transport.close();
+        }
+    }
+    
+    /**
+     * Create a client with the given configuration.
+     * 
+     * @param config
+     * @return 
+     */
+    public static OAuth2Client withConfig(OAuth2Config config) {
+        return new OAuth2Client(config);
+    }
+    
+    /**
+     * Create a client with client credentials grant type.
+     * 
+     * @param clientId
+     * @param clientSecret
+     * @param urlAccessToken
+     * @return 
+     */
+    public static OAuth2Client withClientCredentialsGrant(String clientId,
+            String clientSecret, String urlAccessToken) {
+        return withClientCredentialsGrant(clientId, clientSecret, null, urlAccessToken);
+    }
+    
+    /**
+     * Create a client with client credentials grant type.
+     * 
+     * @param clientId
+     * @param clientSecret
+     * @param scope
+     * @param urlAccessToken
+     * @return 
+     */
+    public static OAuth2Client withClientCredentialsGrant(String clientId,
+            String clientSecret, String scope, String urlAccessToken) {
+        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .scope(scope)
+                .build();
+        
+        return new OAuth2Client(config);
+    }
+    
+    /**
+     * Create a client with password grant type.
+     * 
+     * @param username
+     * @param password
+     * @param clientId
+     * @param clientSecret
+     * @param urlAccessToken
+     * @return 
+     */
+    public static OAuth2Client withPasswordGrant(String username, String password,
+            String clientId, String clientSecret, String urlAccessToken) {
+        return withPasswordGrant(username, password, clientId, clientSecret, null, urlAccessToken);
+    }
+    
+    /**
+     * Create a client with password grant type.
+     * 
+     * @param username
+     * @param password
+     * @param clientId
+     * @param clientSecret
+     * @param scope
+     * @param urlAccessToken
+     * @return 
+     */
+    public static OAuth2Client withPasswordGrant(String username, String password,
+            String clientId, String clientSecret, String scope, String urlAccessToken) {
+        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_PASSWORD)
+                .credentials(username, password)
+                .scope(scope)
+                .build();
+        
+        return new OAuth2Client(config);
+    }
+}
@@ -1,139 +1,816 @@
-package org.mayconbordin.oauth2.client;
-
-/**
- * The configuration for making requests to the OAuth2 provider.
- * 
- * @author Maycon Bordin <mayconbordin@gmail.com>
- */
-public class OAuth2Config {
-    private final String scope;
-    private final String grantType;
-    private final String clientId;
-    private final String clientSecret;
-    private final String username;
-    private final String password;
-    private final String urlAccessToken;
-
-    private OAuth2Config(Builder builder) {
-        this.username = builder.username;
-        this.password = builder.password;
-        this.clientId = builder.clientId;
-        this.clientSecret = builder.clientSecret;
-        this.urlAccessToken = builder.urlAccessToken;
-        this.scope = builder.scope;
-        this.grantType = builder.grantType;
-    }
-    
-    public String getScope() {
-        return scope;
-    }
-    
-    public String getGrantType() {
-        return grantType;
-    }
-    
-    public String getClientId() {
-        return clientId;
-    }
-    
-    public String getClientSecret() {
-        return clientSecret;
-    }
-    
-    public String getUrlAccessToken() {
-        return urlAccessToken;
-    }
-    
-    public String getUsername() {
-        return username;
-    }
-    
-    public String getPassword() {
-        return password;
-    }
-
-    /**
-     * Class used for building the {@link OAuth2Config}.
-     */
-    public static class Builder {
-        private String scope;
-        private String grantType;
-        private String clientId;
-        private String clientSecret;
-        private String username;
-        private String password;
-        private String urlAccessToken;
-
-        /**
-         * Create a new configuration builder.
-         * 
-         * @param clientId
-         * @param clientSecret
-         * @param urlAccessToken 
-         */
-        public Builder(String clientId, String clientSecret, String urlAccessToken) {
-            this.clientId = clientId;
-            this.clientSecret = clientSecret;
-            this.urlAccessToken = urlAccessToken;
-        }
-
-        /**
-         * Create a new configuration builder from an existing configuration.
-         * 
-         * @param config The existing configuration.
-         */
-        public Builder(OAuth2Config config) {
-            this.username = config.getUsername();
-            this.password = config.getPassword();
-            this.clientId = config.getClientId();
-            this.clientSecret = config.getClientSecret();
-            this.urlAccessToken = config.getUrlAccessToken();
-            this.grantType = config.getGrantType();
-            this.scope = config.getScope();
-        }
-
-        /**
-         * Set the grant type of the configuration.
-         * 
-         * @param grantType
-         * @return 
-         */
-        public Builder grantType(String grantType) {
-            this.grantType = grantType;
-            return this;
-        }
-
-        /**
-         * Set the scope of the configuration.
-         * 
-         * @param scope A comma-separated list of scopes.
-         * @return 
-         */
-        public Builder scope(String scope) {
-            this.scope = scope;
-            return this;
-        }
-        
-        /**
-         * Set the user credentials of the configuration.
-         * 
-         * @param username
-         * @param password
-         * @return 
-         */
-        public Builder credentials(String username, String password) {
-            this.username = username;
-            this.password = password;
-            return this;
-        }
-        
-        /**
-         * Build the configuration.
-         * 
-         * @return 
-         */
-        public OAuth2Config build() {
-            return new OAuth2Config(this); 
-        }
-    }
-}
+package org.mayconbordin.oauth2.client;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * The configuration for making requests to the OAuth2 provider.
+ * 
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class OAuth2Config {
+    /**
+     * Default time before the expiration of a token at which it is refreshed, in milliseconds.
+     */
+    public static final long DEFAULT_REFRESH_LEAD_TIME = 60000;
+    
+    public static final int DEFAULT_MAX_CONNECTIONS = 200;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 50;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 30000;
+    public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT = 10000;
+    public static final long DEFAULT_KEEP_ALIVE_TIME = 60000;
+    public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = 30000;
+    public static final int DEFAULT_VALIDATE_AFTER_INACTIVITY = 2000;
+    public static final int DEFAULT_IO_THREADS = 2;
+    public static final int DEFAULT_MAX_UNAUTHORIZED_RETRIES = 1;
+    public static final int DEFAULT_MAX_CONCURRENT_RESOURCES = 16;
+    public static final long DEFAULT_MAX_TOKEN_REQUEST_DELAY = 5000;
+    public static final int DEFAULT_INTROSPECTION_CACHE_SIZE = 10000;
+    public static final long DEFAULT_INACTIVE_INTROSPECTION_TIME = 10000;
+    public static final long DEFAULT_JWKS_TTL = 600000;
+    public static final long DEFAULT_JWKS_MIN_REFETCH_INTERVAL = 30000;
+
+    private final String scope;
+    private final Set<String> scopes;
+    private final String grantType;
+    private final String clientId;
+    private final String clientSecret;
+    private final String username;
+    private final String password;
+    private final String urlAccessToken;
+    private final String urlIntrospection;
+    private final String urlJwks;
+    private final ClientAuthScheme authScheme;
+    private final long refreshLeadTime;
+    private final int maxConnections;
+    private final int maxConnectionsPerRoute;
+    private final int connectTimeout;
+    private final int socketTimeout;
+    private final int connectionRequestTimeout;
+    private final long keepAliveTime;
+    private final long idleConnectionTimeout;
+    private final int validateAfterInactivity;
+    private final int ioThreads;
+    private final int maxUnauthorizedRetries;
+    private final int maxConcurrentResources;
+    private final double tokenRequestRate;
+    private final long maxTokenRequestDelay;
+    private final ResiliencePolicy resiliencePolicy;
+    private final Executor executor;
+    private final int introspectionCacheSize;
+    private final long maxActiveIntrospectionTime;
+    private final long inactiveIntrospectionTime;
+    private final long jwksTtl;
+    private final long jwksMinRefetchInterval;
+    private final long resourceCacheSize;
+    private final TokenStore tokenStore;
+    private final OAuth2Metrics metrics;
+    private final HttpTransport transport;
+
+    private OAuth2Config(Builder builder) {
+        this.username = builder.username;
+        this.password = builder.password;
+        this.clientId = builder.clientId;
+        this.clientSecret = builder.clientSecret;
+        this.urlAccessToken = builder.urlAccessToken;
+        this.urlIntrospection = builder.urlIntrospection;
+        this.urlJwks = builder.urlJwks;
+        this.scope = builder.scope;
+        this.scopes = OAuth2Utils.parseScopes(builder.scope);
+        this.grantType = builder.grantType;
+        this.authScheme = builder.authScheme;
+        this.refreshLeadTime = builder.refreshLeadTime;
+        this.maxConnections = builder.maxConnections;
+        this.maxConnectionsPerRoute = builder.maxConnectionsPerRoute;
+        this.connectTimeout = builder.connectTimeout;
+        this.socketTimeout = builder.socketTimeout;
+        this.connectionRequestTimeout = builder.connectionRequestTimeout;
+        this.keepAliveTime = builder.keepAliveTime;
+        this.idleConnectionTimeout = builder.idleConnectionTimeout;
+        this.validateAfterInactivity = builder.validateAfterInactivity;
+        this.ioThreads = builder.ioThreads;
+        this.maxUnauthorizedRetries = builder.maxUnauthorizedRetries;
+        this.maxConcurrentResources = builder.maxConcurrentResources;
+        this.tokenRequestRate = builder.tokenRequestRate;
+        this.maxTokenRequestDelay = builder.maxTokenRequestDelay;
+        this.resiliencePolicy = builder.resiliencePolicy;
+        this.executor = builder.executor;
+        this.introspectionCacheSize = builder.introspectionCacheSize;
+        this.maxActiveIntrospectionTime = builder.maxActiveIntrospectionTime;
+        this.inactiveIntrospectionTime = builder.inactiveIntrospectionTime;
+        this.jwksTtl = builder.jwksTtl;
+        this.jwksMinRefetchInterval = builder.jwksMinRefetchInterval;
+        this.resourceCacheSize = builder.resourceCacheSize;
+        this.tokenStore = builder.tokenStore;
+        this.metrics = builder.metrics;
+        this.transport = builder.transport;
+    }
+    
+    public String getScope() {
+        return scope;
+    }
+    
+    /**
+     * @return The set of scopes in {@link #getScope()}, whatever their order and
+     *         separator (commas or spaces), empty if there is no scope.
+     */
+    public Set<String> getScopes() {
+        return scopes;
+    }
+    
+    public String getGrantType() {
+        return grantType;
+    }
+    
+    public String getClientId() {
+        return clientId;
+    }
+    
+    public String getClientSecret() {
+        return clientSecret;
+    }
+    
+    public String getUrlAccessToken() {
+        return urlAccessToken;
+    }
+    
+    /**
+     * @return The URL of the token introspection endpoint, or null if not set.
+     */
+    public String getUrlIntrospection() {
+        return urlIntrospection;
+    }
+    
+    /**
+     * @return The URL of the JSON Web Key Set of the provider, or null if not set.
+     */
+    public String getUrlJwks() {
+        return urlJwks;
+    }
+    
+    public String getUsername() {
+        return username;
+    }
+    
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * @return The client authentication scheme for the token endpoint, or null
+     *         if it should be detected.
+     */
+    public ClientAuthScheme getAuthScheme() {
+        return authScheme;
+    }
+
+    /**
+     * @return Time before the expiration of a token at which it is refreshed, in milliseconds.
+     */
+    public long getRefreshLeadTime() {
+        return refreshLeadTime;
+    }
+
+    /**
+     * @return Maximum number of pooled connections in total.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return Maximum number of pooled connections per route (host).
+     */
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    /**
+     * @return Timeout for establishing a connection, in milliseconds.
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @return Timeout for waiting data on a connection, in milliseconds.
+     */
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * @return Timeout for leasing a connection from the pool, in milliseconds.
+     */
+    public int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    /**
+     * @return Maximum time a connection is kept alive for reuse, in milliseconds. 
+     *         If zero or negative the duration given by the server is used.
+     */
+    public long getKeepAliveTime() {
+        return keepAliveTime;
+    }
+
+    /**
+     * @return Time after which idle connections are evicted from the pool, in milliseconds.
+     */
+    public long getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
+
+    /**
+     * @return Time of inactivity after which a pooled connection is checked for 
+     *         staleness before being reused, in milliseconds.
+     */
+    public int getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
+
+    /**
+     * @return Number of I/O dispatcher threads of the asynchronous HTTP client.
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * @return Maximum number of times a request to a protected resource is replayed
+     *         with a new token after being rejected as unauthorized.
+     */
+    public int getMaxUnauthorizedRetries() {
+        return maxUnauthorizedRetries;
+    }
+
+    /**
+     * @return Maximum number of requests of a batch of protected resources that
+     *         are executed at the same time.
+     */
+    public int getMaxConcurrentResources() {
+        return maxConcurrentResources;
+    }
+
+    /**
+     * @return Maximum number of requests per second to the token endpoint, zero
+     *         if only limited after the server throttles the client.
+     */
+    public double getTokenRequestRate() {
+        return tokenRequestRate;
+    }
+
+    /**
+     * @return Longest time a token request waits for the rate limiter, in milliseconds.
+     */
+    public long getMaxTokenRequestDelay() {
+        return maxTokenRequestDelay;
+    }
+
+    /**
+     * @return The retry and circuit breaker settings of the requests.
+     */
+    public ResiliencePolicy getResiliencePolicy() {
+        return resiliencePolicy;
+    }
+
+    /**
+     * @return The executor that runs the asynchronous and batch requests on the
+     *         blocking HTTP client, or null if they use the asynchronous one.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return Maximum number of introspection results kept by a client.
+     */
+    public int getIntrospectionCacheSize() {
+        return introspectionCacheSize;
+    }
+
+    /**
+     * @return Longest time an active introspection result is kept, in milliseconds,
+     *         zero to keep it until the token expires.
+     */
+    public long getMaxActiveIntrospectionTime() {
+        return maxActiveIntrospectionTime;
+    }
+
+    /**
+     * @return Time an inactive introspection result, or an active one without 
+     *         expiration, is kept, in milliseconds.
+     */
+    public long getInactiveIntrospectionTime() {
+        return inactiveIntrospectionTime;
+    }
+
+    /**
+     * @return Time the fetched signing keys are used, in milliseconds.
+     */
+    public long getJwksTtl() {
+        return jwksTtl;
+    }
+
+    /**
+     * @return Shortest time between two fetches of the signing keys caused by
+     *         a token signed with an unknown key, in milliseconds.
+     */
+    public long getJwksMinRefetchInterval() {
+        return jwksMinRefetchInterval;
+    }
+
+    /**
+     * @return Maximum size of the protected resources cached by the transport,
+     *         in bytes, or 0 if they are not cached.
+     */
+    public long getResourceCacheSize() {
+        return resourceCacheSize;
+    }
+
+    /**
+     * @return The store where tokens are persisted across restarts, or null if
+     *         they are only kept in memory.
+     */
+    public TokenStore getTokenStore() {
+        return tokenStore;
+    }
+
+    /**
+     * @return The listener of the requests and token operations, never null.
+     */
+    public OAuth2Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The transport shared by the clients of the configuration, or null
+     *         if each client owns one created with the settings of the configuration.
+     */
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Two configurations are equal when they identify the same token: same token
+     * endpoint, client, grant type, set of scopes and user, with the same client
+     * secret and password, so a token is never shared with a caller whose
+     * credentials were not checked by the server.
+     * 
+     * @param obj
+     * @return 
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof OAuth2Config)) {
+            return false;
+        }
+        
+        OAuth2Config other = (OAuth2Config) obj;
+        return Objects.equals(urlAccessToken, other.urlAccessToken)
+                && Objects.equals(clientId, other.clientId)
+                && Objects.equals(grantType, other.grantType)
+                && Objects.equals(scopes, other.scopes)
+                && Objects.equals(username, other.username)
+                && Objects.equals(clientSecret, other.clientSecret)
+                && Objects.equals(password, other.password);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(urlAccessToken, clientId, grantType, scopes, username, clientSecret, password);
+    }
+
+    /**
+     * Class used for building the {@link OAuth2Config}.
+     */
+    public static class Builder {
+        private String scope;
+        private String grantType;
+        private String clientId;
+        private String clientSecret;
+        private String username;
+        private String password;
+        private String urlAccessToken;
+        private ClientAuthScheme authScheme;
+        private long refreshLeadTime = DEFAULT_REFRESH_LEAD_TIME;
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+        private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+        private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+        private int connectionRequestTimeout = DEFAULT_CONNECTION_REQUEST_TIMEOUT;
+        private long keepAliveTime = DEFAULT_KEEP_ALIVE_TIME;
+        private long idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+        private int validateAfterInactivity = DEFAULT_VALIDATE_AFTER_INACTIVITY;
+        private int ioThreads = DEFAULT_IO_THREADS;
+        private int maxUnauthorizedRetries = DEFAULT_MAX_UNAUTHORIZED_RETRIES;
+        private int maxConcurrentResources = DEFAULT_MAX_CONCURRENT_RESOURCES;
+        private double tokenRequestRate;
+        private long maxTokenRequestDelay = DEFAULT_MAX_TOKEN_REQUEST_DELAY;
+        private ResiliencePolicy resiliencePolicy = ResiliencePolicy.DEFAULT;
+        private Executor executor;
+        private String urlIntrospection;
+        private int introspectionCacheSize = DEFAULT_INTROSPECTION_CACHE_SIZE;
+        private long maxActiveIntrospectionTime;
+        private long inactiveIntrospectionTime = DEFAULT_INACTIVE_INTROSPECTION_TIME;
+        private String urlJwks;
+        private long jwksTtl = DEFAULT_JWKS_TTL;
+        private long jwksMinRefetchInterval = DEFAULT_JWKS_MIN_REFETCH_INTERVAL;
+        private long resourceCacheSize;
+        private TokenStore tokenStore;
+        private OAuth2Metrics metrics = OAuth2Metrics.NOOP;
+        private HttpTransport transport;
+
+        /**
+         * Create a new configuration builder.
+         * 
+         * @param clientId
+         * @param clientSecret
+         * @param urlAccessToken 
+         */
+        public Builder(String clientId, String clientSecret, String urlAccessToken) {
+            this.clientId = clientId;
+            this.clientSecret = clientSecret;
+            this.urlAccessToken = urlAccessToken;
+        }
+
+        /**
+         * Create a new configuration builder from an existing configuration.
+         * 
+         * @param config The existing configuration.
+         */
+        public Builder(OAuth2Config config) {
+            this.username = config.getUsername();
+            this.password = config.getPassword();
+            this.clientId = config.getClientId();
+            this.clientSecret = config.getClientSecret();
+            this.urlAccessToken = config.getUrlAccessToken();
+            this.grantType = config.getGrantType();
+            this.scope = config.getScope();
+            this.authScheme = config.getAuthScheme();
+            this.refreshLeadTime = config.getRefreshLeadTime();
+            this.maxConnections = config.getMaxConnections();
+            this.maxConnectionsPerRoute = config.getMaxConnectionsPerRoute();
+            this.connectTimeout = config.getConnectTimeout();
+            this.socketTimeout = config.getSocketTimeout();
+            this.connectionRequestTimeout = config.getConnectionRequestTimeout();
+            this.keepAliveTime = config.getKeepAliveTime();
+            this.idleConnectionTimeout = config.getIdleConnectionTimeout();
+            this.validateAfterInactivity = config.getValidateAfterInactivity();
+            this.ioThreads = config.getIoThreads();
+            this.maxUnauthorizedRetries = config.getMaxUnauthorizedRetries();
+            this.maxConcurrentResources = config.getMaxConcurrentResources();
+            this.tokenRequestRate = config.getTokenRequestRate();
+            this.maxTokenRequestDelay = config.getMaxTokenRequestDelay();
+            this.resiliencePolicy = config.getResiliencePolicy();
+            this.executor = config.getExecutor();
+            this.urlIntrospection = config.getUrlIntrospection();
+            this.introspectionCacheSize = config.getIntrospectionCacheSize();
+            this.maxActiveIntrospectionTime = config.getMaxActiveIntrospectionTime();
+            this.inactiveIntrospectionTime = config.getInactiveIntrospectionTime();
+            this.urlJwks = config.getUrlJwks();
+            this.jwksTtl = config.getJwksTtl();
+            this.jwksMinRefetchInterval = config.getJwksMinRefetchInterval();
+            this.resourceCacheSize = config.getResourceCacheSize();
+            this.tokenStore = config.getTokenStore();
+            this.metrics = config.getMetrics();
+            this.transport = config.getTransport();
+        }
+
+        /**
+         * Set the grant type of the configuration.
+         * 
+         * @param grantType
+         * @return 
+         */
+        public Builder grantType(String grantType) {
+            this.grantType = grantType;
+            return this;
+        }
+
+        /**
+         * Set the scope of the configuration.
+         * 
+         * @param scope A comma-separated list of scopes.
+         * @return 
+         */
+        public Builder scope(String scope) {
+            this.scope = scope;
+            return this;
+        }
+        
+        /**
+         * Set the user credentials of the configuration.
+         * 
+         * @param username
+         * @param password
+         * @return 
+         */
+        public Builder credentials(String username, String password) {
+            this.username = username;
+            this.password = password;
+            return this;
+        }
+        
+        /**
+         * Set the client authentication scheme for the token endpoint. If not set,
+         * the schemes are tried in order and the one accepted by the endpoint is
+         * remembered.
+         * 
+         * @param authScheme
+         * @return 
+         */
+        public Builder authScheme(ClientAuthScheme authScheme) {
+            this.authScheme = authScheme;
+            return this;
+        }
+        
+        /**
+         * Set how long before the expiration of a token it should be refreshed.
+         * 
+         * @param refreshLeadTime The lead time in milliseconds.
+         * @return 
+         */
+        public Builder refreshLeadTime(long refreshLeadTime) {
+            this.refreshLeadTime = refreshLeadTime;
+            return this;
+        }
+        
+        /**
+         * Set the size of the connection pool.
+         * 
+         * @param total Maximum number of connections in total.
+         * @param perRoute Maximum number of connections per route (host).
+         * @return 
+         */
+        public Builder maxConnections(int total, int perRoute) {
+            this.maxConnections = total;
+            this.maxConnectionsPerRoute = perRoute;
+            return this;
+        }
+        
+        /**
+         * Set the timeouts of the HTTP requests.
+         * 
+         * @param connect Timeout for establishing a connection, in milliseconds.
+         * @param socket Timeout for waiting data on a connection, in milliseconds.
+         * @param connectionRequest Timeout for leasing a connection from the pool, in milliseconds.
+         * @return 
+         */
+        public Builder timeouts(int connect, int socket, int connectionRequest) {
+            this.connectTimeout = connect;
+            this.socketTimeout = socket;
+            this.connectionRequestTimeout = connectionRequest;
+            return this;
+        }
+        
+        /**
+         * Set the maximum time a connection is kept alive for reuse.
+         * 
+         * @param keepAliveTime The time in milliseconds, if zero or negative the 
+         *                      duration given by the server is used.
+         * @return 
+         */
+        public Builder keepAliveTime(long keepAliveTime) {
+            this.keepAliveTime = keepAliveTime;
+            return this;
+        }
+        
+        /**
+         * Set the time after which idle connections are evicted from the pool.
+         * 
+         * @param idleConnectionTimeout The time in milliseconds.
+         * @return 
+         */
+        public Builder idleConnectionTimeout(long idleConnectionTimeout) {
+            this.idleConnectionTimeout = idleConnectionTimeout;
+            return this;
+        }
+        
+        /**
+         * Set the time of inactivity after which a pooled connection is checked
+         * for staleness before being reused.
+         * 
+         * @param validateAfterInactivity The time in milliseconds.
+         * @return 
+         */
+        public Builder validateAfterInactivity(int validateAfterInactivity) {
+            this.validateAfterInactivity = validateAfterInactivity;
+            return this;
+        }
+        
+        /**
+         * Set the number of I/O dispatcher threads of the asynchronous HTTP client.
+         * 
+         * @param ioThreads
+         * @return 
+         */
+        public Builder ioThreads(int ioThreads) {
+            this.ioThreads = ioThreads;
+            return this;
+        }
+        
+        /**
+         * Set how many times a request to a protected resource is replayed with 
+         * a new token after being rejected as unauthorized.
+         * 
+         * @param maxUnauthorizedRetries The number of replays, zero disables them.
+         * @return 
+         */
+        public Builder maxUnauthorizedRetries(int maxUnauthorizedRetries) {
+            this.maxUnauthorizedRetries = maxUnauthorizedRetries;
+            return this;
+        }
+        
+        /**
+         * Set how many requests of a batch of protected resources are executed
+         * at the same time. It should not exceed the connections per route.
+         * 
+         * @param maxConcurrentResources The number of concurrent requests, at least one.
+         * @return 
+         */
+        public Builder maxConcurrentResources(int maxConcurrentResources) {
+            if (maxConcurrentResources < 1) {
+                throw new IllegalArgumentException("The number of concurrent requests must be at least one.");
+            }
+            this.maxConcurrentResources = maxConcurrentResources;
+            return this;
+        }
+        
+        /**
+         * Limit the rate of requests to the token endpoint. The limiter is shared
+         * by all the configurations of the endpoint and created with the settings
+         * of the first one. Regardless of the rate, requests back off when the
+         * server answers with 429 or 503, see {@link TokenEndpointLimiter}.
+         * 
+         * @param requestsPerSecond The maximum rate, zero to only back off when throttled.
+         * @param maxDelay Longest time a request waits for a permit before failing, in milliseconds.
+         * @return 
+         */
+        public Builder tokenRequestRate(double requestsPerSecond, long maxDelay) {
+            this.tokenRequestRate = requestsPerSecond;
+            this.maxTokenRequestDelay = maxDelay;
+            return this;
+        }
+        
+        /**
+         * Set the token introspection endpoint (RFC 7662), used to validate the
+         * tokens received by a resource server, see {@link OAuth2Client#introspect(String)}.
+         * 
+         * @param urlIntrospection
+         * @return 
+         */
+        public Builder introspectionUrl(String urlIntrospection) {
+            this.urlIntrospection = urlIntrospection;
+            return this;
+        }
+        
+        /**
+         * Set how the introspection results are cached. Active tokens are kept
+         * until they expire, and inactive ones for a short time, so that a token 
+         * that is not valid yet or was just issued is introspected again.
+         * 
+         * @param maxSize Maximum number of results kept by a client.
+         * @param maxActiveTime Longest time an active result is kept, in milliseconds,
+         *                      zero to keep it until the token expires.
+         * @param inactiveTime Time an inactive result, or an active one without 
+         *                     expiration, is kept, in milliseconds.
+         * @return 
+         */
+        public Builder introspectionCache(int maxSize, long maxActiveTime, long inactiveTime) {
+            this.introspectionCacheSize = maxSize;
+            this.maxActiveIntrospectionTime = maxActiveTime;
+            this.inactiveIntrospectionTime = inactiveTime;
+            return this;
+        }
+        
+        /**
+         * Set the JSON Web Key Set of the provider (its jwks_uri), used to verify 
+         * the signature of JWTs, see {@link OAuth2Client#verify(String)}.
+         * 
+         * @param urlJwks
+         * @return 
+         */
+        public Builder jwksUrl(String urlJwks) {
+            this.urlJwks = urlJwks;
+            return this;
+        }
+        
+        /**
+         * Set how the signing keys are cached. Keys are refreshed in background
+         * before the time to live ends, and fetched again when a token is signed 
+         * with an unknown key, as keys are rotated, at most once per interval.
+         * 
+         * @param ttl Time the fetched keys are used, in milliseconds.
+         * @param minRefetchInterval Shortest time between two fetches caused by
+         *                           unknown keys, in milliseconds.
+         * @return 
+         */
+        public Builder jwksCache(long ttl, long minRefetchInterval) {
+            this.jwksTtl = ttl;
+            this.jwksMinRefetchInterval = minRefetchInterval;
+            return this;
+        }
+        
+        /**
+         * Cache the protected resources fetched through the transport of the
+         * configuration, following their Cache-Control, ETag and Last-Modified 
+         * headers, see {@link ResourceCache}.
+         * 
+         * @param maxBytes Maximum size of the cached content, in bytes, or 0 to disable the cache.
+         * @return 
+         */
+        public Builder resourceCache(long maxBytes) {
+            this.resourceCacheSize = maxBytes;
+            return this;
+        }
+        
+        /**
+         * Set how requests are retried on transient I/O errors and when the
+         * circuit of a failing host is opened.
+         * 
+         * @param resiliencePolicy The policy, or null for {@link ResiliencePolicy#NONE}.
+         * @return 
+         */
+        public Builder resiliencePolicy(ResiliencePolicy resiliencePolicy) {
+            this.resiliencePolicy = (resiliencePolicy != null) ? resiliencePolicy : ResiliencePolicy.NONE;
+            return this;
+        }
+        
+        /**
+         * Run the asynchronous and batch requests, and the scheduled token refreshes,
+         * as blocking calls on the given executor instead of the asynchronous HTTP client.
+         * 
+         * @param executor The executor, or null to use the asynchronous HTTP client.
+         * @return 
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+        
+        /**
+         * Run the asynchronous and batch requests, and the scheduled token refreshes,
+         * as blocking calls on virtual threads, see {@link VirtualThreads}.
+         * 
+         * @return 
+         * @throws UnsupportedOperationException If the JVM has no virtual threads.
+         */
+        public Builder virtualThreads() {
+            this.executor = VirtualThreads.executor();
+            return this;
+        }
+        
+        /**
+         * Set the store where tokens are persisted, so that a restarted process
+         * reuses the tokens that have not expired instead of requesting new ones.
+         * 
+         * @param tokenStore
+         * @return 
+         */
+        public Builder tokenStore(TokenStore tokenStore) {
+            this.tokenStore = tokenStore;
+            return this;
+        }
+        
+        /**
+         * Set the listener of the requests and token operations, for collecting metrics.
+         * 
+         * @param metrics The listener, or null to disable it.
+         * @return 
+         */
+        public Builder metrics(OAuth2Metrics metrics) {
+            this.metrics = (metrics != null) ? metrics : OAuth2Metrics.NOOP;
+            return this;
+        }
+        
+        /**
+         * Send the requests of the clients through an existing transport, which
+         * is not closed with them, instead of one owned by each client. The 
+         * connection settings of the configuration are then ignored, and the 
+         * protected resources are requested with the metrics, resilience policy,
+         * executor and cache of the transport.
+         * 
+         * @param transport The transport, or null for a transport owned by each client.
+         * @return 
+         */
+        public Builder transport(HttpTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+        
+        /**
+         * Build the configuration.
+         * 
+         * @return 
+         */
+        public OAuth2Config build() {
+            return new OAuth2Config(this); 
+        }
+    }
+}
@@ -30,6 +30,9 @@ public interface OAuth2Constants {
     
     String EXPIRES_IN = "expires_in";
     String TOKEN_TYPE = "token_type";
+    String TOKEN = "token";
+    String TOKEN_TYPE_HINT = "token_type_hint";
+    String ACTIVE = "active";
     
     int HTTP_OK = 200;
     int HTTP_FORBIDDEN = 403;
@@ -40,7 +40,22 @@ public class OAuth2Exception extends Exception {
      * @return 
      */
     public static OAuth2Exception fromHttpCode(int code, String response) {
-        if (code == 400) {
+        return fromHttpCode(code, response, 0);
+    }
+
+    /**
+     * Create a new exception based on the HTTP response code.
+     * 
+     * @param code The HTTP response code.
+     * @param response The response content.
+     * @param retryAfter The time to wait before a new request, from the Retry-After
+     *                   header of a 429 or 503 response, in milliseconds.
+     * @return 
+     */
+    public static OAuth2Exception fromHttpCode(int code, String response, long retryAfter) {
+        if (code == 429 || code == 503) {
+            return new RateLimitedException(code, response, retryAfter);
+        } else if (code == 400) {
             return new InvalidRequestException(code, response);
         } else if (code == 401) {
             return new UnauthorizedClientException(code, response);
@@ -0,0 +1,116 @@
+package org.mayconbordin.oauth2.client;
+
+/**
+ * Listener of the requests and token operations of the library, for collecting
+ * metrics. It is set in the configuration with {@link OAuth2Config.Builder#metrics(OAuth2Metrics)}.
+ *
+ * <p>All methods do nothing by default, so implementations only override the
+ * events they are interested in. They are called on the threads making the
+ * requests and must be thread-safe and cheap. {@link HistogramMetrics} is a
+ * reference implementation.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public interface OAuth2Metrics {
+    /**
+     * Listener that ignores all the events, used when none is configured.
+     */
+    OAuth2Metrics NOOP = new OAuth2Metrics() {};
+
+    /**
+     * A request to the token endpoint got a response.
+     *
+     * @param endpoint The URL of the token endpoint.
+     * @param grantType The grant type of the request.
+     * @param statusCode The status code of the response.
+     * @param nanos The duration of the request, in nanoseconds.
+     */
+    default void tokenRequest(String endpoint, String grantType, int statusCode, long nanos) {}
+
+    /**
+     * A request to the token endpoint failed without a response.
+     *
+     * @param endpoint The URL of the token endpoint.
+     * @param grantType The grant type of the request.
+     * @param nanos The time until the failure, in nanoseconds.
+     */
+    default void tokenRequestFailed(String endpoint, String grantType, long nanos) {}
+
+    /**
+     * The token endpoint rejected a client authentication scheme and the next
+     * one is going to be tried.
+     *
+     * @param endpoint The URL of the token endpoint.
+     * @param grantType The grant type of the request.
+     * @param scheme The rejected scheme.
+     */
+    default void authSchemeFallback(String endpoint, String grantType, ClientAuthScheme scheme) {}
+
+    /**
+     * A request to a protected resource got a response.
+     *
+     * @param url The URL of the resource.
+     * @param statusCode The status code of the response.
+     * @param nanos The time until the response headers were received, in nanoseconds.
+     */
+    default void resourceRequest(String url, int statusCode, long nanos) {}
+
+    /**
+     * A request to a protected resource failed without a response.
+     *
+     * @param url The URL of the resource.
+     * @param nanos The time until the failure, in nanoseconds.
+     */
+    default void resourceRequestFailed(String url, long nanos) {}
+
+    /**
+     * A request to a protected resource was rejected as unauthorized and is
+     * going to be replayed with a new token.
+     */
+    default void resourceReplay() {}
+
+    /**
+     * A replayed request to a protected resource was still rejected as unauthorized.
+     */
+    default void resourceReplayFailed() {}
+
+    /**
+     * A token response was parsed.
+     *
+     * @param contentType The content type of the response.
+     * @param nanos The duration of the parsing, in nanoseconds.
+     */
+    default void parse(String contentType, long nanos) {}
+
+    /**
+     * A valid token was served from memory.
+     */
+    default void tokenCacheHit() {}
+
+    /**
+     * There was no valid token in memory and a new one had to be obtained.
+     */
+    default void tokenCacheMiss() {}
+
+    /**
+     * A token was refreshed in background before it expired.
+     *
+     * @param leadTime The remaining validity of the token when the refresh started, in milliseconds.
+     * @param succeeded Whether a new token was obtained.
+     */
+    default void tokenRefresh(long leadTime, boolean succeeded) {}
+
+    /**
+     * A refresh token was rejected and a new grant is going to be requested instead.
+     */
+    default void refreshFallback() {}
+
+    /**
+     * A token request was throttled, either by the server or by the client while
+     * backing off, see {@link TokenEndpointLimiter}.
+     *
+     * @param endpoint The URL of the token endpoint.
+     * @param retryAfter The time until the next request is allowed, in milliseconds.
+     */
+    default void tokenRequestThrottled(String endpoint, long retryAfter) {}
+}
@@ -6,6 +6,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpEntity;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpUriRequest;
@@ -25,6 +26,8 @@ public class OAuth2RequestBuilder {
     private final OAuth2Config config;
     private final AccessToken token;
     private final Map<String, String> headers;
+    private final List<NameValuePair> parameters;
+    private HttpEntity entity;
 
     public OAuth2RequestBuilder(String methodName, String url, OAuth2Config config, AccessToken token) {
         this.methodName = methodName;
@@ -32,6 +35,7 @@ public class OAuth2RequestBuilder {
         this.config = config;
         this.token = token;
         headers = new HashMap<>();
+        parameters = new ArrayList<>();
     }
 
     public OAuth2RequestBuilder(String methodName, OAuth2Config config, AccessToken token) {
@@ -69,6 +73,29 @@ public class OAuth2RequestBuilder {
         return this;
     }
     
+    /**
+     * Add a parameter to the form sent as the HTTP entity.
+     * 
+     * @param name
+     * @param value
+     * @return 
+     */
+    public OAuth2RequestBuilder parameter(String name, String value) {
+        parameters.add(new BasicNameValuePair(name, value));
+        return this;
+    }
+    
+    /**
+     * Set the HTTP entity, sent as it is, in place of the form of the parameters.
+     * 
+     * @param entity
+     * @return 
+     */
+    public OAuth2RequestBuilder entity(HttpEntity entity) {
+        this.entity = entity;
+        return this;
+    }
+    
     /**
      * Build the HTTP request.
      * 
@@ -85,6 +112,10 @@ public class OAuth2RequestBuilder {
      * 
      * <p>If the {@link OAuth2Config#scope} are not empty, they will be added to the HTTP entity.</p>
      * 
+     * <p>The parameters added with {@link #parameter(String, String)} are sent in the 
+     * HTTP entity after the ones above. An entity set with {@link #entity(HttpEntity)}
+     * is sent instead of all of them.</p>
+     * 
      * @return 
      */
     public HttpUriRequest build() {
@@ -96,7 +127,9 @@ public class OAuth2RequestBuilder {
             builder.addHeader(OAuth2Constants.AUTHORIZATION, tokenHeader);
         }
         
-        if (config != null) {
+        if (entity != null) {
+            builder.setEntity(entity);
+        } else if (config != null) {
             List<NameValuePair> formData = buildNameValuePairs(
                 OAuth2Constants.CLIENT_ID, config.getClientId(),
                 OAuth2Constants.CLIENT_SECRET, config.getClientSecret(),
@@ -124,7 +157,10 @@ public class OAuth2RequestBuilder {
                 buildNameValuePairs(formData, OAuth2Constants.SCOPE, config.getScope());
             }
 
+            formData.addAll(parameters);
             builder.setEntity(new UrlEncodedFormEntity(formData, StandardCharsets.UTF_8));
+        } else if (!parameters.isEmpty()) {
+            builder.setEntity(new UrlEncodedFormEntity(parameters, StandardCharsets.UTF_8));
         }
 
         // Apply headers
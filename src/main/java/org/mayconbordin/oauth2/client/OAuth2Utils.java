@@ -1,156 +1,1468 @@
-package org.mayconbordin.oauth2.client;
-
-import java.io.IOException;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-/**
- * Class that handles the requests to the OAuth2 server.
- * 
- * @author Maycon Bordin <mayconbordin@gmail.com>
- */
-public class OAuth2Utils {
-    private static final Logger LOG = LoggerFactory.getLogger(OAuth2Utils.class);
-    private static CloseableHttpClient httpClient;
-
-    /**
-     * Get a protected resource using an access token.
-     * 
-     * @param token The token to be used for authentication.
-     * @param url The path to the resource.
-     * @return The contents of the resource.
-     * @throws OAuth2Exception 
-     */
-    public static String getProtectedResource(AccessToken token, String url) throws OAuth2Exception {
-        HttpUriRequest request = new OAuth2RequestBuilder(HttpGet.METHOD_NAME, url, token).build();
-
-        CloseableHttpResponse response = null;
-        String responseString = "";
-        
-        try {
-            response = getHttpClient().execute(request);
-            int code = response.getStatusLine().getStatusCode();
-            responseString = ContentHandler.readHttpEntity(response.getEntity());
-            response.close();
-            
-            if (code >= 400) {
-                throw OAuth2Exception.fromHttpCode(code, responseString);
-            }
-        } catch (IOException e) {
-            LOG.error("IO error: " + e.getMessage());
-            throw new OAuth2Exception("An error ocurred while executing the request.", e);
-        }
-        
-        return responseString;
-    }
-
-    /**
-     * Get an access token based on the given configurations.
-     * 
-     * @param config The configuration to be used for obtaining the access token.
-     * @return The obtained access token.
-     * @throws OAuth2Exception 
-     */
-    public static AccessToken getAccessToken(OAuth2Config config) throws OAuth2Exception {
-        HttpUriRequest request = new OAuth2RequestBuilder(HttpPost.METHOD_NAME, config).build();
-        
-        CloseableHttpResponse response = null;
-        AccessToken accessToken = null;
-        
-        try {
-            response = getHttpClient().execute(request);
-            int code = response.getStatusLine().getStatusCode();
-
-            if (code >= 400) {
-                response.close();
-                request = new OAuth2RequestBuilder(HttpPost.METHOD_NAME, config)
-                        .authorization(config.getUsername(), config.getPassword())
-                        .build();
-
-                response = getHttpClient().execute(request);
-                code = response.getStatusLine().getStatusCode();
-
-                if (code >= 400) {
-                    response.close();
-                    request = new OAuth2RequestBuilder(HttpPost.METHOD_NAME, config)
-                            .authorization(config.getClientId(), config.getClientSecret())
-                            .build();
-                    
-                    response = getHttpClient().execute(request);
-                    code = response.getStatusLine().getStatusCode();
-
-                    if (code >= 400) {
-                        throw OAuth2Exception.fromHttpCode(code, ContentHandler.readHttpEntity(response.getEntity()));
-                    }
-                }
-            }
-            
-            accessToken = new AccessToken(ContentHandler.handleResponse(response));
-            response.close();
-        } catch (IOException e) {
-            LOG.error("IO error: " + e.getMessage());
-            throw new OAuth2Exception("An error ocurred while executing the request.", e);
-        }
-
-        return accessToken;
-    }
-
-    /**
-     * Refresh an access token.
-     * 
-     * @param token The token to be refreshed.
-     * @param config The configuration to be used to refresh the token.
-     * @return The refreshed token.
-     * @throws OAuth2Exception 
-     */
-    public static AccessToken refreshAccessToken(AccessToken token, OAuth2Config config) throws OAuth2Exception {
-        HttpUriRequest request = new OAuth2RequestBuilder(HttpPost.METHOD_NAME, config, token).build();
-        
-        CloseableHttpResponse response = null;
-        AccessToken accessToken     = null;
-        
-        try {
-            response = getHttpClient().execute(request);
-            int code = response.getStatusLine().getStatusCode();
-            
-            if (code >= 400) {
-                response.close();
-                
-                request = new OAuth2RequestBuilder(HttpPost.METHOD_NAME, config)
-                        .authorization(config.getClientId(), config.getClientSecret())
-                        .build();
-
-                response = getHttpClient().execute(request);
-                code = response.getStatusLine().getStatusCode();
-
-                if (code >= 400) {
-                    throw OAuth2Exception.fromHttpCode(code, ContentHandler.readHttpEntity(response.getEntity()));
-                }
-            }
-            
-            accessToken = new AccessToken(ContentHandler.handleResponse(response));
-        } catch (IOException e) {
-            LOG.error("IO error: " + e.getMessage());
-            throw new OAuth2Exception("An error ocurred while executing the request.", e);
-        }
-
-        return accessToken;
-    }
-    
-    protected static CloseableHttpClient getHttpClient() {
-        if (httpClient == null) {
-            httpClient = HttpClients.createDefault();
-        }
-        return httpClient;
-    }
-    
-    public static void setHttpClient(CloseableHttpClient client) {
-        httpClient = client;
-    }
+package org.mayconbordin.oauth2.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.protocol.HTTP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class that handles the requests to the OAuth2 server.
+ * 
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class OAuth2Utils {
+    private static final Logger LOG = LoggerFactory.getLogger(OAuth2Utils.class);
+    private static final int STREAM_BUFFER_SIZE = 8192;
+    
+    private static final SingleFlight<Object, AccessToken> tokenRequests = new SingleFlight<>();
+    private static final ConcurrentMap<Object, ClientAuthScheme> authSchemes = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, TokenEndpointLimiter> tokenEndpointLimiters = new ConcurrentHashMap<>();
+    
+    // circuit breakers per policy, then per endpoint; policies are compared by identity
+    private static final LoadingCache<ResiliencePolicy, ConcurrentMap<String, CircuitBreaker>> circuitBreakers =
+            CacheBuilder.newBuilder().weakKeys().build(CacheLoader.from(() -> new ConcurrentHashMap<>()));
+    
+    // delays the asynchronous retries and rate limited requests
+    private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("oauth2-scheduler-%d").build());
+    
+    // compiled token requests, per configuration and client authentication scheme
+    private static final int MAX_TOKEN_REQUEST_TEMPLATES = 10000;
+    private static final Cache<Object, TokenRequestTemplate> tokenRequestTemplates = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TOKEN_REQUEST_TEMPLATES).build();
+    
+    // clients that override the transports, see setHttpClient and setHttpAsyncClient
+    private static volatile CloseableHttpClient httpClient;
+    private static volatile CloseableHttpAsyncClient httpAsyncClient;
+
+    /**
+     * Get a protected resource using an access token, through the transport of 
+     * the client that issued the token.
+     * 
+     * <p>If the transport has a {@link ResourceCache}, a fresh cached response
+     * is returned without a request, and a stale one is revalidated with the
+     * server.</p>
+     * 
+     * @param token The token to be used for authentication.
+     * @param url The path to the resource.
+     * @return The contents of the resource.
+     * @throws OAuth2Exception 
+     */
+    public static String getProtectedResource(AccessToken token, String url) throws OAuth2Exception {
+        ResourceCache cache = getResourceCache(token.getTransport());
+        ResourceCache.Entry cached = (cache != null) ? cache.get(token, url) : null;
+        
+        if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+            return cache.hit(cached);
+        }
+        
+        HttpUriRequest request = buildResourceRequest(token, url, cached);
+        OAuth2Metrics metrics = getMetrics(token.getTransport());
+
+        CloseableHttpResponse response = null;
+        String responseString = "";
+        long start = System.nanoTime();
+        
+        try {
+            response = execute(getHttpClient(token.getTransport()), request, getResiliencePolicy(token.getTransport()), true, true);
+            int code = response.getStatusLine().getStatusCode();
+            metrics.resourceRequest(url, code, System.nanoTime() - start);
+            
+            if (code == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                response.close();
+                return cache.revalidated(token, url, cached, response);
+            }
+            
+            responseString = ContentHandler.readHttpEntity(response.getEntity());
+            response.close();
+            
+            if (cache != null) {
+                cache.store(token, url, response, responseString);
+            }
+            
+            if (code >= 400) {
+                throw OAuth2Exception.fromHttpCode(code, responseString, isThrottled(code) ? getRetryAfter(response) : 0);
+            }
+        } catch (IOException e) {
+            LOG.error("IO error: " + e.getMessage());
+            if (response == null) {
+                metrics.resourceRequestFailed(url, System.nanoTime() - start);
+            }
+            closeQuietly(response);
+            throw new OAuth2Exception("An error ocurred while executing the request.", e);
+        }
+        
+        return responseString;
+    }
+
+    /**
+     * Get a protected resource using an access token, passing its content as a
+     * stream to the given handler.
+     * 
+     * @param <T> The type of the result of the handler.
+     * @param token The token to be used for authentication.
+     * @param url The path to the resource.
+     * @param handler The handler that consumes the content of the resource.
+     * @return The result of the handler.
+     * @throws OAuth2Exception 
+     */
+    public static <T> T getProtectedResource(AccessToken token, String url, ResourceHandler<T> handler) throws OAuth2Exception {
+        try (InputStream in = getProtectedResourceAsStream(token, url)) {
+            return handler.handle(in);
+        } catch (IOException e) {
+            LOG.error("IO error: " + e.getMessage());
+            throw new OAuth2Exception("An error ocurred while reading the resource.", e);
+        }
+    }
+
+    /**
+     * Get a protected resource using an access token, writing its content to 
+     * the given channel without buffering it in memory.
+     * 
+     * @param token The token to be used for authentication.
+     * @param url The path to the resource.
+     * @param target The channel the content is written to, it is not closed.
+     * @return The number of bytes written.
+     * @throws OAuth2Exception 
+     */
+    public static long getProtectedResource(AccessToken token, String url, WritableByteChannel target) throws OAuth2Exception {
+        return getProtectedResource(token, url, in -> {
+            ReadableByteChannel source = Channels.newChannel(in);
+            ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+            long total = 0;
+            
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    total += target.write(buffer);
+                }
+                buffer.clear();
+            }
+            
+            return total;
+        });
+    }
+
+    /**
+     * Get a protected resource using an access token, writing its content to 
+     * the given file without buffering it in memory.
+     * 
+     * @param token The token to be used for authentication.
+     * @param url The path to the resource.
+     * @param target The file the content is written to, replaced if it exists.
+     * @return The number of bytes written.
+     * @throws OAuth2Exception 
+     */
+    public static long getProtectedResource(AccessToken token, String url, Path target) throws OAuth2Exception {
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, 
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return getProtectedResource(token, url, channel);
+        } catch (IOException e) {
+            LOG.error("IO error: " + e.getMessage());
+            throw new OAuth2Exception("An error ocurred while writing the resource to " + target + ".", e);
+        }
+    }
+
+    /**
+     * Get a protected resource using an access token, as a stream.
+     * 
+     * <p>The stream must be closed by the caller, which releases the connection.
+     * If the stream is closed before the whole content is read the connection 
+     * is discarded instead of being returned to the pool.</p>
+     * 
+     * @param token The token to be used for authentication.
+     * @param url The path to the resource.
+     * @return The content of the resource.
+     * @throws OAuth2Exception 
+     */
+    public static InputStream getProtectedResourceAsStream(AccessToken token, String url) throws OAuth2Exception {
+        HttpUriRequest request = new OAuth2RequestBuilder(HttpGet.METHOD_NAME, url, token).build();
+        OAuth2Metrics metrics = getMetrics(token.getTransport());
+        CloseableHttpResponse response = null;
+        long start = System.nanoTime();
+        
+        try {
+            response = execute(getHttpClient(token.getTransport()), request, getResiliencePolicy(token.getTransport()), true, true);
+            int code = response.getStatusLine().getStatusCode();
+            metrics.resourceRequest(url, code, System.nanoTime() - start);
+            
+            if (code >= 400) {
+                String responseString = ContentHandler.readHttpEntity(response.getEntity());
+                response.close();
+                throw OAuth2Exception.fromHttpCode(code, responseString, isThrottled(code) ? getRetryAfter(response) : 0);
+            }
+            
+            HttpEntity entity = response.getEntity();
+            InputStream content = (entity != null) ? entity.getContent() : new ByteArrayInputStream(new byte[0]);
+            
+            return new ResponseInputStream(content, response);
+        } catch (IOException e) {
+            LOG.error("IO error: " + e.getMessage());
+            if (response == null) {
+                metrics.resourceRequestFailed(url, System.nanoTime() - start);
+            }
+            closeQuietly(response);
+            throw new OAuth2Exception("An error ocurred while executing the request.", e);
+        }
+    }
+
+    /**
+     * Send content to a protected resource using an access token, streaming
+     * the body from its source as the request is written.
+     * 
+     * <p>A request with a body asks the server to accept it before it is sent
+     * ({@code Expect: 100-continue}), so a rejected token costs a round trip
+     * instead of an upload. Only PUT and DELETE requests with a repeatable body
+     * are retried after reaching the server.</p>
+     * 
+     * @param token The token to be used for authentication.
+     * @param method The HTTP method, e.g. POST, PUT, PATCH or DELETE.
+     * @param url The path to the resource.
+     * @param body The content to be sent, or null for none.
+     * @return The contents of the response.
+     * @throws OAuth2Exception 
+     */
+    public static String sendProtectedResource(AccessToken token, String method, String url, ResourceBody body) throws OAuth2Exception {
+        OAuth2RequestBuilder builder = new OAuth2RequestBuilder(method, url, token);
+        
+        if (body != null) {
+            builder.entity(body.getEntity()).header(HttpHeaders.EXPECT, HTTP.EXPECT_CONTINUE);
+        }
+        
+        HttpUriRequest request = builder.build();
+        boolean idempotent = (HttpPut.METHOD_NAME.equals(method) || HttpDelete.METHOD_NAME.equals(method))
+                && (body == null || body.isRepeatable());
+        OAuth2Metrics metrics = getMetrics(token.getTransport());
+
+        CloseableHttpResponse response = null;
+        String responseString = "";
+        long start = System.nanoTime();
+        
+        try {
+            response = execute(getHttpClient(token.getTransport()), request, getResiliencePolicy(token.getTransport()), idempotent, true);
+            int code = response.getStatusLine().getStatusCode();
+            metrics.resourceRequest(url, code, System.nanoTime() - start);
+            
+            // e.g. 204 No Content
+            if (response.getEntity() != null) {
+                responseString = ContentHandler.readHttpEntity(response.getEntity());
+            }
+            response.close();
+            
+            if (code >= 400) {
+                throw OAuth2Exception.fromHttpCode(code, responseString, isThrottled(code) ? getRetryAfter(response) : 0);
+            }
+        } catch (IOException e) {
+            LOG.error("IO error: " + e.getMessage());
+            if (response == null) {
+                metrics.resourceRequestFailed(url, System.nanoTime() - start);
+            }
+            closeQuietly(response);
+            throw new OAuth2Exception("An error ocurred while executing the request.", e);
+        }
+        
+        return responseString;
+    }
+
+    /**
+     * Get an access token based on the given configurations, through the default transport.
+     * 
+     * @param config The configuration to be used for obtaining the access token.
+     * @return The obtained access token.
+     * @throws OAuth2Exception 
+     */
+    public static AccessToken getAccessToken(OAuth2Config config) throws OAuth2Exception {
+        return getAccessToken(config, null);
+    }
+
+    /**
+     * Get an access token based on the given configurations.
+     * 
+     * <p>Concurrent calls with an equal configuration are coalesced into a single
+     * request to the provider, see {@link #getTokenRequests()}.</p>
+     * 
+     * @param config The configuration to be used for obtaining the access token.
+     * @param transport The transport to be used for the request, null for the default transport.
+     * @return The obtained access token.
+     * @throws OAuth2Exception 
+     */
+    public static AccessToken getAccessToken(OAuth2Config config, HttpTransport transport) throws OAuth2Exception {
+        return tokenRequests.execute(config, () -> requestToken(config, null, transport));
+    }
+
+    /**
+     * Refresh an access token, through the default transport.
+     * 
+     * @param token The token to be refreshed.
+     * @param config The configuration to be used to refresh the token.
+     * @return The refreshed token.
+     * @throws OAuth2Exception 
+     */
+    public static AccessToken refreshAccessToken(AccessToken token, OAuth2Config config) throws OAuth2Exception {
+        return refreshAccessToken(token, config, null);
+    }
+
+    /**
+     * Refresh an access token.
+     * 
+     * <p>Concurrent refreshes of the same token with an equal configuration are 
+     * coalesced into a single request to the provider, see {@link #getTokenRequests()}.</p>
+     * 
+     * @param token The token to be refreshed.
+     * @param config The configuration to be used to refresh the token.
+     * @param transport The transport to be used for the request, null for the default transport.
+     * @return The refreshed token.
+     * @throws OAuth2Exception 
+     */
+    public static AccessToken refreshAccessToken(AccessToken token, OAuth2Config config, HttpTransport transport) throws OAuth2Exception {
+        Object key = Arrays.asList(config, token.getRefreshToken());
+        
+        return tokenRequests.execute(key, () -> requestToken(config, token, transport));
+    }
+
+    /**
+     * Get a protected resource using an access token, without blocking the calling
+     * thread, through the transport of the client that issued the token.
+     * 
+     * @param token The token to be used for authentication.
+     * @param url The path to the resource.
+     * @return The future contents of the resource, completed exceptionally with 
+     *         an {@link OAuth2Exception} if the request fails.
+     */
+    public static CompletableFuture<String> getProtectedResourceAsync(AccessToken token, String url) {
+        Executor executor = getExecutor(token.getTransport());
+        
+        if (executor != null) {
+            return executeBlocking(executor, () -> getProtectedResource(token, url));
+        }
+        
+        ResourceCache cache = getResourceCache(token.getTransport());
+        ResourceCache.Entry cached = (cache != null) ? cache.get(token, url) : null;
+        
+        if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+            return CompletableFuture.completedFuture(cache.hit(cached));
+        }
+        
+        HttpUriRequest request = buildResourceRequest(token, url, cached);
+        OAuth2Metrics metrics = getMetrics(token.getTransport());
+        long start = System.nanoTime();
+        
+        return executeAsync(getHttpAsyncClient(token.getTransport()), request, getResiliencePolicy(token.getTransport()), true, true).whenComplete((response, error) -> {
+            if (error != null) {
+                metrics.resourceRequestFailed(url, System.nanoTime() - start);
+            }
+        }).thenApply(response -> {
+            try {
+                int code = response.getStatusLine().getStatusCode();
+                metrics.resourceRequest(url, code, System.nanoTime() - start);
+                
+                if (code == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                    return cache.revalidated(token, url, cached, response);
+                }
+                
+                String responseString = ContentHandler.readHttpEntity(response.getEntity());
+                
+                if (cache != null) {
+                    cache.store(token, url, response, responseString);
+                }
+
+                if (code >= 400) {
+                    throw OAuth2Exception.fromHttpCode(code, responseString, isThrottled(code) ? getRetryAfter(response) : 0);
+                }
+
+                return responseString;
+            } catch (OAuth2Exception | IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * @param cached The cached response of the resource, revalidated by the
+     *               request if not null.
+     * @return The request of a protected resource.
+     */
+    private static HttpUriRequest buildResourceRequest(AccessToken token, String url, ResourceCache.Entry cached) {
+        OAuth2RequestBuilder builder = new OAuth2RequestBuilder(HttpGet.METHOD_NAME, url, token);
+        
+        if (cached != null) {
+            if (cached.etag != null) {
+                builder.header(HttpHeaders.IF_NONE_MATCH, cached.etag);
+            }
+            if (cached.lastModified != null) {
+                builder.header(HttpHeaders.IF_MODIFIED_SINCE, cached.lastModified);
+            }
+        }
+        
+        return builder.build();
+    }
+
+    /**
+     * Get protected resources using an access token, executing up to the given
+     * number of requests at the same time, without blocking the calling thread.
+     * 
+     * @param token The token to be used for authentication.
+     * @param urls The paths to the resources.
+     * @param concurrency Maximum number of requests executed at the same time.
+     * @return The batch of requests, with a result per resource.
+     */
+    public static ResourceBatch getProtectedResources(AccessToken token, Collection<String> urls, int concurrency) {
+        return new ResourceBatch(urls, concurrency, url -> getProtectedResourceAsync(token, url));
+    }
+
+    /**
+     * Get an access token based on the given configurations, without blocking
+     * the calling thread, through the default transport.
+     * 
+     * @param config The configuration to be used for obtaining the access token.
+     * @return The future access token, completed exceptionally with an 
+     *         {@link OAuth2Exception} if the request fails.
+     */
+    public static CompletableFuture<AccessToken> getAccessTokenAsync(OAuth2Config config) {
+        return getAccessTokenAsync(config, null);
+    }
+
+    /**
+     * Get an access token based on the given configurations, without blocking
+     * the calling thread. Concurrent calls are coalesced as in {@link #getAccessToken(OAuth2Config, HttpTransport)}.
+     * 
+     * @param config The configuration to be used for obtaining the access token.
+     * @param transport The transport to be used for the request, null for the default transport.
+     * @return The future access token, completed exceptionally with an 
+     *         {@link OAuth2Exception} if the request fails.
+     */
+    public static CompletableFuture<AccessToken> getAccessTokenAsync(OAuth2Config config, HttpTransport transport) {
+        return tokenRequests.executeAsync(config, () -> requestTokenAsync(config, null, transport));
+    }
+
+    /**
+     * Refresh an access token, without blocking the calling thread, through the
+     * default transport.
+     * 
+     * @param token The token to be refreshed.
+     * @param config The configuration to be used to refresh the token.
+     * @return The future refreshed token, completed exceptionally with an 
+     *         {@link OAuth2Exception} if the request fails.
+     */
+    public static CompletableFuture<AccessToken> refreshAccessTokenAsync(AccessToken token, OAuth2Config config) {
+        return refreshAccessTokenAsync(token, config, null);
+    }
+
+    /**
+     * Refresh an access token, without blocking the calling thread. Concurrent 
+     * calls are coalesced as in {@link #refreshAccessToken(AccessToken, OAuth2Config, HttpTransport)}.
+     * 
+     * @param token The token to be refreshed.
+     * @param config The configuration to be used to refresh the token.
+     * @param transport The transport to be used for the request, null for the default transport.
+     * @return The future refreshed token, completed exceptionally with an 
+     *         {@link OAuth2Exception} if the request fails.
+     */
+    public static CompletableFuture<AccessToken> refreshAccessTokenAsync(AccessToken token, OAuth2Config config, HttpTransport transport) {
+        Object key = Arrays.asList(config, token.getRefreshToken());
+        
+        return tokenRequests.executeAsync(key, () -> requestTokenAsync(config, token, transport));
+    }
+
+    /**
+     * @return The group that coalesces the requests to the token endpoint, with 
+     *         the counters of executed and coalesced requests.
+     */
+    public static SingleFlight<Object, AccessToken> getTokenRequests() {
+        return tokenRequests;
+    }
+
+    /**
+     * Ask the introspection endpoint of the configuration about the state of a 
+     * token (RFC 7662), authenticating the client as on the token endpoint.
+     * 
+     * <p>Results are not cached, see {@link TokenIntrospector}.</p>
+     * 
+     * @param config The configuration with the introspection endpoint and the client credentials.
+     * @param token The token to be introspected.
+     * @param transport The transport to be used for the request, null for the default transport.
+     * @return The state of the token.
+     * @throws OAuth2Exception If the request fails, but not if the token is inactive.
+     */
+    public static TokenIntrospection introspectToken(OAuth2Config config, String token, HttpTransport transport) throws OAuth2Exception {
+        checkIntrospectionUrl(config);
+        
+        CloseableHttpClient httpClient = getHttpClient(transport);
+        List<ClientAuthScheme> schemes = getIntrospectionAuthSchemes(config);
+        CloseableHttpResponse response = null;
+        
+        try {
+            for (int i = 0; ; i++) {
+                response = execute(httpClient, buildIntrospectionRequest(config, token, schemes.get(i)), config.getResiliencePolicy(), true, false);
+                int code = response.getStatusLine().getStatusCode();
+                
+                if (code < 400) {
+                    rememberIntrospectionAuthScheme(config, schemes.get(i));
+                    TokenIntrospection result = new TokenIntrospection(ContentHandler.handleResponse(response));
+                    response.close();
+                    return result;
+                }
+                
+                if (i + 1 == schemes.size() || !isAuthFailure(code)) {
+                    String content = ContentHandler.readHttpEntity(response.getEntity());
+                    response.close();
+                    throw OAuth2Exception.fromHttpCode(code, content, isThrottled(code) ? getRetryAfter(response) : 0);
+                }
+                
+                response.close();
+            }
+        } catch (IOException e) {
+            LOG.error("IO error: " + e.getMessage());
+            throw new OAuth2Exception("An error ocurred while executing the request.", e);
+        }
+    }
+    
+    /**
+     * Introspect a token without blocking the calling thread, as in 
+     * {@link #introspectToken(OAuth2Config, String, HttpTransport)}.
+     * 
+     * @param config The configuration with the introspection endpoint and the client credentials.
+     * @param token The token to be introspected.
+     * @param transport The transport to be used for the request, null for the default transport.
+     * @return The future state of the token, completed exceptionally with an 
+     *         {@link OAuth2Exception} if the request fails.
+     */
+    public static CompletableFuture<TokenIntrospection> introspectTokenAsync(OAuth2Config config, String token, HttpTransport transport) {
+        try {
+            checkIntrospectionUrl(config);
+        } catch (OAuth2Exception e) {
+            CompletableFuture<TokenIntrospection> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        
+        if (config.getExecutor() != null) {
+            return executeBlocking(config.getExecutor(), () -> introspectToken(config, token, transport));
+        }
+        
+        return introspectTokenAsync(getHttpAsyncClient(transport), config, token, getIntrospectionAuthSchemes(config), 0);
+    }
+    
+    private static CompletableFuture<TokenIntrospection> introspectTokenAsync(CloseableHttpAsyncClient httpAsyncClient,
+            OAuth2Config config, String token, List<ClientAuthScheme> schemes, int index) {
+        HttpUriRequest request = buildIntrospectionRequest(config, token, schemes.get(index));
+        
+        return executeAsync(httpAsyncClient, request, config.getResiliencePolicy(), true, false).thenCompose(response -> {
+            int code = response.getStatusLine().getStatusCode();
+            
+            if (code >= 400 && index + 1 < schemes.size() && isAuthFailure(code)) {
+                return introspectTokenAsync(httpAsyncClient, config, token, schemes, index + 1);
+            }
+            
+            try {
+                if (code >= 400) {
+                    throw OAuth2Exception.fromHttpCode(code, ContentHandler.readHttpEntity(response.getEntity()), 
+                            isThrottled(code) ? getRetryAfter(response) : 0);
+                }
+                rememberIntrospectionAuthScheme(config, schemes.get(index));
+                return CompletableFuture.completedFuture(new TokenIntrospection(ContentHandler.handleResponse(response)));
+            } catch (OAuth2Exception | IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+    
+    protected static HttpUriRequest buildIntrospectionRequest(OAuth2Config config, String token, ClientAuthScheme scheme) {
+        OAuth2RequestBuilder builder = new OAuth2RequestBuilder(HttpPost.METHOD_NAME, config.getUrlIntrospection())
+                .parameter(OAuth2Constants.TOKEN, token)
+                .parameter(OAuth2Constants.TOKEN_TYPE_HINT, OAuth2Constants.ACCESS_TOKEN);
+        
+        // without a configuration the builder does not add the client credentials to the form
+        if (scheme == ClientAuthScheme.BODY) {
+            builder.parameter(OAuth2Constants.CLIENT_ID, config.getClientId())
+                   .parameter(OAuth2Constants.CLIENT_SECRET, config.getClientSecret());
+        }
+        
+        return scheme.apply(builder, config).build();
+    }
+    
+    /**
+     * Get the client authentication schemes to be tried on the introspection endpoint,
+     * in order: the scheme of the configuration, or the one last accepted by the 
+     * endpoint followed by the others. User credentials are never sent, as the
+     * client is the one introspecting.
+     */
+    private static List<ClientAuthScheme> getIntrospectionAuthSchemes(OAuth2Config config) {
+        if (config.getAuthScheme() != null && config.getAuthScheme() != ClientAuthScheme.BASIC_USER) {
+            return Collections.singletonList(config.getAuthScheme());
+        }
+        
+        ClientAuthScheme known = authSchemes.get(getIntrospectionAuthSchemeKey(config));
+        
+        if (known == ClientAuthScheme.BODY) {
+            return Arrays.asList(ClientAuthScheme.BODY, ClientAuthScheme.BASIC_CLIENT);
+        }
+        return Arrays.asList(ClientAuthScheme.BASIC_CLIENT, ClientAuthScheme.BODY);
+    }
+    
+    private static void rememberIntrospectionAuthScheme(OAuth2Config config, ClientAuthScheme scheme) {
+        if (config.getAuthScheme() == null) {
+            authSchemes.put(getIntrospectionAuthSchemeKey(config), scheme);
+        }
+    }
+    
+    private static Object getIntrospectionAuthSchemeKey(OAuth2Config config) {
+        return Arrays.asList(config.getUrlIntrospection(), OAuth2Constants.TOKEN);
+    }
+    
+    private static void checkIntrospectionUrl(OAuth2Config config) throws OAuth2Exception {
+        if (config.getUrlIntrospection() == null) {
+            throw new OAuth2Exception("The configuration has no introspection endpoint.");
+        }
+    }
+
+    /**
+     * Get the keys of a JSON Web Key Set (RFC 7517), such as the jwks_uri of an
+     * authorization server. Keys that are not public signing keys of a supported
+     * type are left out, see {@link JsonWebKey#parse(Map)}.
+     * 
+     * <p>Keys are not cached, see {@link JwksCache}.</p>
+     * 
+     * @param url The URL of the key set.
+     * @param transport The transport to be used for the request, null for the default transport.
+     * @return The keys of the set.
+     * @throws OAuth2Exception 
+     */
+    public static List<JsonWebKey> getJsonWebKeys(String url, HttpTransport transport) throws OAuth2Exception {
+        CloseableHttpResponse response = null;
+        
+        try {
+            response = execute(getHttpClient(transport), new HttpGet(url), getResiliencePolicy(transport), true, false);
+            return toJsonWebKeys(response);
+        } catch (IOException e) {
+            LOG.error("IO error: " + e.getMessage());
+            throw new OAuth2Exception("An error ocurred while executing the request.", e);
+        } finally {
+            closeQuietly(response);
+        }
+    }
+    
+    /**
+     * Get the keys of a JSON Web Key Set without blocking the calling thread, 
+     * as in {@link #getJsonWebKeys(String, HttpTransport)}.
+     * 
+     * @param url The URL of the key set.
+     * @param transport The transport to be used for the request, null for the default transport.
+     * @return The future keys of the set, completed exceptionally with an 
+     *         {@link OAuth2Exception} if the request fails.
+     */
+    public static CompletableFuture<List<JsonWebKey>> getJsonWebKeysAsync(String url, HttpTransport transport) {
+        Executor executor = getExecutor(transport);
+        
+        if (executor != null) {
+            return executeBlocking(executor, () -> getJsonWebKeys(url, transport));
+        }
+        
+        return executeAsync(getHttpAsyncClient(transport), new HttpGet(url), getResiliencePolicy(transport), true, false).thenApply(response -> {
+            try {
+                return toJsonWebKeys(response);
+            } catch (OAuth2Exception | IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+    
+    private static List<JsonWebKey> toJsonWebKeys(HttpResponse response) throws OAuth2Exception, IOException {
+        int code = response.getStatusLine().getStatusCode();
+        String content = ContentHandler.readHttpEntity(response.getEntity());
+        
+        if (code >= 400) {
+            throw OAuth2Exception.fromHttpCode(code, content, isThrottled(code) ? getRetryAfter(response) : 0);
+        }
+        
+        // served as application/jwk-set+json, or just as JSON
+        Object keys = ContentHandler.handleJsonResponse(content).get("keys");
+        
+        if (!(keys instanceof List)) {
+            throw new OAuth2Exception("The response is not a JSON Web Key Set.");
+        }
+        
+        List<JsonWebKey> result = new ArrayList<>();
+        
+        for (Object key : (List<?>) keys) {
+            JsonWebKey jwk = (key instanceof Map) ? JsonWebKey.parse((Map<?, ?>) key) : null;
+            
+            if (jwk != null) {
+                result.add(jwk);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Request a token, authenticating the client with the known scheme for the 
+     * endpoint or trying each scheme in turn until one is accepted, see {@link #getAuthSchemes(OAuth2Config)}.
+     * 
+     * @param config The configuration to be used for obtaining the access token.
+     * @param token The token to be refreshed, if the grant type is {@link OAuth2Constants#GRANT_REFRESH_TOKEN}.
+     * @param transport The transport to be used for the requests, null for the default transport.
+     * @return The obtained access token.
+     * @throws OAuth2Exception 
+     */
+    protected static AccessToken requestToken(OAuth2Config config, AccessToken token, HttpTransport transport) throws OAuth2Exception {
+        CloseableHttpClient httpClient = getHttpClient(transport);
+        List<ClientAuthScheme> schemes = getAuthSchemes(config);
+        OAuth2Metrics metrics = config.getMetrics();
+        
+        CloseableHttpResponse response = null;
+        AccessToken accessToken = null;
+        long start = System.nanoTime();
+        
+        try {
+            getTokenEndpointLimiter(config).acquire();
+        } catch (RateLimitedException e) {
+            metrics.tokenRequestThrottled(config.getUrlAccessToken(), e.getRetryAfter());
+            throw e;
+        }
+        
+        try {
+            for (int i = 0; i < schemes.size(); i++) {
+                ClientAuthScheme scheme = schemes.get(i);
+                start = System.nanoTime();
+                response = null;
+                response = execute(httpClient, buildTokenRequest(config, token, scheme), config.getResiliencePolicy(), isIdempotent(config), false);
+                int code = response.getStatusLine().getStatusCode();
+                metrics.tokenRequest(config.getUrlAccessToken(), config.getGrantType(), code, System.nanoTime() - start);
+                
+                if (code < 400) {
+                    rememberAuthScheme(config, scheme);
+                    break;
+                }
+                
+                if (i + 1 == schemes.size() || !isAuthFailure(code)) {
+                    long retryAfter = isThrottled(code) ? throttled(config, response) : 0;
+                    String content = ContentHandler.readHttpEntity(response.getEntity());
+                    throw OAuth2Exception.fromHttpCode(code, content, retryAfter);
+                }
+                
+                forgetAuthScheme(config, scheme);
+                metrics.authSchemeFallback(config.getUrlAccessToken(), config.getGrantType(), scheme);
+                response.close();
+            }
+            
+            getTokenEndpointLimiter(config).onSuccess();
+            accessToken = ContentHandler.handleTokenResponse(response, metrics);
+            accessToken.setTransport(transport);
+        } catch (IOException e) {
+            LOG.error("IO error: " + e.getMessage());
+            if (response == null) {
+                metrics.tokenRequestFailed(config.getUrlAccessToken(), config.getGrantType(), System.nanoTime() - start);
+            }
+            throw new OAuth2Exception("An error ocurred while executing the request.", e);
+        } finally {
+            // also when the response can't be read or parsed, or the connection would leak
+            closeQuietly(response);
+        }
+
+        return accessToken;
+    }
+    
+    /**
+     * Request a token without blocking the calling thread, as in {@link #requestToken(OAuth2Config, AccessToken, HttpTransport)}.
+     * 
+     * @param config The configuration to be used for obtaining the access token.
+     * @param token The token to be refreshed, if the grant type is {@link OAuth2Constants#GRANT_REFRESH_TOKEN}.
+     * @param transport The transport to be used for the requests, null for the default transport.
+     * @return The future access token.
+     */
+    protected static CompletableFuture<AccessToken> requestTokenAsync(OAuth2Config config, AccessToken token, HttpTransport transport) {
+        if (config.getExecutor() != null) {
+            return executeBlocking(config.getExecutor(), () -> requestToken(config, token, transport));
+        }
+        
+        return getTokenEndpointLimiter(config).reserveAsync().whenComplete((permit, error) -> {
+            if (error instanceof RateLimitedException) {
+                config.getMetrics().tokenRequestThrottled(config.getUrlAccessToken(), ((RateLimitedException) error).getRetryAfter());
+            }
+        }).thenCompose(permit -> requestTokenAsync(getHttpAsyncClient(transport), config, token, getAuthSchemes(config), 0))
+          .thenApply(response -> toAccessToken(response, config, transport));
+    }
+    
+    private static CompletableFuture<HttpResponse> requestTokenAsync(CloseableHttpAsyncClient httpAsyncClient,
+            OAuth2Config config, AccessToken token, List<ClientAuthScheme> schemes, int index) {
+        ClientAuthScheme scheme = schemes.get(index);
+        OAuth2Metrics metrics = config.getMetrics();
+        long start = System.nanoTime();
+        
+        return executeAsync(httpAsyncClient, buildTokenRequest(config, token, scheme), config.getResiliencePolicy(), isIdempotent(config), false).whenComplete((response, error) -> {
+            if (error != null) {
+                metrics.tokenRequestFailed(config.getUrlAccessToken(), config.getGrantType(), System.nanoTime() - start);
+            }
+        }).thenCompose(response -> {
+            int code = response.getStatusLine().getStatusCode();
+            metrics.tokenRequest(config.getUrlAccessToken(), config.getGrantType(), code, System.nanoTime() - start);
+            
+            if (code < 400) {
+                rememberAuthScheme(config, scheme);
+            } else if (index + 1 < schemes.size() && isAuthFailure(code)) {
+                forgetAuthScheme(config, scheme);
+                metrics.authSchemeFallback(config.getUrlAccessToken(), config.getGrantType(), scheme);
+                return requestTokenAsync(httpAsyncClient, config, token, schemes, index + 1);
+            }
+            
+            return CompletableFuture.completedFuture(response);
+        });
+    }
+    
+    protected static HttpUriRequest buildTokenRequest(OAuth2Config config, AccessToken token, ClientAuthScheme scheme) {
+        return getTokenRequestTemplate(config, scheme).build(token);
+    }
+    
+    /**
+     * Get the compiled token request of the configuration, compiling it on the first
+     * request or when the secrets of the configuration have changed.
+     * 
+     * @param config The configuration of the token.
+     * @param scheme The client authentication scheme.
+     * @return The template of the token request.
+     */
+    protected static TokenRequestTemplate getTokenRequestTemplate(OAuth2Config config, ClientAuthScheme scheme) {
+        Object key = Arrays.asList(config, scheme);
+        TokenRequestTemplate template = tokenRequestTemplates.getIfPresent(key);
+        
+        if (template == null || !template.isCompiledFor(config)) {
+            template = TokenRequestTemplate.compile(config, scheme);
+            tokenRequestTemplates.put(key, template);
+        }
+        
+        return template;
+    }
+    
+    /**
+     * Get the client authentication schemes to be tried on the token endpoint, in order.
+     * 
+     * <p>If the configuration sets a scheme only that one is used. Otherwise the
+     * scheme last accepted by the endpoint for the grant type comes first, followed
+     * by the remaining ones, so that the endpoint is probed again only after an 
+     * authentication failure.</p>
+     * 
+     * @param config
+     * @return 
+     */
+    protected static List<ClientAuthScheme> getAuthSchemes(OAuth2Config config) {
+        if (config.getAuthScheme() != null) {
+            return Collections.singletonList(config.getAuthScheme());
+        }
+        
+        ClientAuthScheme known = authSchemes.get(getAuthSchemeKey(config));
+        List<ClientAuthScheme> schemes = new ArrayList<>(3);
+        
+        if (known != null) {
+            schemes.add(known);
+        }
+        
+        for (ClientAuthScheme scheme : ClientAuthScheme.values()) {
+            // user credentials are only sent with the password grant
+            if (scheme == known || (scheme == ClientAuthScheme.BASIC_USER 
+                    && !OAuth2Constants.GRANT_PASSWORD.equals(config.getGrantType()))) {
+                continue;
+            }
+            schemes.add(scheme);
+        }
+        
+        return schemes;
+    }
+    
+    private static void rememberAuthScheme(OAuth2Config config, ClientAuthScheme scheme) {
+        if (config.getAuthScheme() == null) {
+            authSchemes.put(getAuthSchemeKey(config), scheme);
+        }
+    }
+    
+    private static void forgetAuthScheme(OAuth2Config config, ClientAuthScheme scheme) {
+        authSchemes.remove(getAuthSchemeKey(config), scheme);
+    }
+    
+    private static Object getAuthSchemeKey(OAuth2Config config) {
+        return Arrays.asList(config.getUrlAccessToken(), config.getGrantType());
+    }
+    
+    private static boolean isAuthFailure(int code) {
+        // a throttled request must not be retried with another scheme
+        return code >= 400 && code < 500 && !isThrottled(code);
+    }
+    
+    /**
+     * Execute a request through the circuit breaker of its endpoint, retrying it
+     * on transient I/O errors as given by the policy.
+     * 
+     * @param httpClient The HTTP client.
+     * @param request The request, with a repeatable entity if any.
+     * @param policy The retry and circuit breaker settings.
+     * @param idempotent Whether the request can be repeated after reaching the server.
+     * @param resource Whether the request is for a protected resource, sharing the
+     *                 circuit breaker of its host, or for an endpoint of the provider.
+     * @return The response.
+     * @throws IOException The error of the last attempt.
+     * @throws OAuth2Exception If the circuit is open or the thread was interrupted.
+     */
+    protected static CloseableHttpResponse execute(CloseableHttpClient httpClient, HttpUriRequest request,
+            ResiliencePolicy policy, boolean idempotent, boolean resource) throws IOException, OAuth2Exception {
+        CircuitBreaker breaker = getCircuitBreaker(request, policy, resource);
+        
+        for (int retry = 1; ; retry++) {
+            boolean probe = breaker.acquire();
+            boolean recorded = false;
+            
+            try {
+                CloseableHttpResponse response = httpClient.execute(request);
+                record(breaker, probe, response);
+                recorded = true;
+                return response;
+            } catch (IOException e) {
+                breaker.onFailure(probe);
+                recorded = true;
+                
+                if (!shouldRetry(e, retry, policy, idempotent, breaker)) {
+                    throw e;
+                }
+                
+                sleep(backoff(request, e, retry, policy));
+            } finally {
+                if (!recorded) {
+                    breaker.onFailure(probe);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Execute a request without blocking the calling thread, as in 
+     * {@link #execute(CloseableHttpClient, HttpUriRequest, ResiliencePolicy, boolean, boolean)}.
+     * 
+     * @param httpAsyncClient The asynchronous HTTP client.
+     * @param request The request, with a repeatable entity if any.
+     * @param policy The retry and circuit breaker settings.
+     * @param idempotent Whether the request can be repeated after reaching the server.
+     * @param resource Whether the request is for a protected resource or for an endpoint of the provider.
+     * @return The future response.
+     */
+    protected static CompletableFuture<HttpResponse> executeAsync(CloseableHttpAsyncClient httpAsyncClient,
+            HttpUriRequest request, ResiliencePolicy policy, boolean idempotent, boolean resource) {
+        return executeAsync(httpAsyncClient, request, policy, idempotent, getCircuitBreaker(request, policy, resource), 1);
+    }
+    
+    private static CompletableFuture<HttpResponse> executeAsync(CloseableHttpAsyncClient httpAsyncClient,
+            HttpUriRequest request, ResiliencePolicy policy, boolean idempotent, CircuitBreaker breaker, int retry) {
+        final boolean probe;
+        
+        try {
+            probe = breaker.acquire();
+        } catch (CircuitOpenException e) {
+            CompletableFuture<HttpResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        
+        return executeAsync(httpAsyncClient, request).handle((response, error) -> {
+            if (error == null) {
+                record(breaker, probe, response);
+                return CompletableFuture.completedFuture(response);
+            }
+            
+            breaker.onFailure(probe);
+            Throwable cause = (error instanceof CompletionException) ? error.getCause() : error;
+            
+            if (cause.getCause() instanceof IOException && shouldRetry((IOException) cause.getCause(), retry, policy, idempotent, breaker)) {
+                return delay(backoff(request, (IOException) cause.getCause(), retry, policy))
+                        .thenCompose(v -> executeAsync(httpAsyncClient, request, policy, idempotent, breaker, retry + 1));
+            }
+            
+            CompletableFuture<HttpResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(cause);
+            return failed;
+        }).thenCompose(future -> future);
+    }
+    
+    private static void record(CircuitBreaker breaker, boolean probe, HttpResponse response) {
+        if (response.getStatusLine().getStatusCode() >= 500) {
+            breaker.onFailure(probe);
+        } else {
+            breaker.onSuccess(probe);
+        }
+    }
+    
+    private static boolean shouldRetry(IOException e, int retry, ResiliencePolicy policy, boolean idempotent, CircuitBreaker breaker) {
+        return retry <= policy.getMaxRetries() && isRetryable(e, idempotent) && breaker.tryRetry();
+    }
+    
+    private static long backoff(HttpUriRequest request, IOException e, int retry, ResiliencePolicy policy) {
+        long backoff = policy.getBackoff(retry, ThreadLocalRandom.current().nextDouble());
+        LOG.warn("IO error: " + e.getMessage() + ", retrying " + request.getMethod() + " " 
+                + request.getURI() + " in " + backoff + "ms.");
+        return backoff;
+    }
+    
+    /**
+     * @param e The error of the request.
+     * @param idempotent Whether the request can be repeated after reaching the server.
+     * @return True if the error is transient and the request can be safely repeated.
+     */
+    protected static boolean isRetryable(IOException e, boolean idempotent) {
+        if (e instanceof UnknownHostException || e instanceof SSLException) {
+            return false;
+        }
+        
+        // the request never reached the server
+        if (e instanceof ConnectException || e instanceof ConnectTimeoutException) {
+            return true;
+        }
+        
+        // interrupted, not timed out
+        if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+            return false;
+        }
+        
+        return idempotent;
+    }
+    
+    /**
+     * A refresh token may be rotated by the server, so a refresh request that 
+     * reached it must not be repeated.
+     */
+    private static boolean isIdempotent(OAuth2Config config) {
+        return !OAuth2Constants.GRANT_REFRESH_TOKEN.equals(config.getGrantType());
+    }
+    
+    private static void sleep(long millis) throws OAuth2Exception {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OAuth2Exception("Interrupted while waiting to retry the request.", e);
+        }
+    }
+    
+    /**
+     * @param millis The delay, in milliseconds.
+     * @return A future completed after the delay.
+     */
+    static CompletableFuture<Void> delay(long millis) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        
+        if (millis > 0) {
+            scheduler.schedule(() -> future.complete(null), millis, TimeUnit.MILLISECONDS);
+        } else {
+            future.complete(null);
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Get the circuit breaker of an endpoint.
+     * 
+     * <p>Circuit breakers are shared by the clients with the same policy instance,
+     * such as {@link ResiliencePolicy#DEFAULT}. Each endpoint of the provider (token,
+     * introspection, keys) has its own, named after its URL without the query, e.g.
+     * https://example.com:443/oauth/token, while the protected resources of a host
+     * share one named after the host, e.g. https://example.com:443. Failures of the
+     * resource servers thus never open the circuit of the token endpoint.</p>
+     * 
+     * @param policy The policy of the client.
+     * @param endpoint The name of the endpoint.
+     * @return The circuit breaker of the endpoint, or null if no request was made to it.
+     */
+    public static CircuitBreaker getCircuitBreaker(ResiliencePolicy policy, String endpoint) {
+        ConcurrentMap<String, CircuitBreaker> breakers = circuitBreakers.getIfPresent(policy);
+        return (breakers != null) ? breakers.get(endpoint) : null;
+    }
+    
+    /**
+     * @param request The request.
+     * @param policy The policy of the client, with the settings of the circuit breaker.
+     * @param resource Whether the request is for a protected resource.
+     * @return The circuit breaker of the endpoint of the request.
+     */
+    protected static CircuitBreaker getCircuitBreaker(HttpUriRequest request, ResiliencePolicy policy, boolean resource) {
+        URI uri = request.getURI();
+        String endpoint = uri.getScheme() + "://" + uri.getHost() + ":" + getPort(uri);
+        
+        if (!resource && uri.getRawPath() != null) {
+            endpoint += uri.getRawPath();
+        }
+        
+        ConcurrentMap<String, CircuitBreaker> breakers = circuitBreakers.getUnchecked(policy);
+        CircuitBreaker breaker = breakers.get(endpoint);
+        
+        if (breaker == null) {
+            breaker = breakers.computeIfAbsent(endpoint, key -> new CircuitBreaker(key, policy));
+        }
+        return breaker;
+    }
+    
+    private static int getPort(URI uri) {
+        if (uri.getPort() != -1) {
+            return uri.getPort();
+        }
+        return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+    
+    /**
+     * Forget the circuit breakers of all the endpoints.
+     */
+    static void clearCircuitBreakers() {
+        circuitBreakers.invalidateAll();
+    }
+    
+    /**
+     * Run a blocking request on an executor, such as the one of {@link VirtualThreads}.
+     * 
+     * @param <T> The type of the result of the request.
+     * @param executor The executor.
+     * @param request The request.
+     * @return The future result of the request, completed exceptionally with 
+     *         an {@link OAuth2Exception} if the request fails.
+     */
+    protected static <T> CompletableFuture<T> executeBlocking(Executor executor, Callable<T> request) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(request.call());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new OAuth2Exception("The request was rejected by the executor.", e));
+        }
+        
+        return future;
+    }
+    
+    protected static Executor getExecutor(HttpTransport transport) {
+        return (transport != null) ? transport.getExecutor() : null;
+    }
+    
+    protected static ResiliencePolicy getResiliencePolicy(HttpTransport transport) {
+        return (transport != null) ? transport.getResiliencePolicy() : ResiliencePolicy.DEFAULT;
+    }
+    
+    protected static CompletableFuture<HttpResponse> executeAsync(CloseableHttpAsyncClient httpAsyncClient, HttpUriRequest request) {
+        final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        
+        httpAsyncClient.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                future.complete(response);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                LOG.error("IO error: " + e.getMessage());
+                future.completeExceptionally(new OAuth2Exception("An error ocurred while executing the request.", e));
+            }
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+        
+        return future;
+    }
+    
+    private static AccessToken toAccessToken(HttpResponse response, OAuth2Config config, HttpTransport transport) {
+        try {
+            int code = response.getStatusLine().getStatusCode();
+            
+            if (code >= 400) {
+                long retryAfter = isThrottled(code) ? throttled(config, response) : 0;
+                throw OAuth2Exception.fromHttpCode(code, ContentHandler.readHttpEntity(response.getEntity()), retryAfter);
+            }
+            
+            getTokenEndpointLimiter(config).onSuccess();
+            AccessToken accessToken = ContentHandler.handleTokenResponse(response, config.getMetrics());
+            accessToken.setTransport(transport);
+            return accessToken;
+        } catch (OAuth2Exception | IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+    
+    /**
+     * Unwrap the cause of a failed asynchronous call.
+     * 
+     * @param cause The failure of the call.
+     * @return The {@link OAuth2Exception} that caused the failure.
+     */
+    static OAuth2Exception unwrap(Throwable cause) {
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        
+        if (cause instanceof OAuth2Exception) {
+            return (OAuth2Exception) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        
+        return new OAuth2Exception("An error ocurred while executing the request.", cause);
+    }
+    
+    private static void closeQuietly(CloseableHttpResponse response) {
+        if (response != null) {
+            try {
+                response.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing the response: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Split a scope into the set of its scopes. Scopes are separated by spaces
+     * (RFC 6749), but some providers use commas.
+     * 
+     * @param scope The scope, may be null.
+     * @return The sorted set of scopes, empty if there is none.
+     */
+    public static Set<String> parseScopes(String scope) {
+        if (scope == null || scope.trim().isEmpty()) {
+            return Collections.emptySet();
+        }
+        
+        Set<String> scopes = new TreeSet<>();
+        
+        for (String s : scope.split("[\\s,]+")) {
+            if (!s.isEmpty()) {
+                scopes.add(s);
+            }
+        }
+        return Collections.unmodifiableSet(scopes);
+    }
+    
+    /**
+     * @return The transport used when no other is given, created on first use.
+     */
+    public static HttpTransport getDefaultTransport() {
+        return DefaultTransportHolder.INSTANCE;
+    }
+    
+    /**
+     * @param transport The transport of a request, may be null for the default transport.
+     * @return The listener of the requests made through the transport.
+     */
+    protected static OAuth2Metrics getMetrics(HttpTransport transport) {
+        return (transport != null) ? transport.getMetrics() : OAuth2Metrics.NOOP;
+    }
+    
+    /**
+     * @param url The URL of the token endpoint.
+     * @return The rate limiter of the token endpoint, or null if no token was requested from it.
+     */
+    public static TokenEndpointLimiter getTokenEndpointLimiter(String url) {
+        return tokenEndpointLimiters.get(url);
+    }
+    
+    /**
+     * @param config The configuration of the token.
+     * @return The rate limiter of the token endpoint, created with the settings of the configuration.
+     */
+    protected static TokenEndpointLimiter getTokenEndpointLimiter(OAuth2Config config) {
+        TokenEndpointLimiter limiter = tokenEndpointLimiters.get(config.getUrlAccessToken());
+        
+        if (limiter == null) {
+            limiter = tokenEndpointLimiters.computeIfAbsent(config.getUrlAccessToken(), url -> 
+                    new TokenEndpointLimiter(url, config.getTokenRequestRate(), config.getMaxTokenRequestDelay()));
+        }
+        return limiter;
+    }
+    
+    /**
+     * Forget the rate limiters of all the token endpoints.
+     */
+    static void clearTokenEndpointLimiters() {
+        tokenEndpointLimiters.clear();
+    }
+    
+    private static boolean isThrottled(int code) {
+        return code == 429 || code == 503;
+    }
+    
+    /**
+     * Make the limiter of the token endpoint back off after a throttled request.
+     * 
+     * @return The time the limiter is backing off, in milliseconds.
+     */
+    private static long throttled(OAuth2Config config, HttpResponse response) {
+        long retryAfter = getTokenEndpointLimiter(config).onThrottled(getRetryAfter(response));
+        LOG.warn("Token endpoint " + config.getUrlAccessToken() + " is throttling the requests, backing off for " + retryAfter + "ms.");
+        config.getMetrics().tokenRequestThrottled(config.getUrlAccessToken(), retryAfter);
+        return retryAfter;
+    }
+    
+    /**
+     * @param response The response of the server.
+     * @return The value of the Retry-After header, either in seconds or as a date, 
+     *         in milliseconds, zero if there is none.
+     */
+    protected static long getRetryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        
+        if (header == null || header.getValue() == null) {
+            return 0;
+        }
+        
+        String value = header.getValue().trim();
+        
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return (date != null) ? Math.max(0, date.getTime() - System.currentTimeMillis()) : 0;
+        }
+    }
+    
+    protected static ResourceCache getResourceCache(HttpTransport transport) {
+        return (transport != null) ? transport.getResourceCache() : null;
+    }
+    
+    protected static int getMaxConcurrentResources(HttpTransport transport) {
+        return (transport != null) ? transport.getMaxConcurrentResources() : OAuth2Config.DEFAULT_MAX_CONCURRENT_RESOURCES;
+    }
+    
+    protected static CloseableHttpClient getHttpClient() {
+        return getHttpClient(null);
+    }
+    
+    protected static CloseableHttpClient getHttpClient(HttpTransport transport) {
+        CloseableHttpClient client = httpClient;
+        
+        if (client != null) {
+            return client;
+        }
+        return (transport != null ? transport : getDefaultTransport()).getHttpClient();
+    }
+    
+    protected static CloseableHttpAsyncClient getHttpAsyncClient(HttpTransport transport) {
+        CloseableHttpAsyncClient client = httpAsyncClient;
+        
+        if (client != null) {
+            if (!client.isRunning()) {
+                client.start();
+            }
+            return client;
+        }
+        return (transport != null ? transport : getDefaultTransport()).getHttpAsyncClient();
+    }
+    
+    /**
+     * Override the HTTP client of all transports, including the ones owned by
+     * each {@link OAuth2Client}, bypassing their settings, connection pools and
+     * eviction. Mostly useful for testing.
+     * 
+     * @param client The client to be used, or null to remove the override.
+     * @deprecated Pass a transport created with
+     *             {@link HttpTransport#HttpTransport(CloseableHttpClient, CloseableHttpAsyncClient)}
+     *             to the methods that take one, or set it in the configuration
+     *             with {@link OAuth2Config.Builder#transport(HttpTransport)}, instead.
+     */
+    @Deprecated
+    public static void setHttpClient(CloseableHttpClient client) {
+        httpClient = client;
+    }
+    
+    /**
+     * Override the asynchronous HTTP client of all transports, including the ones
+     * owned by each {@link OAuth2Client}, bypassing their settings, connection
+     * pools and eviction. Mostly useful for testing.
+     * 
+     * @param client The client to be used, or null to remove the override.
+     * @deprecated Pass a transport created with
+     *             {@link HttpTransport#HttpTransport(CloseableHttpClient, CloseableHttpAsyncClient)}
+     *             to the methods that take one, or set it in the configuration
+     *             with {@link OAuth2Config.Builder#transport(HttpTransport)}, instead.
+     */
+    @Deprecated
+    public static void setHttpAsyncClient(CloseableHttpAsyncClient client) {
+        httpAsyncClient = client;
+    }
+    
+    private static class DefaultTransportHolder {
+        private static final HttpTransport INSTANCE = HttpTransport.createDefault();
+    }
+    
+    /**
+     * Content of a response that closes the response, and so releases its 
+     * connection, when closed.
+     */
+    private static class ResponseInputStream extends FilterInputStream {
+        private final CloseableHttpResponse response;
+
+        public ResponseInputStream(InputStream in, CloseableHttpResponse response) {
+            super(in);
+            this.response = response;
+        }
+
+        @Override
+        public void close() throws IOException {
+            response.close();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,29 @@
+package org.mayconbordin.oauth2.client;
+
+/**
+ * A server is rate limiting the client, because it answered with 429 Too Many
+ * Requests or 503 Service Unavailable. For the token endpoint, it is also thrown
+ * while the client backs off after such an answer, see {@link TokenEndpointLimiter}.
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class RateLimitedException extends OAuth2Exception {
+    private final long retryAfter;
+
+    public RateLimitedException(int httpCode, String response, long retryAfter) {
+        super("The server is rate limiting the requests.", httpCode, response);
+        this.retryAfter = retryAfter;
+    }
+
+    public RateLimitedException(long retryAfter) {
+        super("The requests to the authorization server are backing off.");
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return Time to wait before the next request, in milliseconds, zero if unknown.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,179 @@
+package org.mayconbordin.oauth2.client;
+
+/**
+ * How requests that fail with an I/O error are retried, and when an endpoint that
+ * keeps failing is cut off by its {@link CircuitBreaker}.
+ *
+ * <p>Retries wait an exponential backoff with full jitter, and are only made
+ * when repeating the request is safe: for resource and grant requests on any
+ * transient I/O error, and for refresh requests only if the connection could
+ * not be established, as the refresh token may be rotated once it reaches the
+ * server. Retries also draw from a budget shared by all the requests to an endpoint,
+ * so they add at most a fraction of the load when it is degraded.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class ResiliencePolicy {
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final long DEFAULT_BASE_BACKOFF = 100;
+    public static final long DEFAULT_MAX_BACKOFF = 2000;
+    public static final int DEFAULT_RETRY_BUDGET = 10;
+    public static final double DEFAULT_RETRY_RATIO = 0.2;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_TIME = 30000;
+
+    /**
+     * The default policy.
+     */
+    public static final ResiliencePolicy DEFAULT = new Builder().build();
+
+    /**
+     * A policy without retries nor circuit breaker.
+     */
+    public static final ResiliencePolicy NONE = new Builder().maxRetries(0).circuitBreaker(0, DEFAULT_OPEN_TIME).build();
+
+    private final int maxRetries;
+    private final long baseBackoff;
+    private final long maxBackoff;
+    private final int retryBudget;
+    private final double retryRatio;
+    private final int failureThreshold;
+    private final long openTime;
+
+    private ResiliencePolicy(Builder builder) {
+        this.maxRetries = builder.maxRetries;
+        this.baseBackoff = builder.baseBackoff;
+        this.maxBackoff = builder.maxBackoff;
+        this.retryBudget = builder.retryBudget;
+        this.retryRatio = builder.retryRatio;
+        this.failureThreshold = builder.failureThreshold;
+        this.openTime = builder.openTime;
+    }
+
+    /**
+     * @return Maximum number of retries of a request.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @return Upper bound of the backoff before the first retry, doubled on each
+     *         retry, in milliseconds.
+     */
+    public long getBaseBackoff() {
+        return baseBackoff;
+    }
+
+    /**
+     * @return Upper bound of the backoff before any retry, in milliseconds.
+     */
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * @return Maximum number of retries saved up in the budget of an endpoint.
+     */
+    public int getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * @return Fraction of a retry added to the budget of an endpoint by each successful request.
+     */
+    public double getRetryRatio() {
+        return retryRatio;
+    }
+
+    /**
+     * @return Number of consecutive failures that open the circuit of an endpoint,
+     *         zero if the circuit is never opened.
+     */
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * @return Time the circuit stays open before a request probes the endpoint, in milliseconds.
+     */
+    public long getOpenTime() {
+        return openTime;
+    }
+
+    /**
+     * Compute the backoff before a retry.
+     *
+     * @param retry The number of the retry, starting at one.
+     * @param random A random number in [0, 1).
+     * @return The backoff, in milliseconds.
+     */
+    long getBackoff(int retry, double random) {
+        long ceiling = baseBackoff << Math.min(retry - 1, 30);
+        return (long) (random * Math.min(Math.max(ceiling, 0), maxBackoff));
+    }
+
+    /**
+     * Class used for building the {@link ResiliencePolicy}.
+     */
+    public static class Builder {
+        private int maxRetries = DEFAULT_MAX_RETRIES;
+        private long baseBackoff = DEFAULT_BASE_BACKOFF;
+        private long maxBackoff = DEFAULT_MAX_BACKOFF;
+        private int retryBudget = DEFAULT_RETRY_BUDGET;
+        private double retryRatio = DEFAULT_RETRY_RATIO;
+        private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+        private long openTime = DEFAULT_OPEN_TIME;
+
+        /**
+         * @param maxRetries The maximum number of retries of a request, zero disables them.
+         * @return
+         */
+        public Builder maxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * @param baseBackoff The upper bound of the first backoff, in milliseconds.
+         * @param maxBackoff The upper bound of any backoff, in milliseconds.
+         * @return
+         */
+        public Builder backoff(long baseBackoff, long maxBackoff) {
+            this.baseBackoff = baseBackoff;
+            this.maxBackoff = maxBackoff;
+            return this;
+        }
+
+        /**
+         * @param retryBudget The maximum number of retries saved up per endpoint.
+         * @param retryRatio The fraction of a retry earned by each successful request.
+         * @return
+         */
+        public Builder retryBudget(int retryBudget, double retryRatio) {
+            this.retryBudget = retryBudget;
+            this.retryRatio = retryRatio;
+            return this;
+        }
+
+        /**
+         * @param failureThreshold The consecutive failures that open the circuit, zero disables it.
+         * @param openTime The time the circuit stays open, in milliseconds.
+         * @return
+         */
+        public Builder circuitBreaker(int failureThreshold, long openTime) {
+            this.failureThreshold = failureThreshold;
+            this.openTime = openTime;
+            return this;
+        }
+
+        /**
+         * Build the policy.
+         *
+         * @return
+         */
+        public ResiliencePolicy build() {
+            return new ResiliencePolicy(this);
+        }
+    }
+}
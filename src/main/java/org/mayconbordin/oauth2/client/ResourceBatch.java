@@ -0,0 +1,183 @@
+package org.mayconbordin.oauth2.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A batch of requests of protected resources executed concurrently.
+ *
+ * <p>At most a given number of requests are in flight at the same time, each one
+ * started as soon as another completes, on the pooled connections of the
+ * asynchronous HTTP client. The results can be taken in the order they complete,
+ * with {@link #take()}, or all together in the order of the URLs, with
+ * {@link #getResults()}. A failed request does not affect the others, its
+ * {@link ResourceResult} carries the error instead.</p>
+ *
+ * <pre>
+ * ResourceBatch batch = token.getResources(urls);
+ * ResourceResult result;
+ *
+ * while ((result = batch.take()) != null) {
+ *     // ...
+ * }
+ * </pre>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class ResourceBatch {
+    private final List<String> urls;
+    private final Function<String, CompletableFuture<String>> request;
+    private final ResourceResult[] results;
+    private final BlockingQueue<ResourceResult> completed = new LinkedBlockingQueue<>();
+    private final CompletableFuture<List<ResourceResult>> done = new CompletableFuture<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger remaining;
+    private final AtomicInteger taken = new AtomicInteger();
+
+    /**
+     * Start the requests of the batch.
+     *
+     * @param urls The URLs of the resources.
+     * @param concurrency Maximum number of requests in flight.
+     * @param request Starts the request of a single resource.
+     */
+    ResourceBatch(Collection<String> urls, int concurrency, Function<String, CompletableFuture<String>> request) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("The number of concurrent requests must be at least one.");
+        }
+
+        this.urls = new ArrayList<>(urls);
+        this.request = request;
+        this.results = new ResourceResult[this.urls.size()];
+        this.remaining = new AtomicInteger(this.urls.size());
+
+        if (this.urls.isEmpty()) {
+            done.complete(new ArrayList<ResourceResult>());
+        }
+
+        for (int i = 0; i < Math.min(concurrency, this.urls.size()); i++) {
+            startNext();
+        }
+    }
+
+    /**
+     * Start the next pending request, and the ones after it while they complete
+     * immediately, so that completions don't recurse on the stack.
+     */
+    private void startNext() {
+        int index;
+
+        while ((index = next.getAndIncrement()) < urls.size()) {
+            final int current = index;
+            CompletableFuture<String> future = start(urls.get(current));
+
+            if (!future.isDone()) {
+                future.whenComplete((content, error) -> {
+                    complete(current, content, error);
+                    startNext();
+                });
+                return;
+            }
+
+            future.whenComplete((content, error) -> complete(current, content, error));
+        }
+    }
+
+    private CompletableFuture<String> start(String url) {
+        try {
+            return request.apply(url);
+        } catch (RuntimeException e) {
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private void complete(int index, String content, Throwable error) {
+        ResourceResult result = new ResourceResult(urls.get(index), content, (error != null) ? toOAuth2Exception(error) : null);
+        results[index] = result;
+        completed.add(result);
+
+        if (remaining.decrementAndGet() == 0) {
+            done.complete(Arrays.asList(results));
+        }
+    }
+
+    private static OAuth2Exception toOAuth2Exception(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+
+        if (error instanceof OAuth2Exception) {
+            return (OAuth2Exception) error;
+        }
+
+        return new OAuth2Exception("An error ocurred while executing the request.", error);
+    }
+
+    /**
+     * @return The number of resources in the batch.
+     */
+    public int size() {
+        return urls.size();
+    }
+
+    /**
+     * Wait for the next completed request.
+     *
+     * @return The result of the request, or null if all of them were already taken.
+     * @throws InterruptedException
+     */
+    public ResourceResult take() throws InterruptedException {
+        if (taken.getAndIncrement() >= urls.size()) {
+            return null;
+        }
+        return completed.take();
+    }
+
+    /**
+     * Wait up to the given time for the next completed request.
+     *
+     * @param timeout How long to wait.
+     * @param unit The unit of the timeout.
+     * @return The result of the request, or null if all of them were already taken
+     *         or if none completed in time.
+     * @throws InterruptedException
+     */
+    public ResourceResult poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (taken.getAndIncrement() >= urls.size()) {
+            return null;
+        }
+
+        ResourceResult result = completed.poll(timeout, unit);
+
+        if (result == null) {
+            taken.decrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * @return The future results of all the requests, in the order of the URLs.
+     *         It is independent from {@link #take()}, which still returns every result.
+     */
+    public CompletableFuture<List<ResourceResult>> getResults() {
+        return done;
+    }
+
+    /**
+     * @return True if all the requests have completed.
+     */
+    public boolean isDone() {
+        return done.isDone();
+    }
+}
@@ -0,0 +1,155 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * The content sent to a protected resource, streamed from its source as the
+ * request is written, without being buffered in memory.
+ *
+ * <p>Content of unknown length, from a stream or a producer, is sent with chunked
+ * transfer encoding. A file is sent with its length, unless {@link #chunked()}
+ * is called. Once its content was written a body is not replayed with a new token,
+ * see {@link #isSent()}, but a repeatable body of a PUT or DELETE request is written
+ * again when the request is retried after an I/O error, as those methods are
+ * idempotent.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class ResourceBody {
+    private final AbstractHttpEntity entity;
+    private final TrackingEntity trackingEntity;
+    private volatile boolean sent;
+
+    /**
+     * Callback that writes the content of a body.
+     */
+    public interface Producer {
+        /**
+         * Write the content. It may be called again, so it must write the same
+         * content every time: by a PUT or DELETE request retried after an I/O
+         * error, even if the content was already sent, and by any request
+         * retried before it was sent.
+         *
+         * @param out The stream of the request, closed by the client.
+         * @throws IOException If the content can't be written.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private ResourceBody(AbstractHttpEntity entity, String contentType) {
+        this.entity = entity;
+        this.entity.setContentType(contentType);
+        this.trackingEntity = new TrackingEntity(entity);
+    }
+
+    /**
+     * Create a body of unknown length, sent with chunked transfer encoding.
+     *
+     * @param content The content, closed once it was sent.
+     * @param contentType The content type, e.g. application/octet-stream.
+     * @return The body.
+     */
+    public static ResourceBody of(InputStream content, String contentType) {
+        return of(content, -1, contentType);
+    }
+
+    /**
+     * Create a body of known length.
+     *
+     * @param content The content, closed once it was sent.
+     * @param length The length of the content in bytes, or -1 if unknown.
+     * @param contentType The content type, e.g. application/octet-stream.
+     * @return The body.
+     */
+    public static ResourceBody of(InputStream content, long length, String contentType) {
+        return new ResourceBody(new InputStreamEntity(content, length), contentType);
+    }
+
+    /**
+     * Create a body with the content of a file, read as it is sent.
+     *
+     * @param file The file.
+     * @param contentType The content type, e.g. application/octet-stream.
+     * @return The body.
+     */
+    public static ResourceBody of(Path file, String contentType) {
+        return new ResourceBody(new FileEntity(file.toFile()), contentType);
+    }
+
+    /**
+     * Create a body written by a producer as it is sent, with chunked transfer encoding.
+     *
+     * @param producer The producer of the content.
+     * @param contentType The content type, e.g. application/json.
+     * @return The body.
+     */
+    public static ResourceBody of(Producer producer, String contentType) {
+        return new ResourceBody(new EntityTemplate(producer::writeTo), contentType);
+    }
+
+    /**
+     * Send the content with chunked transfer encoding, even if its length is known.
+     *
+     * @return This body.
+     */
+    public ResourceBody chunked() {
+        entity.setChunked(true);
+        return this;
+    }
+
+    /**
+     * @return True if the content was written to a request, even if partially.
+     */
+    public boolean isSent() {
+        return sent;
+    }
+
+    /**
+     * @return True if the content can be written more than once, as from a file or a producer.
+     */
+    public boolean isRepeatable() {
+        return entity.isRepeatable();
+    }
+
+    /**
+     * @return The length of the content in bytes, or a negative number if unknown.
+     */
+    public long getContentLength() {
+        return entity.getContentLength();
+    }
+
+    /**
+     * @return The entity of the request, that records when it is written.
+     */
+    HttpEntity getEntity() {
+        return trackingEntity;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceBody{" + "contentType=" + entity.getContentType() + ", contentLength=" + getContentLength()
+                + ", chunked=" + entity.isChunked() + ", sent=" + sent + '}';
+    }
+
+    private class TrackingEntity extends HttpEntityWrapper {
+
+        TrackingEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            sent = true;
+            super.writeTo(out);
+        }
+    }
+}
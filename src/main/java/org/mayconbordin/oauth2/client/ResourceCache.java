@@ -0,0 +1,334 @@
+package org.mayconbordin.oauth2.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * A client-side cache of protected resources, kept by the transport of a client
+ * when {@link OAuth2Config.Builder#resourceCache(long)} is set and used by
+ * {@link OAuth2Utils#getProtectedResource(AccessToken, String)} and
+ * {@link OAuth2Utils#getProtectedResourceAsync(AccessToken, String)}.
+ *
+ * <p>Responses are stored following their Cache-Control, Expires, ETag and
+ * Last-Modified headers. A fresh response is served without a request; a stale
+ * one is revalidated with If-None-Match or If-Modified-Since and served again
+ * when the server answers 304 Not Modified. Responses with no-store or Vary, and
+ * those that can neither be fresh nor revalidated, are not stored.</p>
+ *
+ * <p>A stale response is never served without a 304 answer, so must-revalidate
+ * always holds: if the revalidation fails the request fails, and if the server
+ * answers with a new response it replaces the cached one.</p>
+ *
+ * <p>Entries are kept apart per subject of the token (the {@code iss} and
+ * {@code sub} claims of a JWT, or else the token itself) and its scopes, so a
+ * response is never served to another user. The cache is bounded by the size
+ * of the content, evicting the least recently used entries.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class ResourceCache {
+    private final Cache<String, Entry> entries;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong revalidationCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Create an empty cache.
+     *
+     * @param maxBytes Maximum size of the cached content, in bytes.
+     */
+    public ResourceCache(long maxBytes) {
+        entries = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, Entry entry) -> (int) Math.min(Integer.MAX_VALUE, key.length() + entry.size))
+                .build();
+    }
+
+    /**
+     * @param token The token of the request.
+     * @param url The URL of the resource.
+     * @return The cached response, fresh or not, or null if there is none.
+     */
+    Entry get(AccessToken token, String url) {
+        return entries.getIfPresent(keyOf(token, url));
+    }
+
+    /**
+     * Serve a fresh response without a request.
+     *
+     * @return The content of the response.
+     */
+    String hit(Entry entry) {
+        hitCount.incrementAndGet();
+        bytesSaved.addAndGet(entry.size);
+        return entry.content;
+    }
+
+    /**
+     * Serve a cached response the server answered as not modified, updating
+     * its freshness with the headers of the answer.
+     *
+     * @return The content of the response.
+     */
+    String revalidated(AccessToken token, String url, Entry entry, HttpResponse notModified) {
+        revalidationCount.incrementAndGet();
+        bytesSaved.addAndGet(entry.size);
+
+        Entry updated = entry.revalidate(notModified, System.currentTimeMillis());
+
+        if (updated != null) {
+            entries.put(keyOf(token, url), updated);
+        } else {
+            entries.invalidate(keyOf(token, url));
+        }
+        return entry.content;
+    }
+
+    /**
+     * Store a response fetched from the server, if it can be cached, replacing
+     * the previous one.
+     *
+     * @param content The content of the response.
+     */
+    void store(AccessToken token, String url, HttpResponse response, String content) {
+        missCount.incrementAndGet();
+
+        Entry entry = (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK)
+                ? Entry.of(response, content, System.currentTimeMillis()) : null;
+
+        if (entry != null) {
+            entries.put(keyOf(token, url), entry);
+        } else {
+            entries.invalidate(keyOf(token, url));
+        }
+    }
+
+    /**
+     * Remove all the cached responses.
+     */
+    public void invalidateAll() {
+        entries.invalidateAll();
+    }
+
+    /**
+     * @return The number of cached responses.
+     */
+    public long size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The number of fresh responses served without a request.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The number of cached responses served after the server answered 304 Not Modified.
+     */
+    public long getRevalidationCount() {
+        return revalidationCount.get();
+    }
+
+    /**
+     * @return The number of requests whose content was transferred by the server.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return The ratio of requests served with cached content, fresh or
+     *         revalidated, or 1.0 if there were none.
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get() + revalidationCount.get();
+        long total = hits + missCount.get();
+        return (total == 0) ? 1.0 : (double) hits / total;
+    }
+
+    /**
+     * @return The size of the content served from the cache instead of being
+     *         transferred, in bytes.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    private static String keyOf(AccessToken token, String url) {
+        JwtClaims claims = token.getClaims();
+        String subject = (claims != null) ? claims.getSubject() : null;
+
+        if (subject != null) {
+            return claims.asMap().get("iss") + " " + subject + " " + token.getScopes() + " " + url;
+        }
+        return token.getAccessToken() + " " + url;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceCache{" + "size=" + size() + ", hitRatio=" + getHitRatio() + ", bytesSaved=" + getBytesSaved() + '}';
+    }
+
+    /**
+     * A cached response.
+     */
+    static final class Entry {
+        final String content;
+        final long size;
+        final String etag;
+        final String lastModified;
+        final Freshness freshness;
+        final long freshUntil;
+
+        private Entry(String content, long size, String etag, String lastModified, Freshness freshness, long now) {
+            this.content = content;
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.freshness = freshness;
+            this.freshUntil = now + freshness.lifetime;
+        }
+
+        /**
+         * @return The entry, or null if the response can't be cached.
+         */
+        static Entry of(HttpResponse response, String content, long now) {
+            Freshness freshness = Freshness.of(response, now);
+            String etag = value(response, HttpHeaders.ETAG);
+            String lastModified = value(response, HttpHeaders.LAST_MODIFIED);
+
+            if (freshness == null) {
+                freshness = Freshness.NONE;
+            }
+            // the cache is keyed by URL only, it can't tell apart the variants of a resource
+            if (response.containsHeader(HttpHeaders.VARY)) {
+                return null;
+            }
+            if (freshness.noStore || (freshness.lifetime <= 0 && etag == null && lastModified == null)) {
+                return null;
+            }
+
+            long length = (response.getEntity() != null) ? response.getEntity().getContentLength() : -1;
+            return new Entry(content, (length >= 0) ? length : content.length(), etag, lastModified, freshness, now);
+        }
+
+        /**
+         * @return The entry with the validators and freshness of the 304 answer,
+         *         or null if it must not be stored anymore.
+         */
+        Entry revalidate(HttpResponse notModified, long now) {
+            Freshness updated = Freshness.of(notModified, now);
+            String newEtag = value(notModified, HttpHeaders.ETAG);
+            String newLastModified = value(notModified, HttpHeaders.LAST_MODIFIED);
+
+            if (updated == null) {
+                updated = freshness;
+            }
+            if (updated.noStore || notModified.containsHeader(HttpHeaders.VARY)) {
+                return null;
+            }
+            return new Entry(content, size, (newEtag != null) ? newEtag : etag,
+                    (newLastModified != null) ? newLastModified : lastModified, updated, now);
+        }
+
+        boolean isFresh(long now) {
+            return now < freshUntil;
+        }
+
+        private static String value(HttpResponse response, String name) {
+            Header header = response.getFirstHeader(name);
+            return (header != null) ? header.getValue() : null;
+        }
+    }
+
+    /**
+     * The time a response can be served without being revalidated.
+     */
+    static final class Freshness {
+        static final Freshness NONE = new Freshness(0, false);
+
+        final long lifetime;
+        final boolean noStore;
+
+        private Freshness(long lifetime, boolean noStore) {
+            this.lifetime = lifetime;
+            this.noStore = noStore;
+        }
+
+        /**
+         * @return The freshness given by the Cache-Control or Expires headers,
+         *         or null if the response has neither.
+         */
+        static Freshness of(HttpResponse response, long now) {
+            Header[] cacheControl = response.getHeaders(HttpHeaders.CACHE_CONTROL);
+            Header expires = response.getFirstHeader(HttpHeaders.EXPIRES);
+
+            if (cacheControl.length == 0 && expires == null) {
+                return null;
+            }
+
+            long maxAge = -1;
+            boolean noCache = false;
+            boolean noStore = false;
+
+            for (Header header : cacheControl) {
+                for (HeaderElement element : header.getElements()) {
+                    switch (element.getName().toLowerCase(Locale.ROOT)) {
+                        case "no-store":
+                            noStore = true;
+                            break;
+                        case "no-cache":
+                            noCache = true;
+                            break;
+                        case "max-age":
+                            maxAge = parseSeconds(element.getValue());
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+
+            long lifetime;
+
+            if (noCache) {
+                lifetime = 0;
+            } else if (maxAge >= 0) {
+                lifetime = (maxAge - parseSeconds(Entry.value(response, HttpHeaders.AGE))) * 1000;
+            } else if (expires != null) {
+                Date expiresAt = DateUtils.parseDate(expires.getValue());
+                String dateValue = Entry.value(response, HttpHeaders.DATE);
+                Date date = (dateValue != null) ? DateUtils.parseDate(dateValue) : null;
+                // an invalid date, such as "0", means already expired
+                lifetime = (expiresAt != null) ? expiresAt.getTime() - ((date != null) ? date.getTime() : now) : 0;
+            } else {
+                lifetime = 0;
+            }
+
+            return new Freshness(Math.max(0, lifetime), noStore);
+        }
+
+        private static long parseSeconds(String value) {
+            if (value == null) {
+                return 0;
+            }
+            try {
+                return Math.max(0, Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+}
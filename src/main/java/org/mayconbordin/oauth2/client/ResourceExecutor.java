@@ -0,0 +1,219 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes requests to protected resources with the token of a client.
+ *
+ * <p>If the resource server answers with 401 Unauthorized, because the token was
+ * revoked or expired early, the token is discarded, a new one is obtained (coalesced
+ * with the other callers that got the same answer) and the request is replayed,
+ * up to {@link OAuth2Config#getMaxUnauthorizedRetries()} times.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class ResourceExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(ResourceExecutor.class);
+
+    private final OAuth2Client client;
+    private final AtomicLong replayCount = new AtomicLong();
+    private final AtomicLong replayFailureCount = new AtomicLong();
+
+    /**
+     * A request that uses an access token.
+     *
+     * @param <T> The type of the result of the request.
+     */
+    public interface Call<T> {
+        T execute(AccessToken token) throws OAuth2Exception;
+    }
+
+    /**
+     * A request that uses an access token, without blocking the calling thread.
+     *
+     * @param <T> The type of the result of the request.
+     */
+    public interface AsyncCall<T> {
+        CompletableFuture<T> execute(AccessToken token);
+    }
+
+    public ResourceExecutor(OAuth2Client client) {
+        this.client = client;
+    }
+
+    /**
+     * Get a protected resource.
+     *
+     * @param url The path to the resource.
+     * @return The contents of the resource.
+     * @throws OAuth2Exception
+     */
+    public String getResource(String url) throws OAuth2Exception {
+        return execute(token -> OAuth2Utils.getProtectedResource(token, url));
+    }
+
+    /**
+     * Get a protected resource, passing its content as a stream to the handler.
+     *
+     * @param <T> The type of the result of the handler.
+     * @param url The path to the resource.
+     * @param handler The handler that consumes the content of the resource.
+     * @return The result of the handler.
+     * @throws OAuth2Exception
+     */
+    public <T> T getResource(String url, ResourceHandler<T> handler) throws OAuth2Exception {
+        return execute(token -> OAuth2Utils.getProtectedResource(token, url, handler));
+    }
+
+    /**
+     * Get a protected resource as a stream, that must be closed by the caller.
+     *
+     * @param url The path to the resource.
+     * @return The content of the resource.
+     * @throws OAuth2Exception
+     */
+    public InputStream getResourceAsStream(String url) throws OAuth2Exception {
+        return execute(token -> OAuth2Utils.getProtectedResourceAsStream(token, url));
+    }
+
+    /**
+     * Send content to a protected resource. The request is not replayed with a
+     * new token once the body was sent, as its content may not be available
+     * anymore; with {@code Expect: 100-continue} a rejected token is usually
+     * known before that.
+     *
+     * @param method The HTTP method, e.g. POST, PUT, PATCH or DELETE.
+     * @param url The path to the resource.
+     * @param body The content to be sent, or null for none.
+     * @return The contents of the response.
+     * @throws OAuth2Exception
+     */
+    public String sendResource(String method, String url, ResourceBody body) throws OAuth2Exception {
+        return execute(token -> OAuth2Utils.sendProtectedResource(token, method, url, body), body);
+    }
+
+    /**
+     * Get a protected resource without blocking the calling thread.
+     *
+     * @param url The path to the resource.
+     * @return The future contents of the resource.
+     */
+    public CompletableFuture<String> getResourceAsync(String url) {
+        return executeAsync(token -> OAuth2Utils.getProtectedResourceAsync(token, url));
+    }
+
+    /**
+     * Get protected resources, executing up to {@link OAuth2Config#getMaxConcurrentResources()}
+     * requests at the same time. Each request is replayed on its own if it is
+     * rejected as unauthorized.
+     *
+     * @param urls The paths to the resources.
+     * @return The batch of requests, with a result per resource.
+     */
+    public ResourceBatch getResources(Collection<String> urls) {
+        return new ResourceBatch(urls, client.getConfig().getMaxConcurrentResources(), this::getResourceAsync);
+    }
+
+    /**
+     * Execute the request with the current token of the client, replaying it
+     * with a new token if it is rejected as unauthorized.
+     *
+     * @param <T> The type of the result of the request.
+     * @param call The request.
+     * @return The result of the request.
+     * @throws OAuth2Exception
+     */
+    public <T> T execute(Call<T> call) throws OAuth2Exception {
+        return execute(call, null);
+    }
+
+    private <T> T execute(Call<T> call, ResourceBody body) throws OAuth2Exception {
+        TokenManager tokenManager = client.getTokenManager();
+        AccessToken token = tokenManager.getAccessToken();
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return call.execute(token);
+            } catch (UnauthorizedClientException e) {
+                if (body != null && body.isSent()) {
+                    LOG.debug("Request rejected as unauthorized after its body was sent, not replaying.");
+                    throw e;
+                }
+                if (attempt >= client.getConfig().getMaxUnauthorizedRetries()) {
+                    if (attempt > 0) {
+                        replayFailureCount.incrementAndGet();
+                        client.getConfig().getMetrics().resourceReplayFailed();
+                    }
+                    throw e;
+                }
+
+                LOG.debug("Request rejected as unauthorized, replaying with a new token.");
+                replayCount.incrementAndGet();
+                client.getConfig().getMetrics().resourceReplay();
+                token = tokenManager.renew(token);
+            }
+        }
+    }
+
+    /**
+     * Execute the request without blocking the calling thread, as in {@link #execute(Call)}.
+     *
+     * @param <T> The type of the result of the request.
+     * @param call The request.
+     * @return The future result of the request.
+     */
+    public <T> CompletableFuture<T> executeAsync(AsyncCall<T> call) {
+        return client.getTokenManager().getAccessTokenAsync()
+                .thenCompose(token -> executeAsync(call, token, 0));
+    }
+
+    private <T> CompletableFuture<T> executeAsync(AsyncCall<T> call, AccessToken token, int attempt) {
+        return call.execute(token).handle((result, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture(result);
+            }
+
+            if (isUnauthorized(error) && attempt < client.getConfig().getMaxUnauthorizedRetries()) {
+                LOG.debug("Request rejected as unauthorized, replaying with a new token.");
+                replayCount.incrementAndGet();
+                client.getConfig().getMetrics().resourceReplay();
+
+                return client.getTokenManager().renewAsync(token)
+                        .thenCompose(newToken -> executeAsync(call, newToken, attempt + 1));
+            }
+
+            if (attempt > 0 && isUnauthorized(error)) {
+                replayFailureCount.incrementAndGet();
+                client.getConfig().getMetrics().resourceReplayFailed();
+            }
+
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(error);
+            return failed;
+        }).thenCompose(future -> future);
+    }
+
+    private static boolean isUnauthorized(Throwable error) {
+        Throwable cause = (error.getCause() != null) ? error.getCause() : error;
+        return cause instanceof UnauthorizedClientException;
+    }
+
+    /**
+     * @return The number of requests replayed after being rejected as unauthorized.
+     */
+    public long getReplayCount() {
+        return replayCount.get();
+    }
+
+    /**
+     * @return The number of requests still rejected as unauthorized after being replayed.
+     */
+    public long getReplayFailureCount() {
+        return replayFailureCount.get();
+    }
+}
@@ -0,0 +1,22 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Callback that consumes the content of a protected resource as a stream.
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ * @param <T> The type of the result of the handler.
+ */
+public interface ResourceHandler<T> {
+    /**
+     * Consume the content of the resource. The stream is closed, and the connection
+     * released, once the handler returns.
+     *
+     * @param content The content of the resource.
+     * @return The result of the handler.
+     * @throws IOException If the content can't be read.
+     */
+    T handle(InputStream content) throws IOException;
+}
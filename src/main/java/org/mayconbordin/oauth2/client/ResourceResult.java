@@ -0,0 +1,50 @@
+package org.mayconbordin.oauth2.client;
+
+/**
+ * The outcome of the request of a protected resource in a {@link ResourceBatch},
+ * either its content or the error of the request.
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class ResourceResult {
+    private final String url;
+    private final String content;
+    private final OAuth2Exception error;
+
+    ResourceResult(String url, String content, OAuth2Exception error) {
+        this.url = url;
+        this.content = content;
+        this.error = error;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return The content of the resource.
+     * @throws OAuth2Exception The error of the request, if it failed.
+     */
+    public String getContent() throws OAuth2Exception {
+        if (error != null) {
+            throw error;
+        }
+        return content;
+    }
+
+    /**
+     * @return The error of the request, or null if it succeeded.
+     */
+    public OAuth2Exception getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceResult{" + "url=" + url + ", success=" + isSuccess() + '}';
+    }
+}
@@ -0,0 +1,136 @@
+package org.mayconbordin.oauth2.client;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls with the same key, so that only one of them is
+ * executed and the others wait on its result or its failure. Blocking and
+ * asynchronous calls with the same key share the same execution.
+ *
+ * <p>Each asynchronous caller gets a future of its own that depends on the shared
+ * one, so cancelling or completing it does not affect the other callers.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ * @param <K> The type of the key that identifies a call.
+ * @param <V> The type of the result of a call.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+    private final AtomicLong executedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Execute the call, or wait for the result of a call with the same key that
+     * is already in flight.
+     *
+     * @param key The key of the call.
+     * @param callable The call to be executed.
+     * @return The result of the call.
+     * @throws OAuth2Exception If the call failed.
+     */
+    public V execute(K key, Callable<V> callable) throws OAuth2Exception {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = calls.putIfAbsent(key, future);
+
+        if (inFlight != null) {
+            coalescedCount.incrementAndGet();
+            return await(inFlight);
+        }
+
+        executedCount.incrementAndGet();
+
+        try {
+            V result = callable.call();
+            calls.remove(key, future);
+            future.complete(result);
+        } catch (Throwable e) {
+            calls.remove(key, future);
+            future.completeExceptionally(e);
+        }
+
+        return await(future);
+    }
+
+    /**
+     * Start the asynchronous call, or return the result of a call with the same
+     * key that is already in flight.
+     *
+     * @param key The key of the call.
+     * @param supplier Starts the call to be executed.
+     * @return The future result of the call, owned by this caller.
+     */
+    public CompletableFuture<V> executeAsync(final K key, Supplier<CompletableFuture<V>> supplier) {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = calls.putIfAbsent(key, future);
+
+        if (inFlight != null) {
+            coalescedCount.incrementAndGet();
+            return inFlight.thenApply(Function.identity());
+        }
+
+        executedCount.incrementAndGet();
+
+        CompletableFuture<V> call;
+
+        try {
+            call = supplier.get();
+        } catch (Throwable e) {
+            call = new CompletableFuture<>();
+            call.completeExceptionally(e);
+        }
+
+        call.whenComplete((result, error) -> {
+            calls.remove(key, future);
+
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(result);
+            }
+        });
+
+        return future.thenApply(Function.identity());
+    }
+
+    /**
+     * @return The number of calls that were actually executed.
+     */
+    public long getExecutedCount() {
+        return executedCount.get();
+    }
+
+    /**
+     * @return The number of calls that waited on a call already in flight.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return The number of calls currently in flight.
+     */
+    public int getInFlightCount() {
+        return calls.size();
+    }
+
+    private V await(CompletableFuture<V> future) throws OAuth2Exception {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OAuth2Exception("Interrupted while waiting for the request.", e);
+        } catch (ExecutionException e) {
+            throw OAuth2Utils.unwrap(e.getCause());
+        } catch (CancellationException e) {
+            throw new OAuth2Exception("The request was cancelled.", e);
+        }
+    }
+}
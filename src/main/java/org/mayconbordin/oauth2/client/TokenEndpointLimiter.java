@@ -0,0 +1,305 @@
+package org.mayconbordin.oauth2.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive rate limiter of the requests to a token endpoint.
+ *
+ * <p>Requests take permits from a token bucket that holds up to one second of
+ * permits, refilled at the current rate. When the server answers with 429 Too
+ * Many Requests or 503 Service Unavailable, the rate is halved and no request
+ * is sent until the time given by the Retry-After header, or an exponential
+ * backoff when there is none, has passed. Requests made meanwhile fail fast
+ * with a {@link RateLimitedException}, so callers keep using their cached
+ * tokens. Each successful request raises the rate again by 10%, up to the
+ * configured rate.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class TokenEndpointLimiter {
+    /**
+     * Lowest rate the limiter backs off to, in requests per second.
+     */
+    public static final double MIN_RATE = 0.1;
+
+    /**
+     * First backoff when the server gives no Retry-After, in milliseconds.
+     */
+    public static final long MIN_BACKOFF = 1000;
+
+    /**
+     * Longest backoff, in milliseconds, also applied to larger Retry-After values.
+     */
+    public static final long MAX_BACKOFF = 300000;
+
+    /**
+     * Above this rate, a limiter without a configured rate stops limiting again.
+     */
+    private static final double UNLIMITED_THRESHOLD = 10000;
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final String endpoint;
+    private final double maxRate;
+    private final long maxDelay;
+
+    // a lock rather than a monitor, so virtual threads are not pinned to their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private double rate;
+    private double storedPermits;
+    private long nextFree = System.nanoTime();
+    private long blockedUntil = nextFree;
+    private int consecutiveThrottles;
+
+    // requests in the current and in the previous second, to estimate the rate
+    // at which the server started throttling when there is no configured rate
+    private long windowStart = nextFree;
+    private int windowCount;
+    private int lastWindowCount;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong delayedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    /**
+     * Create a limiter.
+     *
+     * @param endpoint The URL of the token endpoint.
+     * @param maxRate Maximum number of requests per second, zero for no limit
+     *                other than the backoff after throttling.
+     * @param maxDelay Longest time a request waits for a permit before failing, in milliseconds.
+     */
+    public TokenEndpointLimiter(String endpoint, double maxRate, long maxDelay) {
+        this.endpoint = endpoint;
+        this.maxRate = (maxRate > 0) ? maxRate : Double.POSITIVE_INFINITY;
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+        this.rate = this.maxRate;
+        this.storedPermits = (rate != Double.POSITIVE_INFINITY) ? Math.max(rate, 1) : 0;
+    }
+
+    /**
+     * Take a permit for a request.
+     *
+     * @return The time to wait before sending the request, in milliseconds.
+     * @throws RateLimitedException If the limiter is backing off, or the wait
+     *                              would be longer than the maximum delay.
+     */
+    public long reserve() throws RateLimitedException {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+
+            if (now - blockedUntil < 0) {
+                rejectedCount.incrementAndGet();
+                throw new RateLimitedException(toMillis(blockedUntil - now));
+            }
+
+            long wait = 0;
+
+            if (rate != Double.POSITIVE_INFINITY) {
+                double interval = NANOS_PER_SECOND / rate;
+
+                if (now - nextFree > 0) {
+                    storedPermits = Math.min(Math.max(rate, 1), storedPermits + (now - nextFree) / interval);
+                    nextFree = now;
+                }
+
+                double spent = Math.min(1, storedPermits);
+                long next = nextFree + (long) ((1 - spent) * interval);
+                wait = next - now;
+
+                if (wait > maxDelay) {
+                    rejectedCount.incrementAndGet();
+                    throw new RateLimitedException(toMillis(wait));
+                }
+
+                storedPermits -= spent;
+                nextFree = next;
+            }
+
+            count(now);
+            requestCount.incrementAndGet();
+
+            if (wait > 0) {
+                delayedCount.incrementAndGet();
+            }
+
+            return toMillis(wait);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take a permit for a request without blocking the calling thread.
+     *
+     * @return A future completed when the request can be sent, or completed
+     *         exceptionally with a {@link RateLimitedException}.
+     */
+    public CompletableFuture<Void> reserveAsync() {
+        try {
+            return OAuth2Utils.delay(reserve());
+        } catch (RateLimitedException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Take a permit for a request, waiting for it if needed.
+     *
+     * @throws OAuth2Exception If the limiter is backing off, or the thread was interrupted.
+     */
+    public void acquire() throws OAuth2Exception {
+        long wait = reserve();
+
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OAuth2Exception("Interrupted while waiting to request a token.", e);
+            }
+        }
+    }
+
+    /**
+     * Record a request accepted by the server, raising the rate towards the maximum.
+     */
+    public void onSuccess() {
+        lock.lock();
+        try {
+            consecutiveThrottles = 0;
+
+            if (rate < maxRate) {
+                rate = Math.min(maxRate, rate * 1.1);
+
+                if (maxRate == Double.POSITIVE_INFINITY && rate > UNLIMITED_THRESHOLD) {
+                    rate = Double.POSITIVE_INFINITY;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a request throttled by the server, halving the rate and backing off.
+     *
+     * @param retryAfter The time to wait given by the server, in milliseconds, zero if unknown.
+     * @return The time the limiter is backing off, in milliseconds.
+     */
+    public long onThrottled(long retryAfter) {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            throttledCount.incrementAndGet();
+            consecutiveThrottles++;
+
+            double current = (rate != Double.POSITIVE_INFINITY) ? rate : Math.max(lastWindowCount, windowCount);
+            rate = Math.max(MIN_RATE, current / 2);
+            storedPermits = 0;
+
+            long backoff = (retryAfter > 0) ? Math.min(retryAfter, MAX_BACKOFF)
+                    : Math.min(MIN_BACKOFF << Math.min(consecutiveThrottles - 1, 16), MAX_BACKOFF);
+
+            long until = now + TimeUnit.MILLISECONDS.toNanos(backoff);
+
+            if (until - blockedUntil > 0) {
+                blockedUntil = until;
+            }
+            if (blockedUntil - nextFree > 0) {
+                nextFree = blockedUntil;
+            }
+
+            return backoff;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void count(long now) {
+        long elapsed = now - windowStart;
+
+        if (elapsed >= NANOS_PER_SECOND) {
+            lastWindowCount = (elapsed < 2 * NANOS_PER_SECOND) ? windowCount : 0;
+            windowCount = 0;
+            windowStart = now;
+        }
+
+        windowCount++;
+    }
+
+    private static long toMillis(long nanos) {
+        return (nanos <= 0) ? 0 : (nanos + 999999) / 1000000;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return The current rate, in requests per second, infinite if not limited.
+     */
+    public double getRate() {
+        lock.lock();
+        try {
+            return rate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The configured rate, in requests per second, infinite if not limited.
+     */
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * @return The remaining time the limiter is backing off, in milliseconds.
+     */
+    public long getBackoffRemaining() {
+        lock.lock();
+        try {
+            return toMillis(blockedUntil - System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of requests that were given a permit.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return The number of requests that waited for a permit.
+     */
+    public long getDelayedCount() {
+        return delayedCount.get();
+    }
+
+    /**
+     * @return The number of requests failed by the limiter without reaching the server.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return The number of requests throttled by the server.
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+}
@@ -0,0 +1,126 @@
+package org.mayconbordin.oauth2.client;
+
+import java.util.Collections;
+import java.util.Map;
+import static org.mayconbordin.oauth2.client.OAuth2Constants.*;
+
+/**
+ * The state of a token as given by the introspection endpoint of the
+ * authorization server (RFC 7662).
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class TokenIntrospection {
+    /**
+     * The result for a token that is not active.
+     */
+    public static final TokenIntrospection INACTIVE = new TokenIntrospection(
+            Collections.<String, Object>singletonMap(ACTIVE, false));
+
+    private final boolean active;
+    private final String scope;
+    private final String clientId;
+    private final String username;
+    private final String tokenType;
+    private final String subject;
+    private final long expiration;
+    private final long issuedAt;
+    private final Map<String, Object> claims;
+
+    /**
+     * Create the result from the response of the introspection endpoint.
+     *
+     * @param map The members of the response, of which only {@link OAuth2Constants#ACTIVE} is required.
+     */
+    public TokenIntrospection(Map<String, Object> map) {
+        this.active = parseActive(map.get(ACTIVE));
+        this.scope = asString(map.get(SCOPE));
+        this.clientId = asString(map.get(CLIENT_ID));
+        this.username = asString(map.get(USERNAME));
+        this.tokenType = asString(map.get(TOKEN_TYPE));
+        this.subject = asString(map.get("sub"));
+        this.expiration = asLong(map.get("exp"));
+        this.issuedAt = asLong(map.get("iat"));
+        this.claims = Collections.unmodifiableMap(map);
+    }
+
+    private static boolean parseActive(Object value) {
+        // some servers send the boolean as a string
+        return Boolean.TRUE.equals(value) || (value instanceof String && Boolean.parseBoolean((String) value));
+    }
+
+    private static String asString(Object value) {
+        return (value != null) ? value.toString() : null;
+    }
+
+    private static long asLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value instanceof String) {
+            try {
+                return Long.parseLong(((String) value).trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return True if the token is active, which the server only says of valid
+     *         tokens that were not revoked.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return The space separated scopes of the token, or null if not given.
+     */
+    public String getScope() {
+        return scope;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getTokenType() {
+        return tokenType;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return The expiration time, in seconds since the epoch, or zero if not given.
+     */
+    public long getExpiration() {
+        return expiration;
+    }
+
+    /**
+     * @return The time the token was issued, in seconds since the epoch, or zero if not given.
+     */
+    public long getIssuedAt() {
+        return issuedAt;
+    }
+
+    /**
+     * @return All the members of the response.
+     */
+    public Map<String, Object> getClaims() {
+        return claims;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenIntrospection{" + "active=" + active + ", scope=" + scope + ", clientId=" + clientId
+                + ", username=" + username + ", subject=" + subject + ", expiration=" + expiration + '}';
+    }
+}
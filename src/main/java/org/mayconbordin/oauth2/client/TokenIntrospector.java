@@ -0,0 +1,168 @@
+package org.mayconbordin.oauth2.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Validates the tokens received by a resource server with the introspection
+ * endpoint of the authorization server (RFC 7662), caching the results.
+ *
+ * <p>Active results are kept until the token expires, or for at most
+ * {@link OAuth2Config#getMaxActiveIntrospectionTime()}, and inactive results for
+ * {@link OAuth2Config#getInactiveIntrospectionTime()}. Concurrent introspections
+ * of the same token are coalesced, so a token in use costs a single request per
+ * cache period. Failed requests are not cached.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class TokenIntrospector {
+    private final OAuth2Config config;
+    private final HttpTransport transport;
+    private final Cache<String, Entry> results;
+    private final SingleFlight<String, TokenIntrospection> requests = new SingleFlight<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong inactiveHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Create an introspector.
+     *
+     * @param config The configuration with the introspection endpoint and the client credentials.
+     * @param transport The transport for the requests, null for the default transport.
+     */
+    public TokenIntrospector(OAuth2Config config, HttpTransport transport) {
+        this.config = config;
+        this.transport = transport;
+        this.results = CacheBuilder.newBuilder()
+                .maximumSize(config.getIntrospectionCacheSize())
+                .build();
+    }
+
+    /**
+     * Get the state of a token, from the cache or from the introspection endpoint.
+     *
+     * @param token The token to be introspected.
+     * @return The state of the token.
+     * @throws OAuth2Exception If the request fails, but not if the token is inactive.
+     */
+    public TokenIntrospection introspect(String token) throws OAuth2Exception {
+        TokenIntrospection cached = getCached(token);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        return requests.execute(token, () -> cache(token, OAuth2Utils.introspectToken(config, token, transport)));
+    }
+
+    /**
+     * Get the state of a token without blocking the calling thread, as in {@link #introspect(String)}.
+     *
+     * @param token The token to be introspected.
+     * @return The future state of the token, completed exceptionally with an
+     *         {@link OAuth2Exception} if the request fails.
+     */
+    public CompletableFuture<TokenIntrospection> introspectAsync(String token) {
+        TokenIntrospection cached = getCached(token);
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return requests.executeAsync(token, () -> OAuth2Utils.introspectTokenAsync(config, token, transport)
+                .thenApply(result -> cache(token, result)));
+    }
+
+    /**
+     * Discard the cached state of a token, e.g. after revoking it.
+     *
+     * @param token The token.
+     */
+    public void invalidate(String token) {
+        results.invalidate(token);
+    }
+
+    private TokenIntrospection getCached(String token) {
+        Entry entry = results.getIfPresent(token);
+
+        if (entry != null) {
+            if (System.currentTimeMillis() < entry.expiresAt) {
+                (entry.result.isActive() ? hitCount : inactiveHitCount).incrementAndGet();
+                return entry.result;
+            }
+            results.asMap().remove(token, entry);
+        }
+
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    private TokenIntrospection cache(String token, TokenIntrospection result) {
+        long now = System.currentTimeMillis();
+        long expiresAt;
+
+        if (!result.isActive() || result.getExpiration() <= 0) {
+            expiresAt = now + config.getInactiveIntrospectionTime();
+        } else {
+            expiresAt = TimeUnit.SECONDS.toMillis(result.getExpiration());
+
+            if (config.getMaxActiveIntrospectionTime() > 0) {
+                expiresAt = Math.min(expiresAt, now + config.getMaxActiveIntrospectionTime());
+            }
+        }
+
+        if (expiresAt > now) {
+            results.put(token, new Entry(result, expiresAt));
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of tokens with a cached result, including expired ones.
+     */
+    public long size() {
+        return results.size();
+    }
+
+    /**
+     * @return The number of introspections served with a cached active result.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The number of introspections served with a cached inactive result.
+     */
+    public long getInactiveHitCount() {
+        return inactiveHitCount.get();
+    }
+
+    /**
+     * @return The number of introspections without a cached result, coalesced or not.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return The number of requests made to the introspection endpoint.
+     */
+    public long getRequestCount() {
+        return requests.getExecutedCount();
+    }
+
+    private static class Entry {
+        final TokenIntrospection result;
+        final long expiresAt;
+
+        Entry(TokenIntrospection result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package org.mayconbordin.oauth2.client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the current access token of a client and keeps it fresh.
+ *
+ * <p>Reads are served from memory without locking. A refresh is scheduled
+ * {@link OAuth2Config#getRefreshLeadTime()} milliseconds before the token expires,
+ * using the refresh token when there is one and a new grant otherwise, so callers
+ * only wait on the token endpoint for the very first token or after a failed refresh.
+ * Scheduled refreshes are made with {@link #fetchAsync(AccessToken)}, so a slow token
+ * endpoint does not delay the refreshes of the other clients.</p>
+ *
+ * <p>If the configuration has a {@link TokenStore}, every new token is saved to it
+ * and the first token is loaded from it when still valid.</p>
+ *
+ * <p>A token without a known lifetime, see {@link AccessToken#NO_EXPIRATION}, is not
+ * refreshed ahead of time: it is kept until a resource server rejects it.</p>
+ *
+ * <p>Refreshes are only scheduled once a token was requested, and the scheduled task
+ * does not keep the manager reachable: a client that is dropped without being closed
+ * stops refreshing once it is garbage collected.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class TokenManager implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(TokenManager.class);
+
+    /**
+     * Minimum delay between two refresh attempts, in milliseconds.
+     */
+    private static final long MIN_REFRESH_DELAY = 1000;
+
+    private static final ScheduledThreadPoolExecutor scheduler = createScheduler();
+
+    private final OAuth2Client client;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile AccessToken token;
+    private ScheduledFuture<?> refreshTask;
+    private boolean closed;
+
+    public TokenManager(OAuth2Client client) {
+        this.client = client;
+    }
+
+    /**
+     * Get the current access token, obtaining a new one if there is none or if
+     * it has already expired.
+     *
+     * @return A valid access token.
+     * @throws OAuth2Exception
+     */
+    public AccessToken getAccessToken() throws OAuth2Exception {
+        OAuth2Metrics metrics = client.getConfig().getMetrics();
+        AccessToken current = token;
+
+        if (current != null && !current.isExpired()) {
+            metrics.tokenCacheHit();
+            return current;
+        }
+
+        lock.lock();
+        try {
+            current = token;
+
+            if (current != null && !current.isExpired()) {
+                metrics.tokenCacheHit();
+                return current;
+            }
+
+            if (current == null && (current = restore()) != null) {
+                metrics.tokenCacheHit();
+                return current;
+            }
+
+            metrics.tokenCacheMiss();
+            return update(fetch(current));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the current access token without blocking the calling thread, obtaining
+     * a new one if there is none or if it has already expired.
+     *
+     * @return The future access token, completed exceptionally with an 
+     *         {@link OAuth2Exception} if a new token could not be obtained.
+     */
+    public CompletableFuture<AccessToken> getAccessTokenAsync() {
+        OAuth2Metrics metrics = client.getConfig().getMetrics();
+        AccessToken current = token;
+
+        if (current != null && !current.isExpired()) {
+            metrics.tokenCacheHit();
+            return CompletableFuture.completedFuture(current);
+        }
+
+        if (current == null) {
+            lock.lock();
+            try {
+                current = (token != null) ? token : restore();
+            } finally {
+                lock.unlock();
+            }
+
+            if (current != null && !current.isExpired()) {
+                metrics.tokenCacheHit();
+                return CompletableFuture.completedFuture(current);
+            }
+        }
+
+        metrics.tokenCacheMiss();
+        final AccessToken replaced = current;
+
+        return fetchAsync(replaced).thenApply(newToken -> {
+            lock.lock();
+            try {
+                return update(newToken);
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * @return The token currently held by the manager, which may be null or expired.
+     */
+    public AccessToken peek() {
+        return token;
+    }
+
+    /**
+     * Discard the current token, so that the next call to {@link #getAccessToken()}
+     * obtains a new one.
+     */
+    public void invalidate() {
+        lock.lock();
+        try {
+            token = null;
+            cancelRefresh();
+            unpersist();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replace a token that was rejected by a resource server. The token is only
+     * discarded if it is still the current one, so concurrent callers that got
+     * the same rejection share a single new token.
+     *
+     * @param rejected The token that was rejected.
+     * @return A new access token.
+     * @throws OAuth2Exception
+     */
+    public AccessToken renew(AccessToken rejected) throws OAuth2Exception {
+        discard(rejected);
+        return getAccessToken();
+    }
+
+    /**
+     * Replace a token that was rejected by a resource server without blocking the
+     * calling thread, as in {@link #renew(AccessToken)}.
+     *
+     * @param rejected The token that was rejected.
+     * @return The future new access token.
+     */
+    public CompletableFuture<AccessToken> renewAsync(AccessToken rejected) {
+        discard(rejected);
+        return getAccessTokenAsync();
+    }
+
+    private void discard(AccessToken rejected) {
+        lock.lock();
+        try {
+            if (token == rejected) {
+                token = null;
+                cancelRefresh();
+                unpersist();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop refreshing the token.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            cancelRefresh();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Obtain a new token, by refreshing the given one if it has a refresh token
+     * or by requesting a new grant otherwise.
+     *
+     * @param current The token being replaced, may be null.
+     * @return The new token.
+     * @throws OAuth2Exception
+     */
+    protected AccessToken fetch(AccessToken current) throws OAuth2Exception {
+        if (current != null && current.getRefreshToken() != null) {
+            try {
+                return current.refresh(client).inherit(current);
+            } catch (RateLimitedException e) {
+                throw e;
+            } catch (OAuth2Exception e) {
+                LOG.warn("Unable to refresh the access token, requesting a new one: " + e.getMessage());
+                client.getConfig().getMetrics().refreshFallback();
+            }
+        }
+
+        return OAuth2Utils.getAccessToken(client.getConfig(), client.getTransport());
+    }
+
+    /**
+     * Obtain a new token without blocking the calling thread, as in {@link #fetch(AccessToken)}.
+     *
+     * @param current The token being replaced, may be null.
+     * @return The future new token.
+     */
+    protected CompletableFuture<AccessToken> fetchAsync(AccessToken current) {
+        if (current == null || current.getRefreshToken() == null) {
+            return OAuth2Utils.getAccessTokenAsync(client.getConfig(), client.getTransport());
+        }
+
+        return current.refreshAsync(client).handle((refreshed, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture(refreshed.inherit(current));
+            }
+
+            if (error.getCause() instanceof RateLimitedException || error instanceof RateLimitedException) {
+                CompletableFuture<AccessToken> failed = new CompletableFuture<>();
+                failed.completeExceptionally(error);
+                return failed;
+            }
+
+            LOG.warn("Unable to refresh the access token, requesting a new one: " + error.getMessage());
+            client.getConfig().getMetrics().refreshFallback();
+            return OAuth2Utils.getAccessTokenAsync(client.getConfig(), client.getTransport());
+        }).thenCompose(future -> future);
+    }
+
+    private AccessToken update(AccessToken newToken) {
+        // coalesced requests may have been issued through the transport of another client
+        newToken = newToken.withTransport(client.getTransport());
+        token = newToken;
+        scheduleRefresh(newToken);
+        persist(newToken);
+        return newToken;
+    }
+
+    /**
+     * Reuse the token saved in the store by a previous process, if it is still valid.
+     */
+    private AccessToken restore() {
+        TokenStore store = client.getConfig().getTokenStore();
+
+        if (store == null) {
+            return null;
+        }
+
+        try {
+            AccessToken saved = store.load(client.getConfig());
+
+            if (saved == null || saved.isExpired()) {
+                return null;
+            }
+
+            saved = saved.withTransport(client.getTransport());
+            token = saved;
+            scheduleRefresh(saved);
+            return saved;
+        } catch (IOException e) {
+            LOG.warn("Unable to load the access token from the store: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void persist(AccessToken newToken) {
+        TokenStore store = client.getConfig().getTokenStore();
+
+        if (store != null) {
+            try {
+                store.save(client.getConfig(), newToken);
+            } catch (IOException e) {
+                LOG.warn("Unable to save the access token to the store: " + e.getMessage());
+            }
+        }
+    }
+
+    private void unpersist() {
+        TokenStore store = client.getConfig().getTokenStore();
+
+        if (store != null) {
+            try {
+                store.remove(client.getConfig());
+            } catch (IOException e) {
+                LOG.warn("Unable to remove the access token from the store: " + e.getMessage());
+            }
+        }
+    }
+
+    private void scheduleRefresh(AccessToken token) {
+        if (!token.hasExpiration()) {
+            // without a known lifetime the token is only renewed when a resource server rejects it
+            cancelRefresh();
+            return;
+        }
+
+        long remaining = token.getExpiresAt() - System.currentTimeMillis();
+        long lead = Math.min(client.getConfig().getRefreshLeadTime(), remaining / 2);
+        scheduleRefreshIn(remaining - lead);
+    }
+
+    private void scheduleRefreshIn(long delay) {
+        cancelRefresh();
+
+        if (!closed) {
+            refreshTask = scheduler.schedule(refreshTask(new WeakReference<>(this)),
+                    Math.max(delay, MIN_REFRESH_DELAY), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The scheduler is static, so the task only holds a weak reference to the
+     * manager, otherwise a client that is never closed would never be collected.
+     */
+    private static Runnable refreshTask(WeakReference<TokenManager> ref) {
+        return () -> {
+            TokenManager manager = ref.get();
+
+            if (manager != null) {
+                manager.refresh();
+            }
+        };
+    }
+
+    private void cancelRefresh() {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+    }
+
+    private void refresh() {
+        AccessToken current;
+
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            current = token;
+        } finally {
+            lock.unlock();
+        }
+
+        long leadTime = (current != null && current.hasExpiration()) ? current.getExpiresAt() - System.currentTimeMillis() : 0;
+
+        // the scheduler thread is shared by all the clients, so it only times the refresh
+        // and does not wait on the token endpoint, and neither is the lock held meanwhile:
+        // a caller that needs a token shares the same request, see OAuth2Utils#getAccessToken
+        fetchAsync(current).whenComplete((newToken, error) -> {
+            if (error == null) {
+                client.getConfig().getMetrics().tokenRefresh(leadTime, true);
+                refreshed(current, newToken, null);
+                return;
+            }
+
+            Throwable cause = (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error;
+            OAuth2Exception e = (cause instanceof OAuth2Exception) ? (OAuth2Exception) cause
+                    : new OAuth2Exception("An error ocurred while executing the request.", cause);
+
+            LOG.error("Unable to refresh the access token: " + e.getMessage());
+            client.getConfig().getMetrics().tokenRefresh(leadTime, false);
+            refreshed(current, null, e);
+        });
+    }
+
+    private void refreshed(AccessToken current, AccessToken newToken, OAuth2Exception error) {
+        lock.lock();
+        try {
+            // the token was invalidated or replaced while the refresh was in flight
+            if (closed || token != current) {
+                return;
+            }
+
+            if (error == null) {
+                update(newToken);
+                return;
+            }
+
+            // keep serving the current token while it is valid and try again later,
+            // once the token endpoint stops backing off if it is rate limiting
+            if (current != null && !current.isExpired()) {
+                long remaining = current.getExpiresAt() - System.currentTimeMillis();
+
+                if (error instanceof RateLimitedException) {
+                    scheduleRefreshIn(Math.min(((RateLimitedException) error).getRetryAfter(), remaining));
+                } else {
+                    scheduleRefresh(current);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("oauth2-token-refresh-%d").build());
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+}
@@ -0,0 +1,325 @@
+package org.mayconbordin.oauth2.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the access tokens of many configurations (e.g. one per tenant), sharing
+ * a single HTTP transport.
+ *
+ * <p>The registry is bounded: when it is full the least recently used token is
+ * evicted, and tokens not used for a while are evicted as well. A token is also
+ * replaced when it is about to expire, using its refresh token when there is one.
+ * Lookups are lock-free, and obtaining the token of a configuration only blocks
+ * the callers waiting on that same configuration.</p>
+ *
+ * <p>If a configuration has a {@link TokenStore}, its tokens are saved to it and
+ * loaded from it when the registry does not hold them yet.</p>
+ *
+ * <p>Configurations with the same scopes in another order or separator share
+ * their token, see {@link OAuth2Config#getScopes()}. Unless disabled, a
+ * configuration without a token of its own is also given the valid token of
+ * another configuration of the same client and user, with the same credentials,
+ * that was granted all of its scopes, so that services asking for overlapping
+ * scopes don't each request a token.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class TokenRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(TokenRegistry.class);
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+    public static final long DEFAULT_IDLE_TIME = TimeUnit.HOURS.toMillis(1);
+
+    private final HttpTransport transport;
+    private final Cache<OAuth2Config, AccessToken> tokens;
+    private final boolean shareTokens;
+    // the tokens held, by client and user, to find a token with more scopes without
+    // reading the cache, as reads would change which token is the least recently used
+    private final ConcurrentMap<Object, ConcurrentMap<OAuth2Config, AccessToken>> tokensByClient = new ConcurrentHashMap<>();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    /**
+     * Create a registry with the default bounds, using the default transport.
+     */
+    public TokenRegistry() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_IDLE_TIME, null);
+    }
+
+    /**
+     * Create a registry.
+     *
+     * @param maximumSize Maximum number of tokens held.
+     * @param idleTime Time after which a token that was not used is evicted, in milliseconds.
+     * @param transport The transport for the token requests, null for the default transport.
+     */
+    public TokenRegistry(long maximumSize, long idleTime, HttpTransport transport) {
+        this(maximumSize, idleTime, transport, true);
+    }
+
+    /**
+     * Create a registry.
+     *
+     * @param maximumSize Maximum number of tokens held.
+     * @param idleTime Time after which a token that was not used is evicted, in milliseconds.
+     * @param transport The transport for the token requests, null for the default transport.
+     * @param shareTokens Whether a token granted more scopes than a configuration
+     *                    asks for can be given to it.
+     */
+    public TokenRegistry(long maximumSize, long idleTime, HttpTransport transport, boolean shareTokens) {
+        this.transport = transport;
+        this.shareTokens = shareTokens;
+        this.tokens = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(idleTime, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .removalListener((RemovalListener<OAuth2Config, AccessToken>) notification -> {
+                    if (notification.getCause() != RemovalCause.REPLACED) {
+                        forget(notification.getKey(), notification.getValue());
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Get a valid access token for the configuration, obtaining a new one if
+     * there is none or if it is about to expire.
+     *
+     * <p>Tokens are held per configuration as told apart by {@link OAuth2Config#equals(Object)},
+     * which includes the client secret and the password, so a configuration with
+     * other credentials requests a token of its own.</p>
+     *
+     * @param config The configuration of the token.
+     * @return A valid access token.
+     * @throws OAuth2Exception
+     */
+    public AccessToken getAccessToken(OAuth2Config config) throws OAuth2Exception {
+        // reads through the map view are not recorded in the statistics
+        AccessToken current = tokens.asMap().get(config);
+        AccessToken expiring = null;
+
+        if (current == null && shareTokens) {
+            AccessToken shared = findToken(config);
+
+            if (shared != null) {
+                sharedCount.incrementAndGet();
+                return shared;
+            }
+        }
+
+        if (current != null && isExpiring(current, config) && tokens.asMap().remove(config, current)) {
+            expiredCount.incrementAndGet();
+            expiring = current;
+        }
+
+        final AccessToken replaced = expiring;
+
+        try {
+            return tokens.get(config, () -> remember(config, fetch(config, replaced)));
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            OAuth2Exception error = OAuth2Utils.unwrap(e.getCause());
+
+            // keep serving the expiring token while the token endpoint is backing off
+            if (error instanceof RateLimitedException && replaced != null && !replaced.isExpired()) {
+                AccessToken other = tokens.asMap().putIfAbsent(config, replaced);
+                return (other != null) ? other : replaced;
+            }
+            throw error;
+        }
+    }
+
+    /**
+     * @param config The configuration of the token.
+     * @return The token held for the configuration, which may be null or expired.
+     */
+    public AccessToken peek(OAuth2Config config) {
+        return tokens.asMap().get(config);
+    }
+
+    /**
+     * Discard the token of the configuration, also from its store.
+     *
+     * @param config The configuration of the token.
+     */
+    public void invalidate(OAuth2Config config) {
+        tokens.invalidate(config);
+
+        if (config.getTokenStore() != null) {
+            try {
+                config.getTokenStore().remove(config);
+            } catch (IOException e) {
+                LOG.warn("Unable to remove the access token from the store: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Discard all the tokens.
+     */
+    public void invalidateAll() {
+        tokens.invalidateAll();
+    }
+
+    /**
+     * @return The number of tokens held.
+     */
+    public long size() {
+        return tokens.size();
+    }
+
+    /**
+     * @return The hit, miss, load and eviction statistics of the registry.
+     */
+    public CacheStats getStats() {
+        return tokens.stats();
+    }
+
+    /**
+     * @return The number of tokens replaced because they were about to expire.
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * @return The number of lookups served with the token of another configuration
+     *         that was granted all the scopes asked for.
+     */
+    public long getSharedCount() {
+        return sharedCount.get();
+    }
+
+    /**
+     * Find a valid token of another configuration of the same client and user
+     * that was granted all the scopes of the given one. The granted scopes are
+     * the ones in the token response, or the requested ones if the server did 
+     * not send them.
+     */
+    private AccessToken findToken(OAuth2Config config) {
+        // without scopes the server grants its default ones, which are unknown
+        if (config.getScopes().isEmpty()) {
+            return null;
+        }
+
+        Map<OAuth2Config, AccessToken> held = tokensByClient.get(getClientKey(config));
+
+        if (held == null) {
+            return null;
+        }
+
+        for (Map.Entry<OAuth2Config, AccessToken> entry : held.entrySet()) {
+            OAuth2Config other = entry.getKey();
+            AccessToken token = entry.getValue();
+
+            if (isExpiring(token, other)) {
+                continue;
+            }
+
+            Set<String> granted = (token.getScope() != null) ? token.getScopes() : other.getScopes();
+
+            if (granted.containsAll(config.getScopes())) {
+                // the token is in use, which keeps it from being evicted
+                tokens.asMap().get(other);
+                return token;
+            }
+        }
+        return null;
+    }
+
+    private AccessToken remember(OAuth2Config config, AccessToken token) {
+        if (shareTokens) {
+            tokensByClient.computeIfAbsent(getClientKey(config), key -> new ConcurrentHashMap<>()).put(config, token);
+        }
+        return token;
+    }
+
+    private void forget(OAuth2Config config, AccessToken token) {
+        tokensByClient.computeIfPresent(getClientKey(config), (key, held) -> {
+            held.remove(config, token);
+            return held.isEmpty() ? null : held;
+        });
+    }
+
+    /**
+     * The client and user of a configuration, with their credentials, so a token
+     * is only shared with configurations the server would have given it to.
+     */
+    private static Object getClientKey(OAuth2Config config) {
+        return Arrays.asList(config.getUrlAccessToken(), config.getClientId(), config.getClientSecret(),
+                config.getGrantType(), config.getUsername(), config.getPassword());
+    }
+
+    /**
+     * A token is replaced up to {@link OAuth2Config#getRefreshLeadTime()} before it
+     * expires, but never before half of its lifetime, which for a JWT may only be
+     * known from its claims.
+     */
+    private static boolean isExpiring(AccessToken token, OAuth2Config config) {
+        long lifetime = Math.max(token.getExpiresAt() - token.getIssuedAt(), 0);
+        long lead = Math.min(config.getRefreshLeadTime(), lifetime / 2);
+        return System.currentTimeMillis() >= token.getExpiresAt() - lead;
+    }
+
+    private AccessToken fetch(OAuth2Config config, AccessToken expired) throws OAuth2Exception {
+        TokenStore store = config.getTokenStore();
+
+        if (store != null && expired == null) {
+            try {
+                AccessToken saved = store.load(config);
+
+                if (saved != null && !isExpiring(saved, config)) {
+                    return saved;
+                }
+            } catch (IOException e) {
+                LOG.warn("Unable to load the access token from the store: " + e.getMessage());
+            }
+        }
+
+        AccessToken token = request(config, expired);
+
+        if (store != null) {
+            try {
+                store.save(config, token);
+            } catch (IOException e) {
+                LOG.warn("Unable to save the access token to the store: " + e.getMessage());
+            }
+        }
+
+        return token;
+    }
+
+    private AccessToken request(OAuth2Config config, AccessToken expired) throws OAuth2Exception {
+        if (expired != null && expired.getRefreshToken() != null) {
+            try {
+                OAuth2Config refreshConfig = new OAuth2Config.Builder(config)
+                        .grantType(OAuth2Constants.GRANT_REFRESH_TOKEN)
+                        .build();
+                return OAuth2Utils.refreshAccessToken(expired, refreshConfig, transport).inherit(expired);
+            } catch (RateLimitedException e) {
+                throw e;
+            } catch (OAuth2Exception e) {
+                LOG.warn("Unable to refresh the access token, requesting a new one: " + e.getMessage());
+                config.getMetrics().refreshFallback();
+            }
+        }
+
+        return OAuth2Utils.getAccessToken(config, transport);
+    }
+}
@@ -0,0 +1,120 @@
+package org.mayconbordin.oauth2.client;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import org.apache.http.Header;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicNameValuePair;
+
+/**
+ * Precompiled token request of a configuration and client authentication scheme.
+ *
+ * <p>The form body and the authorization header are the same for every token
+ * request of a configuration, so they are encoded once, and each request only
+ * creates a repeatable byte entity and the request object. Only the refresh
+ * token, when there is one, is encoded per request.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class TokenRequestTemplate {
+    private static final ContentType FORM_CONTENT_TYPE = ContentType.create(
+            URLEncodedUtils.CONTENT_TYPE, StandardCharsets.UTF_8);
+
+    private final OAuth2Config config;
+    private final URI uri;
+    private final Header authorization;
+    private final byte[] body;
+    private final boolean refresh;
+
+    private TokenRequestTemplate(OAuth2Config config, ClientAuthScheme scheme) {
+        this.config = config;
+        this.uri = URI.create(config.getUrlAccessToken());
+        this.refresh = OAuth2Constants.GRANT_REFRESH_TOKEN.equals(config.getGrantType());
+
+        List<NameValuePair> form = new ArrayList<>(6);
+        form.add(new BasicNameValuePair(OAuth2Constants.CLIENT_ID, config.getClientId()));
+        form.add(new BasicNameValuePair(OAuth2Constants.CLIENT_SECRET, config.getClientSecret()));
+        form.add(new BasicNameValuePair(OAuth2Constants.GRANT_TYPE, config.getGrantType()));
+
+        if (OAuth2Constants.GRANT_PASSWORD.equals(config.getGrantType())) {
+            form.add(new BasicNameValuePair(OAuth2Constants.USERNAME, config.getUsername()));
+            form.add(new BasicNameValuePair(OAuth2Constants.PASSWORD, config.getPassword()));
+        }
+
+        if (config.getScope() != null && config.getScope().trim().length() > 0) {
+            form.add(new BasicNameValuePair(OAuth2Constants.SCOPE, config.getScope()));
+        }
+
+        this.body = URLEncodedUtils.format(form, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+
+        // the scheme adds the basic authorization header, if any
+        HttpUriRequest request = scheme.apply(new OAuth2RequestBuilder(HttpPost.METHOD_NAME, config.getUrlAccessToken()), config).build();
+        Header header = request.getFirstHeader(OAuth2Constants.AUTHORIZATION);
+        this.authorization = (header != null) ? new BasicHeader(header.getName(), header.getValue()) : null;
+    }
+
+    /**
+     * Compile the token request of the configuration.
+     *
+     * @param config The configuration of the token.
+     * @param scheme The client authentication scheme.
+     * @return The template of the request.
+     */
+    public static TokenRequestTemplate compile(OAuth2Config config, ClientAuthScheme scheme) {
+        return new TokenRequestTemplate(config, scheme);
+    }
+
+    /**
+     * Create a token request from the template.
+     *
+     * @param token The token to be refreshed, if the grant type is {@link OAuth2Constants#GRANT_REFRESH_TOKEN}.
+     * @return The request.
+     */
+    public HttpUriRequest build(AccessToken token) {
+        byte[] content = body;
+
+        if (refresh && token != null) {
+            byte[] refreshToken = URLEncodedUtils.format(
+                    Collections.singletonList(new BasicNameValuePair(OAuth2Constants.REFRESH_TOKEN, token.getRefreshToken())),
+                    StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+
+            content = new byte[body.length + 1 + refreshToken.length];
+            System.arraycopy(body, 0, content, 0, body.length);
+            content[body.length] = '&';
+            System.arraycopy(refreshToken, 0, content, body.length + 1, refreshToken.length);
+        }
+
+        HttpPost request = new HttpPost(uri);
+        request.setEntity(new ByteArrayEntity(content, FORM_CONTENT_TYPE));
+
+        if (authorization != null) {
+            request.setHeader(authorization);
+        }
+
+        return request;
+    }
+
+    /**
+     * Configurations are equal when they identify the same token, but the template
+     * also depends on the secrets, that may have changed, and on how the scope is
+     * written, as equal sets of scopes may be given in another order or separator.
+     *
+     * @param other A configuration equal to the one of the template.
+     * @return True if the template was compiled with the same secrets and scope.
+     */
+    boolean isCompiledFor(OAuth2Config other) {
+        return config == other || (Objects.equals(config.getClientSecret(), other.getClientSecret())
+                && Objects.equals(config.getPassword(), other.getPassword())
+                && Objects.equals(config.getScope(), other.getScope()));
+    }
+}
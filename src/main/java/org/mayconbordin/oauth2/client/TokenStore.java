@@ -0,0 +1,61 @@
+package org.mayconbordin.oauth2.client;
+
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Persists access tokens across restarts, so that a new process can reuse the
+ * tokens of the previous one instead of requesting new ones.
+ *
+ * <p>A store is set in the configuration with {@link OAuth2Config.Builder#tokenStore(TokenStore)}
+ * and is used by the {@link TokenManager} and the {@link TokenRegistry}. Implementations
+ * must be thread-safe.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public interface TokenStore {
+    /**
+     * Load the token saved for the configuration.
+     *
+     * @param config The configuration of the token.
+     * @return The saved token, or null if there is none.
+     * @throws IOException If the store can't be read.
+     */
+    AccessToken load(OAuth2Config config) throws IOException;
+
+    /**
+     * Save the token of the configuration, replacing the previous one.
+     *
+     * @param config The configuration of the token.
+     * @param token The token.
+     * @throws IOException If the store can't be written.
+     */
+    void save(OAuth2Config config, AccessToken token) throws IOException;
+
+    /**
+     * Remove the token saved for the configuration.
+     *
+     * @param config The configuration of the token.
+     * @throws IOException If the store can't be written.
+     */
+    void remove(OAuth2Config config) throws IOException;
+
+    /**
+     * Get a key that identifies the token of the configuration across restarts,
+     * based on the same fields as {@link OAuth2Config#equals(Object)}, including
+     * the client secret and the password, so a configuration with other
+     * credentials does not load the token. The fields are hashed, so the key
+     * does not disclose the client, the user or their credentials.
+     *
+     * @param config The configuration of the token.
+     * @return The key of the token.
+     */
+    static String keyOf(OAuth2Config config) {
+        String fields = config.getUrlAccessToken() + '\n' + config.getClientId() + '\n'
+                + config.getGrantType() + '\n' + String.join(" ", config.getScopes()) + '\n'
+                + config.getUsername() + '\n' + config.getClientSecret() + '\n' + config.getPassword();
+
+        return Hashing.sha256().hashString(fields, StandardCharsets.UTF_8).toString();
+    }
+}
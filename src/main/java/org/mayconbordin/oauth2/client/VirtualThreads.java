@@ -0,0 +1,73 @@
+package org.mayconbordin.oauth2.client;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to the virtual threads of Java 21, while the library itself still
+ * runs on Java 8.
+ *
+ * <p>The executor is looked up once by reflection, so the same jar runs on
+ * older JVMs, where {@link #isSupported()} is false.</p>
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public final class VirtualThreads {
+    private static final Method NEW_EXECUTOR = lookupExecutorFactory();
+
+    private VirtualThreads() {}
+
+    /**
+     * @return True if the JVM can start virtual threads.
+     */
+    public static boolean isSupported() {
+        return ExecutorHolder.INSTANCE != null;
+    }
+
+    /**
+     * Get the executor that starts a virtual thread per task. It is shared by
+     * all the clients and never needs to be shut down, as idle virtual threads
+     * hold no resources.
+     *
+     * @return The executor.
+     * @throws UnsupportedOperationException If the JVM has no virtual threads.
+     */
+    public static ExecutorService executor() {
+        ExecutorService executor = ExecutorHolder.INSTANCE;
+
+        if (executor == null) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later, running on "
+                    + System.getProperty("java.version") + ".");
+        }
+        return executor;
+    }
+
+    private static Method lookupExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService createExecutor() {
+        if (NEW_EXECUTOR == null) {
+            return null;
+        }
+
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invoke(null);
+        } catch (InvocationTargetException e) {
+            // a preview feature on Java 19 and 20, unless enabled
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static class ExecutorHolder {
+        private static final ExecutorService INSTANCE = createExecutor();
+    }
+}
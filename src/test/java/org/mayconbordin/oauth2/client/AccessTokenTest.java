@@ -1,7 +1,14 @@
 package org.mayconbordin.oauth2.client;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import org.apache.http.impl.client.CloseableHttpClient;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.junit.Before;
@@ -13,21 +20,21 @@ import static org.junit.Assert.*;
  * @author Maycon Bordin <mayconbordin@gmail.com>
  */
 public class AccessTokenTest extends OAuth2BaseTest {
+    private HttpTransport transport;
 
     @Before
     public void setUp() throws IOException {
-        CloseableHttpClient httpClient = mockHttpClient();
-        OAuth2Utils.setHttpClient(httpClient);
+        transport = new HttpTransport(mockHttpClient(), mockHttpAsyncClient());
     }
 
     @Test
     public void testGetResource() throws Exception {
         System.out.println("testGetResource");
         
-        OAuth2Client client = OAuth2Client.withPasswordGrant(
+        OAuth2Client client = withPasswordGrant(
             "oauth_user", "oauth_user_password",
             "client1id", "client1secret",
-            "http://localhost/api/oauth/access_token");
+            "http://localhost/api/oauth/access_token", transport);
 
         AccessToken token = client.getAccessToken();
         String resource = token.getResource("http://localhost/api/user_info");
@@ -42,10 +49,10 @@ public class AccessTokenTest extends OAuth2BaseTest {
     public void testRefresh() throws Exception {
         System.out.println("testRefresh");
         
-        OAuth2Client client = OAuth2Client.withPasswordGrant(
+        OAuth2Client client = withPasswordGrant(
             "oauth_user", "oauth_user_password",
             "client1id", "client1secret",
-            "http://localhost/api/oauth/access_token");
+            "http://localhost/api/oauth/access_token", transport);
 
         AccessToken token = client.getAccessToken();
         AccessToken newToken = token.refresh(client);
@@ -56,4 +63,173 @@ public class AccessTokenTest extends OAuth2BaseTest {
         assertEquals(accessTokenRefreshResponse.get(OAuth2Constants.REFRESH_TOKEN), newToken.getRefreshToken());
     }
 
+    @Test
+    public void testGetResourceAsync() throws Exception {
+        System.out.println("testGetResourceAsync");
+        
+        OAuth2Client client = withPasswordGrant(
+            "oauth_user", "oauth_user_password",
+            "client1id", "client1secret",
+            "http://localhost/api/oauth/access_token", transport);
+
+        String resource = client.getAccessTokenAsync()
+                .thenCompose(token -> token.getResourceAsync("http://localhost/api/user_info"))
+                .get();
+        
+        JSONObject obj = (JSONObject) new JSONParser().parse(resource);
+        
+        assertEquals(userInfoResponse.get("username"), obj.get("username"));
+        assertEquals(userInfoResponse.get("email"), obj.get("email"));
+    }
+
+    @Test
+    public void testGetResourceAsyncNotFound() throws Exception {
+        System.out.println("testGetResourceAsyncNotFound");
+        
+        OAuth2Client client = withPasswordGrant(
+            "oauth_user", "oauth_user_password",
+            "client1id", "client1secret",
+            "http://localhost/api/oauth/access_token", transport);
+
+        try {
+            client.getAccessToken().getResourceAsync("http://localhost/api/missing").get();
+            fail("Expected ResourceNotFoundException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ResourceNotFoundException);
+        }
+    }
+
+    @Test
+    public void testRefreshAsync() throws Exception {
+        System.out.println("testRefreshAsync");
+        
+        OAuth2Client client = withPasswordGrant(
+            "oauth_user", "oauth_user_password",
+            "client1id", "client1secret",
+            "http://localhost/api/oauth/access_token", transport);
+
+        AccessToken newToken = client.getAccessToken().refreshAsync(client).get();
+        
+        assertNotNull(newToken);
+        assertEquals(accessTokenRefreshResponse.get(OAuth2Constants.ACCESS_TOKEN), newToken.getAccessToken());
+        assertEquals(accessTokenRefreshResponse.get(OAuth2Constants.REFRESH_TOKEN), newToken.getRefreshToken());
+    }
+
+    @Test
+    public void testGetResourceStreaming() throws Exception {
+        System.out.println("testGetResourceStreaming");
+        
+        OAuth2Client client = withPasswordGrant(
+            "oauth_user", "oauth_user_password",
+            "client1id", "client1secret",
+            "http://localhost/api/oauth/access_token", transport);
+
+        AccessToken token = client.getAccessToken();
+        String expected = token.getResource("http://localhost/api/user_info");
+        
+        try (InputStream in = token.getResourceAsStream("http://localhost/api/user_info")) {
+            assertEquals(expected, new String(readAll(in), StandardCharsets.UTF_8));
+        }
+        
+        int length = token.getResource("http://localhost/api/user_info", new ResourceHandler<Integer>() {
+            @Override
+            public Integer handle(InputStream content) throws IOException {
+                return readAll(content).length;
+            }
+        });
+        assertEquals(expected.length(), length);
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = token.getResource("http://localhost/api/user_info", Channels.newChannel(out));
+        assertEquals(expected.length(), written);
+        assertEquals(expected, out.toString("UTF-8"));
+        
+        Path file = Files.createTempFile("resource", ".json");
+        try {
+            written = token.getResource("http://localhost/api/user_info", file);
+            assertEquals(expected.length(), written);
+            assertEquals(expected, new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = ResourceNotFoundException.class)
+    public void testGetResourceAsStreamNotFound() throws Exception {
+        System.out.println("testGetResourceAsStreamNotFound");
+        
+        OAuth2Client client = withPasswordGrant(
+            "oauth_user", "oauth_user_password",
+            "client1id", "client1secret",
+            "http://localhost/api/oauth/access_token", transport);
+
+        client.getAccessToken().getResourceAsStream("http://localhost/api/missing");
+    }
+    
+    @Test
+    public void testJwtClaims() throws Exception {
+        System.out.println("testJwtClaims");
+        
+        long now = System.currentTimeMillis() / 1000;
+        String jwt = createJwt("{\"iss\":\"https://idp\",\"nested\":{\"exp\":1,\"sub\":\"x\"},"
+                + "\"sub\":\"Jos\\u00e9 \\\"1\\\"\",\"aud\":[\"a\",\"b\"],\"scope\":\"read write\","
+                + "\"iat\":" + now + ", \"exp\" : " + (now + 120) + "}");
+        
+        // the server says one hour, the token two minutes
+        AccessToken token = new AccessToken(3600, "Bearer", null, jwt);
+        JwtClaims claims = token.getClaims();
+        
+        assertTrue(claims.isValid());
+        assertEquals(now + 120, claims.getExpiration());
+        assertEquals(now, claims.getIssuedAt());
+        assertEquals("José \"1\"", claims.getSubject());
+        assertEquals("read write", claims.getScope());
+        assertEquals((now + 120) * 1000, token.getExpiresAt());
+        assertEquals("https://idp", claims.asMap().get("iss"));
+        assertEquals(2, ((List) claims.asMap().get("aud")).size());
+        
+        // copies share the decoded claims
+        assertSame(claims, token.withRefreshToken("refresh").getClaims());
+        
+        AccessToken expired = new AccessToken(3600, "Bearer", null, createJwt("{\"exp\":" + (now - 1) + ",\"scp\":[\"a\"]}"));
+        assertTrue(expired.isExpired());
+        assertNull(expired.getClaims().getScope());
+        assertNull(expired.getClaims().getSubject());
+        
+        AccessToken scopes = new AccessToken(3600, "Bearer", null, createJwt("{\"scope\":[\"read\", \"write\"]}"));
+        assertEquals("read write", scopes.getClaims().getScope());
+        assertFalse(scopes.isExpired());
+    }
+    
+    @Test
+    public void testNotJwt() throws Exception {
+        System.out.println("testNotJwt");
+        
+        assertNull(new AccessToken(3600, "Bearer", null, (String) accessTokenResponse.get("access_token")).getClaims());
+        assertNull(new AccessToken(3600, "Bearer", null, "eyJhbGciOiJub25lIn0.e30").getClaims());
+        
+        // shaped like a JWT, but the payload is not base64url or not an object
+        AccessToken token = new AccessToken(3600, "Bearer", null, "eyJhbGciOiJub25lIn0.!!!.sig");
+        assertFalse(token.getClaims().isValid());
+        assertEquals(0, token.getClaims().getExpiration());
+        assertTrue(token.getClaims().asMap().isEmpty());
+        assertFalse(token.isExpired());
+        
+        token = new AccessToken(3600, "Bearer", null, createJwt("[{\"exp\":1}]"));
+        assertFalse(token.getClaims().isValid());
+        assertFalse(token.isExpired());
+    }
+    
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        
+        return out.toByteArray();
+    }
+
 }
@@ -0,0 +1,254 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class CircuitBreakerTest extends OAuth2BaseTest {
+    private static final String host = "http://localhost:80";
+    private static final String tokenEndpoint = host + "/api/oauth/access_token";
+
+    private CloseableHttpClient httpClient;
+    private HttpTransport transport;
+    private volatile IOException error;
+    private volatile int failures;
+    private volatile boolean resourcesFailing;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final ResiliencePolicy policy = new ResiliencePolicy.Builder()
+            .maxRetries(2)
+            .backoff(10, 50)
+            .circuitBreaker(3, 200)
+            .build();
+
+    @Before
+    public void setUp() throws IOException {
+        OAuth2Utils.clearCircuitBreakers();
+
+        // fails the first requests with the given error
+        httpClient = mock(CloseableHttpClient.class);
+        when(httpClient.execute(any(HttpUriRequest.class))).then(invocation -> {
+            if (requests.incrementAndGet() <= failures) {
+                throw error;
+            }
+            return executeAnswer.answer(invocation);
+        });
+        transport = new HttpTransport(new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .resiliencePolicy(policy)
+                .build(), httpClient, null);
+    }
+
+    @After
+    public void tearDown() {
+        OAuth2Utils.clearCircuitBreakers();
+    }
+
+    @Test
+    public void testRetryConnectionError() throws Exception {
+        System.out.println("testRetryConnectionError");
+
+        error = new ConnectException("Connection refused");
+        failures = 2;
+
+        AccessToken token = OAuth2Utils.getAccessToken(config(OAuth2Constants.GRANT_CLIENT_CREDENTIALS), transport);
+        assertEquals(accessTokenResponse.get("access_token"), token.getAccessToken());
+        assertEquals(3, requests.get());
+
+        CircuitBreaker breaker = OAuth2Utils.getCircuitBreaker(policy, tokenEndpoint);
+        assertEquals(2, breaker.getRetryCount());
+        assertEquals(2, breaker.getFailureCount());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testRefreshNotRetriedAfterReachingServer() throws Exception {
+        System.out.println("testRefreshNotRetriedAfterReachingServer");
+
+        AccessToken token = OAuth2Utils.getAccessToken(config(OAuth2Constants.GRANT_PASSWORD), transport);
+
+        error = new NoHttpResponseException("localhost:80 failed to respond");
+        failures = 2;
+        requests.set(0);
+
+        try {
+            OAuth2Utils.refreshAccessToken(token, config(OAuth2Constants.GRANT_REFRESH_TOKEN), transport);
+            fail("Expected OAuth2Exception");
+        } catch (OAuth2Exception e) {
+            assertTrue(e.getCause() instanceof NoHttpResponseException);
+        }
+        assertEquals(1, requests.get());
+
+        // the same error is retried for a grant that can be repeated
+        OAuth2Utils.getAccessToken(config(OAuth2Constants.GRANT_CLIENT_CREDENTIALS), transport);
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testCircuitOpensAndCloses() throws Exception {
+        System.out.println("testCircuitOpensAndCloses");
+
+        OAuth2Config config = config(OAuth2Constants.GRANT_CLIENT_CREDENTIALS);
+        error = new ConnectException("Connection refused");
+        failures = 3;
+
+        // the third consecutive failure opens the circuit
+        try {
+            OAuth2Utils.getAccessToken(config, transport);
+            fail("Expected OAuth2Exception");
+        } catch (OAuth2Exception e) {
+            assertTrue(e.getCause() instanceof ConnectException);
+        }
+        assertEquals(3, requests.get());
+
+        CircuitBreaker breaker = OAuth2Utils.getCircuitBreaker(policy, tokenEndpoint);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpenCount());
+
+        // requests fail fast while it is open
+        try {
+            OAuth2Utils.getAccessToken(config, transport);
+            fail("Expected CircuitOpenException");
+        } catch (CircuitOpenException e) {
+            assertTrue(e.getRetryAfter() > 0 && e.getRetryAfter() <= 200);
+        }
+        assertEquals(3, requests.get());
+
+        // after the open time a probe closes it
+        Thread.sleep(250);
+
+        OAuth2Utils.getAccessToken(config, transport);
+        assertEquals(4, requests.get());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(1, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void testResourceFailuresKeepTokenEndpointClosed() throws Exception {
+        System.out.println("testResourceFailuresKeepTokenEndpointClosed");
+
+        OAuth2Client client = OAuth2Client.withConfig(config(OAuth2Constants.GRANT_CLIENT_CREDENTIALS));
+        client.getAccessToken();
+        resourcesFailing = true;
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                client.getResource(urlUserInfo);
+                fail("Expected OAuth2Exception");
+            } catch (OAuth2Exception e) {
+            }
+        }
+
+        // the resources of the host have their own circuit
+        assertEquals(CircuitBreaker.State.OPEN, OAuth2Utils.getCircuitBreaker(policy, host).getState());
+        assertEquals(CircuitBreaker.State.CLOSED, OAuth2Utils.getCircuitBreaker(policy, tokenEndpoint).getState());
+
+        client.getTokenManager().invalidate();
+        assertNotNull(client.getAccessToken());
+
+        // and clients with another policy don't share it
+        assertNull(OAuth2Utils.getCircuitBreaker(ResiliencePolicy.DEFAULT, host));
+
+        client.close();
+    }
+
+    @Test
+    public void testBackoffAndBudget() throws Exception {
+        System.out.println("testBackoffAndBudget");
+
+        ResiliencePolicy policy = new ResiliencePolicy.Builder()
+                .backoff(100, 1000)
+                .retryBudget(2, 0.5)
+                .build();
+
+        assertEquals(0, policy.getBackoff(1, 0));
+        assertEquals(99, policy.getBackoff(1, 0.999));
+        assertEquals(399, policy.getBackoff(3, 0.999));
+        assertEquals(999, policy.getBackoff(10, 0.999));
+        assertEquals(999, policy.getBackoff(100, 0.999));
+
+        CircuitBreaker breaker = new CircuitBreaker(host, policy);
+        assertTrue(breaker.tryRetry());
+        assertTrue(breaker.tryRetry());
+        assertFalse(breaker.tryRetry());
+
+        // each request earns half a retry
+        breaker.onSuccess(false);
+        assertFalse(breaker.tryRetry());
+        breaker.onSuccess(false);
+        assertTrue(breaker.tryRetry());
+        assertEquals(3, breaker.getRetryCount());
+    }
+
+    @Test
+    public void testBudgetNotRefilledByFailures() throws Exception {
+        System.out.println("testBudgetNotRefilledByFailures");
+
+        ResiliencePolicy policy = new ResiliencePolicy.Builder()
+                .maxRetries(2)
+                .backoff(1, 1)
+                .retryBudget(2, 0.5)
+                .circuitBreaker(0, 200)
+                .build();
+        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .resiliencePolicy(policy)
+                .transport(transport)
+                .build();
+
+        error = new ConnectException("Connection refused");
+        failures = Integer.MAX_VALUE;
+
+        for (int i = 0; i < 10; i++) {
+            try {
+                OAuth2Utils.getAccessToken(config, transport);
+                fail("Expected OAuth2Exception");
+            } catch (OAuth2Exception e) {
+                assertTrue(e.getCause() instanceof ConnectException);
+            }
+        }
+
+        // once the budget is spent the failing requests are not retried anymore
+        CircuitBreaker breaker = OAuth2Utils.getCircuitBreaker(policy, tokenEndpoint);
+        assertEquals(2, breaker.getRetryCount());
+        assertEquals(12, requests.get());
+        assertEquals(0, breaker.getRetryBalance(), 0);
+    }
+
+    @Override
+    protected CloseableHttpResponse handleRequest(HttpRequestBase request) throws Exception {
+        if (!resourcesFailing) {
+            return super.handleRequest(request);
+        }
+
+        CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+        when(response.getEntity()).thenReturn(new StringEntity("Internal Server Error"));
+        when(response.getStatusLine()).thenReturn(createStatusLine(500));
+        return response;
+    }
+
+    private OAuth2Config config(String grantType) {
+        return new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(grantType)
+                .credentials(username, password)
+                .resiliencePolicy(policy)
+                .transport(transport)
+                .build();
+    }
+}
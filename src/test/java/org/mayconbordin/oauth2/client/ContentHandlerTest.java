@@ -0,0 +1,256 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class ContentHandlerTest extends OAuth2BaseTest {
+
+    @Test
+    public void testParseToken() throws Exception {
+        System.out.println("testParseToken");
+
+        AccessToken token = parse("{\"access_token\":\"abc\\/def\\u0021\", \"token_type\": \"Bearer\", "
+                + "\"expires_in\": 3600, \"refresh_token\": \"xyz\"}");
+
+        assertEquals("abc/def!", token.getAccessToken());
+        assertEquals("Bearer", token.getTokenType());
+        assertEquals("xyz", token.getRefreshToken());
+        assertEquals(3600, token.getExpiresIn());
+    }
+
+    @Test
+    public void testParseTokenExpiresInAsString() throws Exception {
+        System.out.println("testParseTokenExpiresInAsString");
+
+        AccessToken token = parse("{\"access_token\":\"abc\",\"expires_in\":\"1800\",\"token_type\":\"Bearer\"}");
+
+        assertEquals(1800, token.getExpiresIn());
+        assertNull(token.getRefreshToken());
+    }
+
+    @Test
+    public void testParseTokenExpiresInMissing() throws Exception {
+        System.out.println("testParseTokenExpiresInMissing");
+
+        // only a missing lifetime is unknown, an explicit zero means already expired
+        assertFalse(parse("{\"access_token\":\"abc\"}").hasExpiration());
+        assertFalse(parse("{\"access_token\":\"abc\",\"expires_in\":null}").hasExpiration());
+        assertTrue(parse("{\"access_token\":\"abc\",\"expires_in\":0}").isExpired());
+        assertTrue(new AccessToken(0, "Bearer", null, "abc").isExpired());
+        assertTrue(new AccessToken(-1, "Bearer", null, "abc").isExpired());
+    }
+
+    @Test
+    public void testParseTokenSkipsUnknownFields() throws Exception {
+        System.out.println("testParseTokenSkipsUnknownFields");
+
+        AccessToken token = parse("{\"id_token\":{\"a\":[1,2.5e3,{\"b\":null}],\"c\":\"}\\\"\"},"
+                + "\"ok\":true,\"access_token\":\"abc\",\"n\":-1.5,\"expires_in\":60.9}");
+
+        assertEquals("abc", token.getAccessToken());
+        assertEquals(60, token.getExpiresIn());
+    }
+
+    @Test
+    public void testParseTokenScope() throws Exception {
+        System.out.println("testParseTokenScope");
+
+        AccessToken token = parse("{\"access_token\":\"abc\",\"scope\":\"write read\"}");
+        assertEquals("write read", token.getScope());
+        assertEquals(new TreeSet<>(Arrays.asList("read", "write")), token.getScopes());
+        assertTrue(token.hasScopes(Arrays.asList("read")));
+        assertFalse(token.hasScopes(Arrays.asList("read", "admin")));
+
+        token = parse("{\"access_token\":\"abc\",\"scope\":[\"read\", \"write\"]}");
+        assertEquals("read write", token.getScope());
+
+        token = parse("{\"access_token\":\"abc\"}");
+        assertNull(token.getScope());
+        assertTrue(token.getScopes().isEmpty());
+    }
+
+    @Test(expected = ParseErrorException.class)
+    public void testParseTokenMalformed() throws Exception {
+        System.out.println("testParseTokenMalformed");
+
+        parse("{\"access_token\":\"abc\",");
+    }
+
+    @Test(expected = ParseErrorException.class)
+    public void testParseTokenInvalidExpiresIn() throws Exception {
+        System.out.println("testParseTokenInvalidExpiresIn");
+
+        parse("{\"expires_in\":\"soon\"}");
+    }
+
+    @Test
+    public void testHandleTokenResponse() throws Exception {
+        System.out.println("testHandleTokenResponse");
+
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(createHttpEntity(accessTokenRefreshResponse));
+
+        AccessToken token = ContentHandler.handleTokenResponse(response);
+
+        assertEquals(accessTokenRefreshResponse.get(OAuth2Constants.ACCESS_TOKEN), token.getAccessToken());
+        assertEquals(accessTokenRefreshResponse.get(OAuth2Constants.REFRESH_TOKEN), token.getRefreshToken());
+        assertEquals(3600, token.getExpiresIn());
+
+        // other content types are parsed into a map
+        response.setEntity(new StringEntity("access_token=abc&token_type=Bearer&expires_in=60",
+                ContentType.APPLICATION_FORM_URLENCODED));
+
+        token = ContentHandler.handleTokenResponse(response);
+
+        assertEquals("abc", token.getAccessToken());
+        assertEquals(60, token.getExpiresIn());
+    }
+
+    @Test
+    public void testHandleXmlResponse() throws Exception {
+        System.out.println("testHandleXmlResponse");
+
+        Map<String, Object> data = ContentHandler.handleXmlResponse("<?xml version=\"1.0\"?>"
+                + "<response><access_token>abc</access_token><token_type><![CDATA[Bearer]]></token_type>"
+                + "<details><expires_in>3600</expires_in><empty/></details></response>");
+
+        assertEquals("abc", data.get("access_token"));
+        assertEquals("Bearer", data.get("token_type"));
+        assertEquals("3600", data.get("expires_in"));
+        assertFalse(data.containsKey("empty"));
+        assertFalse(data.containsKey("details"));
+    }
+
+    @Test(expected = ParseErrorException.class)
+    public void testHandleXmlResponseTooDeep() throws Exception {
+        System.out.println("testHandleXmlResponseTooDeep");
+
+        StringBuilder xml = new StringBuilder();
+        for (int i=0; i<=ContentHandler.MAX_XML_DEPTH; i++) {
+            xml.append("<a>");
+        }
+        xml.append("x");
+        for (int i=0; i<=ContentHandler.MAX_XML_DEPTH; i++) {
+            xml.append("</a>");
+        }
+
+        ContentHandler.handleXmlResponse(xml.toString());
+    }
+
+    @Test(expected = ParseErrorException.class)
+    public void testHandleXmlResponseTooLarge() throws Exception {
+        System.out.println("testHandleXmlResponseTooLarge");
+
+        StringBuilder xml = new StringBuilder("<r><access_token>");
+        while (xml.length() <= ContentHandler.MAX_XML_SIZE) {
+            xml.append("abcdefghij");
+        }
+        xml.append("</access_token></r>");
+
+        ContentHandler.handleXmlResponse(xml.toString());
+    }
+
+    @Test
+    public void testHandleXmlEntityTooLargeNotBuffered() throws Exception {
+        System.out.println("testHandleXmlEntityTooLargeNotBuffered");
+
+        // an endless document, the limit must be enforced while it is read
+        final byte[] head = "<r><access_token>".getBytes(StandardCharsets.UTF_8);
+        final long[] read = new long[1];
+
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContentType(ContentType.APPLICATION_XML.toString());
+        entity.setContent(new InputStream() {
+            @Override
+            public int read() {
+                long position = read[0]++;
+                return (position < head.length) ? head[(int) position] : 'x';
+            }
+        });
+
+        try {
+            ContentHandler.handleEntity(entity);
+            fail("Parsed a document larger than the maximum size");
+        } catch (ParseErrorException e) {
+            assertTrue(read[0] < 2L * ContentHandler.MAX_XML_SIZE);
+        }
+    }
+
+    @Test(expected = ParseErrorException.class)
+    public void testHandleXmlResponseRejectsEntities() throws Exception {
+        System.out.println("testHandleXmlResponseRejectsEntities");
+
+        ContentHandler.handleXmlResponse("<?xml version=\"1.0\"?><!DOCTYPE r [<!ENTITY x SYSTEM \"file:///etc/passwd\">]>"
+                + "<r><access_token>&x;</access_token></r>");
+    }
+
+    @Test
+    public void testConcurrentParsing() throws Exception {
+        System.out.println("testConcurrentParsing");
+
+        final int threads = 8;
+        final int iterations = 2000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> results = new ArrayList<>();
+
+        for (int t=0; t<threads; t++) {
+            final int thread = t;
+
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int parsed = 0;
+
+                    for (int i=0; i<iterations; i++) {
+                        String value = "t" + thread + "i" + i;
+
+                        Map<String, Object> json = ContentHandler.handleJsonResponse(
+                                "{\"access_token\":\"" + value + "\",\"nested\":{\"a\":[1,2,3]}}");
+                        assertEquals(value, json.get("access_token"));
+
+                        Map<String, Object> xml = ContentHandler.handleXmlResponse(
+                                "<response><access_token>" + value + "</access_token></response>");
+                        assertEquals(value, xml.get("access_token"));
+
+                        parsed += 2;
+                    }
+
+                    return parsed;
+                }
+            }));
+        }
+
+        for (Future<Integer> result : results) {
+            assertEquals(2 * iterations, (int) result.get());
+        }
+
+        executor.shutdown();
+    }
+
+    private AccessToken parse(String json) throws Exception {
+        return AccessTokenParser.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,114 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class HistogramMetricsTest extends OAuth2BaseTest {
+    private CloseableHttpClient httpClient;
+
+    @Before
+    public void setUp() throws IOException {
+        httpClient = mockHttpClient();
+    }
+
+    @Test
+    public void testHistogramPercentiles() throws Exception {
+        System.out.println("testHistogramPercentiles");
+
+        Histogram histogram = new Histogram();
+
+        for (long i=1; i<=100000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000000, histogram.getMax());
+        assertEquals(50000500, histogram.getMean(), 1);
+        assertEquals(50000000, histogram.getValueAtPercentile(50), 50000000 * 0.04);
+        assertEquals(99000000, histogram.getValueAtPercentile(99), 99000000 * 0.04);
+        assertEquals(100000000, histogram.getValueAtPercentile(100));
+
+        for (long value : new long[] {0, 1, 63, 64, 127, 128, 1000, 123456789, Long.MAX_VALUE}) {
+            int index = Histogram.indexOf(value);
+            assertTrue(Histogram.lowestValueAt(index) <= value);
+            assertTrue(Histogram.highestValueAt(index) >= value);
+        }
+    }
+
+    @Test
+    public void testHistogramConcurrentRecording() throws Exception {
+        System.out.println("testHistogramConcurrentRecording");
+
+        final Histogram histogram = new Histogram();
+        final int threads = 8;
+        final int iterations = 10000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<>();
+
+        for (int t=0; t<threads; t++) {
+            results.add(executor.submit(() -> {
+                for (int i=0; i<iterations; i++) {
+                    histogram.record(i);
+                }
+            }));
+        }
+
+        for (Future<?> result : results) {
+            result.get();
+        }
+        executor.shutdown();
+
+        assertEquals(threads * iterations, histogram.getCount());
+        assertEquals(iterations - 1, histogram.getMax());
+    }
+
+    @Test
+    public void testClientEvents() throws Exception {
+        System.out.println("testClientEvents");
+
+        HistogramMetrics metrics = new HistogramMetrics();
+
+        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_PASSWORD)
+                .credentials(username, password)
+                .metrics(metrics)
+                .build();
+
+        OAuth2Client client = OAuth2Client.withConfig(new OAuth2Config.Builder(config)
+                .transport(new HttpTransport(config, httpClient, null))
+                .build());
+
+        client.getAccessToken();
+        client.getAccessToken();
+        client.getResource(urlUserInfo);
+
+        assertEquals(1, metrics.getCacheMisses());
+        assertEquals(2, metrics.getCacheHits());
+        assertEquals(1, metrics.getTokenLatency(urlAccessToken, OAuth2Constants.GRANT_PASSWORD).getCount());
+        assertEquals(1, metrics.getParseTimes().get(OAuth2Constants.JSON_CONTENT).getCount());
+        assertEquals(2, metrics.getTokenStatusCount(200) + metrics.getResourceStatusCount(200));
+        assertEquals(1, metrics.getResourceLatency().getCount());
+
+        try {
+            client.getResource(urlUserInfo + "_wrong");
+            fail("Expected ResourceNotFoundException");
+        } catch (ResourceNotFoundException e) {
+            assertEquals(1, metrics.getResourceStatusCount(404));
+        }
+
+        client.close();
+    }
+}
@@ -0,0 +1,144 @@
+package org.mayconbordin.oauth2.client;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class HttpTransportTest extends OAuth2BaseTest {
+
+    @Test
+    public void testTransportSettings() throws Exception {
+        System.out.println("testTransportSettings");
+
+        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .maxConnections(100, 20)
+                .timeouts(1000, 2000, 3000)
+                .keepAliveTime(5000)
+                .idleConnectionTimeout(6000)
+                .validateAfterInactivity(700)
+                .ioThreads(4)
+                .build();
+
+        OAuth2Config copy = new OAuth2Config.Builder(config).build();
+
+        assertEquals(100, copy.getMaxConnections());
+        assertEquals(20, copy.getMaxConnectionsPerRoute());
+        assertEquals(6000, copy.getIdleConnectionTimeout());
+        assertEquals(700, copy.getValidateAfterInactivity());
+        assertEquals(4, copy.getIoThreads());
+
+        RequestConfig requestConfig = HttpTransport.createRequestConfig(copy);
+
+        assertEquals(1000, requestConfig.getConnectTimeout());
+        assertEquals(2000, requestConfig.getSocketTimeout());
+        assertEquals(3000, requestConfig.getConnectionRequestTimeout());
+    }
+
+    @Test
+    public void testKeepAliveStrategy() throws Exception {
+        System.out.println("testKeepAliveStrategy");
+
+        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .keepAliveTime(5000)
+                .build();
+
+        ConnectionKeepAliveStrategy strategy = HttpTransport.createKeepAliveStrategy(config);
+
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        assertEquals(5000, strategy.getKeepAliveDuration(response, new BasicHttpContext()));
+
+        response.addHeader("Keep-Alive", "timeout=2");
+        assertEquals(2000, strategy.getKeepAliveDuration(response, new BasicHttpContext()));
+
+        response.setHeader("Keep-Alive", "timeout=10");
+        assertEquals(5000, strategy.getKeepAliveDuration(response, new BasicHttpContext()));
+    }
+
+    @Test
+    public void testClientOwnsTransport() throws Exception {
+        System.out.println("testClientOwnsTransport");
+
+        OAuth2Client first = OAuth2Client.withClientCredentialsGrant(clientId, clientSecret, urlAccessToken);
+        OAuth2Client second = OAuth2Client.withClientCredentialsGrant(clientId, clientSecret, urlAccessToken);
+
+        assertNotNull(first.getTransport().getHttpClient());
+        assertNotSame(first.getTransport(), second.getTransport());
+        assertNotSame(first.getTransport().getHttpClient(), second.getTransport().getHttpClient());
+
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testClientSharesConfiguredTransport() throws Exception {
+        System.out.println("testClientSharesConfiguredTransport");
+
+        CloseableHttpClient httpClient = mockHttpClient();
+        HttpTransport transport = new HttpTransport(httpClient, null);
+        OAuth2Client first = withClientCredentialsGrant(clientId, clientSecret, urlAccessToken, transport);
+        OAuth2Client second = withClientCredentialsGrant(clientId, clientSecret, urlAccessToken, transport);
+
+        assertSame(transport, first.getTransport());
+        assertSame(transport, second.getTransport());
+        assertSame(transport, first.getAccessToken().getTransport());
+
+        // the transport is not closed with the clients
+        first.close();
+        second.close();
+        verify(httpClient, never()).close();
+    }
+
+    @Test
+    public void testIdleConnectionsEvicted() throws Exception {
+        System.out.println("testIdleConnectionsEvicted");
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/profile", exchange -> {
+            byte[] bytes = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+
+        HttpTransport transport = new HttpTransport(new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .idleConnectionTimeout(200)
+                .build());
+        AccessToken token = new AccessToken(3600, "Bearer", null, "abc").withTransport(transport);
+        String url = "http://localhost:" + server.getAddress().getPort() + "/profile";
+
+        try {
+            token.getResource(url);
+            token.getResourceAsync(url).get();
+
+            assertEquals(1, transport.getConnectionManager().getTotalStats().getAvailable());
+            assertEquals(1, transport.getAsyncConnectionManager().getTotalStats().getAvailable());
+
+            // both pools are evicted by the shared thread
+            Thread.sleep(1000);
+
+            assertEquals(0, transport.getConnectionManager().getTotalStats().getAvailable());
+            assertEquals(0, transport.getAsyncConnectionManager().getTotalStats().getAvailable());
+        } finally {
+            transport.close();
+            server.stop(0);
+        }
+    }
+}
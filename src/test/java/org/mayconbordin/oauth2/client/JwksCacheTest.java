@@ -0,0 +1,289 @@
+package org.mayconbordin.oauth2.client;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class JwksCacheTest extends OAuth2BaseTest {
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static KeyPair rsaKey;
+    private static KeyPair rotatedRsaKey;
+    private static KeyPair ecKey;
+
+    private HttpServer server;
+    private HttpTransport transport;
+    private String urlJwks;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile List<String> jwks;
+
+    @BeforeClass
+    public static void setUpClass() throws GeneralSecurityException {
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        rsa.initialize(2048);
+        rsaKey = rsa.generateKeyPair();
+        rotatedRsaKey = rsa.generateKeyPair();
+
+        KeyPairGenerator ec = KeyPairGenerator.getInstance("EC");
+        ec.initialize(new ECGenParameterSpec("secp256r1"));
+        ecKey = ec.generateKeyPair();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        jwks = new ArrayList<>(Arrays.asList(rsaJwk("rsa1", rsaKey), ecJwk("ec1", ecKey),
+                "{\"kty\":\"oct\",\"kid\":\"hmac\",\"k\":\"c2VjcmV0\"}"));
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/jwks", exchange -> {
+            requests.incrementAndGet();
+            byte[] body = ("{\"keys\":[" + String.join(",", jwks) + "]}").getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().add("Content-Type", "application/jwk-set+json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        urlJwks = "http://localhost:" + server.getAddress().getPort() + "/jwks";
+        transport = HttpTransport.createDefault();
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        System.out.println("testVerify");
+
+        OAuth2Client client = OAuth2Client.withConfig(new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .jwksUrl(urlJwks)
+                .transport(transport)
+                .build());
+
+        String rsaToken = sign("RS256", "rsa1", rsaKey.getPrivate());
+        String ecToken = sign("ES256", "ec1", ecKey.getPrivate());
+
+        assertEquals("oauth_user", client.verify(rsaToken).getSubject());
+        assertEquals("oauth_user", client.verify(ecToken).getSubject());
+        assertEquals("oauth_user", new AccessToken(3600, "Bearer", null, rsaToken).verify(client.getJwksCache()).getSubject());
+
+        // the symmetric key is left out
+        assertEquals(2, client.getJwksCache().getKeys().size());
+        assertEquals(1, requests.get());
+
+        client.close();
+    }
+
+    @Test
+    public void testInvalidToken() throws Exception {
+        System.out.println("testInvalidToken");
+
+        JwksCache cache = new JwksCache(urlJwks, transport);
+        String token = sign("RS256", "rsa1", rsaKey.getPrivate());
+        String[] parts = token.split("\\.");
+
+        String tampered = parts[0] + "." + ENCODER.encodeToString("{\"sub\":\"admin\"}".getBytes(StandardCharsets.UTF_8)) + "." + parts[2];
+        String unsigned = ENCODER.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "." + parts[1] + ".";
+        String wrongKey = sign("RS256", "rsa1", rotatedRsaKey.getPrivate());
+        String wrongAlgorithm = sign("RS256", "ec1", rsaKey.getPrivate());
+
+        Map<String, String> invalid = new LinkedHashMap<>();
+        invalid.put(tampered, "The signature of the token is not valid.");
+        invalid.put(unsigned, "Unsupported signature algorithm: none");
+        invalid.put(wrongKey, "The signature of the token is not valid.");
+        invalid.put(wrongAlgorithm, "No key found for the token, kid: ec1");
+        invalid.put("opaque-token", "The token is not a JWT.");
+
+        for (Map.Entry<String, String> entry : invalid.entrySet()) {
+            try {
+                cache.verify(entry.getKey());
+                fail("Verified an invalid token: " + entry.getKey());
+            } catch (InvalidTokenException e) {
+                assertEquals(entry.getValue(), e.getMessage());
+            }
+        }
+
+        assertNotNull(cache.verify(token));
+    }
+
+    @Test
+    public void testKeyWithoutAlgorithm() throws Exception {
+        System.out.println("testKeyWithoutAlgorithm");
+
+        // rsa1 has no alg, rsa2 is restricted to RS256
+        jwks.add("{\"alg\":\"RS256\"," + rsaJwk("rsa2", rotatedRsaKey).substring(1));
+        JwksCache cache = new JwksCache(urlJwks, transport);
+
+        assertNotNull(cache.verify(sign("RS512", "rsa1", rsaKey.getPrivate())));
+        assertNotNull(cache.verify(sign("RS384", "rsa1", rsaKey.getPrivate())));
+        assertNotNull(cache.verify(sign("RS256", "rsa2", rotatedRsaKey.getPrivate())));
+        assertNull(cache.getKey("rsa1", "ES256"));
+        assertNull(cache.getKey("rsa2", "RS512"));
+
+        try {
+            cache.verify(sign("RS512", "rsa2", rotatedRsaKey.getPrivate()));
+            fail("Verified a token with an algorithm the key does not allow");
+        } catch (InvalidTokenException e) {
+            assertEquals("No key found for the token, kid: rsa2", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testUnknownKidRefetch() throws Exception {
+        System.out.println("testUnknownKidRefetch");
+
+        JwksCache cache = new JwksCache(urlJwks, 60000, 300, transport);
+        cache.verify(sign("RS256", "rsa1", rsaKey.getPrivate()));
+
+        // the key is rotated, tokens signed with it arrive right after the fetch
+        jwks.add(rsaJwk("rsa2", rotatedRsaKey));
+        String rotated = sign("RS256", "rsa2", rotatedRsaKey.getPrivate());
+
+        try {
+            cache.verify(rotated);
+            fail("Fetched the keys again too soon");
+        } catch (InvalidTokenException e) {
+            assertEquals(1, requests.get());
+        }
+
+        Thread.sleep(350);
+        assertNotNull(cache.verify(rotated));
+        assertEquals(2, requests.get());
+
+        // made up key ids don't cause more fetches
+        for (int i = 0; i < 10; i++) {
+            try {
+                cache.verify(sign("RS256", "unknown" + i, rsaKey.getPrivate()));
+                fail("Verified a token with an unknown key");
+            } catch (InvalidTokenException e) {
+            }
+        }
+        assertEquals(2, requests.get());
+        assertEquals(2, cache.getFetchCount());
+    }
+
+    @Test
+    public void testBackgroundRefresh() throws Exception {
+        System.out.println("testBackgroundRefresh");
+
+        JwksCache cache = new JwksCache(urlJwks, 400, 100, transport);
+        String token = sign("ES256", "ec1", ecKey.getPrivate());
+
+        cache.verify(token);
+        Thread.sleep(320);
+
+        // served from the cache, while the keys are fetched in background
+        cache.verify(token);
+
+        for (int i = 0; i < 100 && requests.get() < 2; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(2, requests.get());
+
+        // the keys are used after a failed fetch
+        server.removeContext("/jwks");
+        Thread.sleep(450);
+
+        assertNotNull(cache.verify(token));
+    }
+
+    @Test(expected = OAuth2Exception.class)
+    public void testNoJwksUrl() throws Exception {
+        System.out.println("testNoJwksUrl");
+
+        withClientCredentialsGrant(clientId, clientSecret, urlAccessToken, transport)
+                .verify(sign("RS256", "rsa1", rsaKey.getPrivate()));
+    }
+
+    private static String sign(String alg, String kid, PrivateKey key) throws GeneralSecurityException {
+        String input = ENCODER.encodeToString(("{\"alg\":\"" + alg + "\",\"kid\":\"" + kid + "\"}").getBytes(StandardCharsets.UTF_8))
+                + "." + ENCODER.encodeToString(("{\"sub\":\"oauth_user\",\"exp\":" + (System.currentTimeMillis() / 1000 + 3600) + "}")
+                        .getBytes(StandardCharsets.UTF_8));
+
+        Signature signature = Signature.getInstance("SHA" + alg.substring(2) + (alg.startsWith("ES") ? "withECDSA" : "withRSA"));
+        signature.initSign(key);
+        signature.update(input.getBytes(StandardCharsets.US_ASCII));
+        byte[] bytes = signature.sign();
+
+        return input + "." + ENCODER.encodeToString(alg.startsWith("ES") ? toRaw(bytes, 32) : bytes);
+    }
+
+    /**
+     * Convert a DER ECDSA signature to the concatenation of R and S used by JWS.
+     */
+    private static byte[] toRaw(byte[] der, int size) {
+        byte[] raw = new byte[size * 2];
+        int rLength = der[3];
+        int sLength = der[5 + rLength];
+
+        copyInteger(der, 4, rLength, raw, 0, size);
+        copyInteger(der, 6 + rLength, sLength, raw, size, size);
+        return raw;
+    }
+
+    private static void copyInteger(byte[] der, int offset, int length, byte[] raw, int rawOffset, int size) {
+        int skip = Math.max(0, length - size);
+        System.arraycopy(der, offset + skip, raw, rawOffset + size - (length - skip), length - skip);
+    }
+
+    private static String rsaJwk(String kid, KeyPair key) {
+        RSAPublicKey publicKey = (RSAPublicKey) key.getPublic();
+        return "{\"kty\":\"RSA\",\"use\":\"sig\",\"kid\":\"" + kid + "\",\"n\":\"" + encode(publicKey.getModulus(), 0)
+                + "\",\"e\":\"" + encode(publicKey.getPublicExponent(), 0) + "\"}";
+    }
+
+    private static String ecJwk(String kid, KeyPair key) {
+        ECPublicKey publicKey = (ECPublicKey) key.getPublic();
+        return "{\"kty\":\"EC\",\"alg\":\"ES256\",\"crv\":\"P-256\",\"kid\":\"" + kid
+                + "\",\"x\":\"" + encode(publicKey.getW().getAffineX(), 32)
+                + "\",\"y\":\"" + encode(publicKey.getW().getAffineY(), 32) + "\"}";
+    }
+
+    private static String encode(BigInteger value, int size) {
+        byte[] bytes = value.toByteArray();
+
+        if (bytes[0] == 0 && bytes.length > 1) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        if (bytes.length < size) {
+            byte[] padded = new byte[size];
+            System.arraycopy(bytes, 0, padded, size - bytes.length, bytes.length);
+            bytes = padded;
+        }
+        return ENCODER.encodeToString(bytes);
+    }
+}
@@ -0,0 +1,258 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class MappedFileTokenStoreTest extends OAuth2BaseTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CloseableHttpClient httpClient;
+    private HttpTransport transport;
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException {
+        httpClient = mockHttpClient();
+        transport = new HttpTransport(httpClient, null);
+        path = folder.getRoot().toPath().resolve("tokens.dat");
+    }
+
+    @Test
+    public void testSaveAndReopen() throws Exception {
+        System.out.println("testSaveAndReopen");
+
+        AccessToken token = new AccessToken(3600, "Bearer", "refresh", "access", "read write");
+        AccessToken expired = new AccessToken(0, System.currentTimeMillis() - 1000, "Bearer", null, "old", null);
+
+        MappedFileTokenStore store = new MappedFileTokenStore(path);
+        store.save(tenant("tenant1"), token);
+        store.save(tenant("tenant2"), expired);
+        store.save(tenant("tenant3"), token);
+        store.remove(tenant("tenant3"));
+        store.save(tenant("tenant4"), new AccessToken(0, AccessToken.NO_EXPIRATION, "Bearer", null, "unknown", null));
+        store.close();
+
+        store = new MappedFileTokenStore(path);
+        AccessToken loaded = store.load(tenant("tenant1"));
+
+        assertEquals(token.getAccessToken(), loaded.getAccessToken());
+        assertEquals(token.getRefreshToken(), loaded.getRefreshToken());
+        assertEquals(token.getTokenType(), loaded.getTokenType());
+        assertEquals(token.getExpiresAt(), loaded.getExpiresAt());
+        assertEquals(token.getScope(), loaded.getScope());
+        assertNull(store.load(tenant("tenant2")));
+        assertNull(store.load(tenant("tenant3")));
+        // a token without a known lifetime is kept
+        assertEquals("unknown", store.load(tenant("tenant4")).getAccessToken());
+        assertEquals(2, store.size());
+
+        // another secret doesn't load the token
+        assertNull(store.load(new OAuth2Config.Builder(clientId, "wrong_secret", urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .scope("tenant1")
+                .build()));
+        store.close();
+    }
+
+    @Test
+    public void testEncryption() throws Exception {
+        System.out.println("testEncryption");
+
+        SecretKey key = KeyGenerator.getInstance("AES").generateKey();
+        AccessToken token = new AccessToken(3600, "Bearer", "refresh", "access");
+
+        MappedFileTokenStore store = new MappedFileTokenStore(path, key);
+        store.save(tenant("tenant1"), token);
+        store.close();
+
+        store = new MappedFileTokenStore(path, key);
+        assertEquals(token.getAccessToken(), store.load(tenant("tenant1")).getAccessToken());
+        store.close();
+
+        // records that can't be decrypted are ignored
+        store = new MappedFileTokenStore(path, KeyGenerator.getInstance("AES").generateKey());
+        assertNull(store.load(tenant("tenant1")));
+        store.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        System.out.println("testCompaction");
+
+        MappedFileTokenStore store = new MappedFileTokenStore(path, null, 256);
+
+        for (int i=0; i<100; i++) {
+            store.save(tenant("tenant" + (i % 3)), new AccessToken(3600, "Bearer", null, "access" + i));
+        }
+
+        assertEquals(3, store.size());
+        store.close();
+
+        store = new MappedFileTokenStore(path);
+        assertEquals("access99", store.load(tenant("tenant0")).getAccessToken());
+        assertEquals("access97", store.load(tenant("tenant1")).getAccessToken());
+        assertEquals("access98", store.load(tenant("tenant2")).getAccessToken());
+        store.close();
+    }
+
+    @Test
+    public void testFileLockedWhileOpen() throws Exception {
+        System.out.println("testFileLockedWhileOpen");
+
+        MappedFileTokenStore store = new MappedFileTokenStore(path);
+        // the lock must not be lost when it becomes only weakly reachable
+        System.gc();
+
+        try {
+            new MappedFileTokenStore(path);
+            fail("Opened a store that is already open");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("already open"));
+        }
+
+        // the lock survives the compaction, which replaces the file
+        for (int i=0; i<10000; i++) {
+            store.save(tenant("tenant" + (i % 3)), new AccessToken(3600, "Bearer", null, "access" + i));
+        }
+
+        try {
+            new MappedFileTokenStore(path);
+            fail("Opened a store that is already open");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("already open"));
+        }
+        store.close();
+
+        store = new MappedFileTokenStore(path);
+        assertEquals("access9999", store.load(tenant("tenant0")).getAccessToken());
+        store.close();
+    }
+
+    @Test
+    public void testFileLockedForOtherProcess() throws Exception {
+        System.out.println("testFileLockedForOtherProcess");
+
+        MappedFileTokenStore store = new MappedFileTokenStore(path);
+
+        // a refused open in this process must not release the lock of the store
+        try {
+            new MappedFileTokenStore(path);
+            fail("Opened a store that is already open");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("already open"));
+        }
+
+        assertEquals(OpenStore.REFUSED, openFromOtherProcess());
+        store.close();
+
+        assertEquals(OpenStore.OPENED, openFromOtherProcess());
+    }
+
+    @Test
+    public void testOwnerOnlyPermissions() throws Exception {
+        System.out.println("testOwnerOnlyPermissions");
+        assumeTrue(path.getFileSystem().supportedFileAttributeViews().contains("posix"));
+
+        Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rw-------");
+        MappedFileTokenStore store = new MappedFileTokenStore(path, null, 256);
+
+        assertEquals(ownerOnly, Files.getPosixFilePermissions(path));
+        assertEquals(ownerOnly, Files.getPosixFilePermissions(path.resolveSibling("tokens.dat.lock")));
+
+        // the compacted file replaces the store file
+        for (int i=0; i<100; i++) {
+            store.save(tenant("tenant" + (i % 3)), new AccessToken(3600, "Bearer", null, "access" + i));
+        }
+
+        assertEquals(ownerOnly, Files.getPosixFilePermissions(path));
+        store.close();
+    }
+
+    @Test
+    public void testWarmRestart() throws Exception {
+        System.out.println("testWarmRestart");
+
+        MappedFileTokenStore store = new MappedFileTokenStore(path);
+        OAuth2Config config = new OAuth2Config.Builder(tenant(null)).tokenStore(store).build();
+
+        OAuth2Client client = OAuth2Client.withConfig(config);
+        AccessToken token = client.getAccessToken();
+        client.close();
+        store.close();
+
+        // a new process reuses the saved token
+        store = new MappedFileTokenStore(path);
+        config = new OAuth2Config.Builder(config).tokenStore(store).build();
+
+        client = OAuth2Client.withConfig(config);
+        assertEquals(token.getAccessToken(), client.getAccessToken().getAccessToken());
+
+        TokenRegistry registry = new TokenRegistry(TokenRegistry.DEFAULT_MAXIMUM_SIZE, TokenRegistry.DEFAULT_IDLE_TIME, transport);
+        assertEquals(token.getAccessToken(), registry.getAccessToken(config).getAccessToken());
+
+        verify(httpClient, times(1)).execute(any(HttpUriRequest.class));
+        client.close();
+        store.close();
+    }
+
+    private int openFromOtherProcess() throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                OpenStore.class.getName(), path.toString())
+                .inheritIO()
+                .start();
+
+        return process.waitFor();
+    }
+
+    /**
+     * Opens a store in another process, exiting with whether it was opened.
+     */
+    public static class OpenStore {
+        static final int OPENED = 0;
+        static final int REFUSED = 3;
+
+        public static void main(String[] args) throws IOException {
+            try {
+                new MappedFileTokenStore(Paths.get(args[0])).close();
+            } catch (IOException e) {
+                if (e.getMessage().contains("already open")) {
+                    System.exit(REFUSED);
+                }
+                throw e;
+            }
+            System.exit(OPENED);
+        }
+    }
+
+    private OAuth2Config tenant(String scope) {
+        return new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .scope(scope)
+                .transport(transport)
+                .build();
+    }
+}
@@ -3,11 +3,13 @@ package org.mayconbordin.oauth2.client;
 import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
 import org.apache.http.NameValuePair;
 import org.apache.http.StatusLine;
@@ -16,12 +18,15 @@ import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.message.BasicStatusLine;
 import org.json.simple.JSONObject;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyObject;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import org.mockito.invocation.InvocationOnMock;
@@ -106,6 +111,21 @@ public class OAuth2BaseTest {
         }
     };
     
+    protected Answer<Object> executeAsyncAnswer = new Answer<Object>() {
+        @Override
+        public Object answer(InvocationOnMock invocation) throws Throwable {
+            FutureCallback<HttpResponse> callback = invocation.getArgumentAt(1, FutureCallback.class);
+            
+            try {
+                callback.completed((HttpResponse) executeAnswer.answer(invocation));
+            } catch (Exception e) {
+                callback.failed(e);
+            }
+            
+            return null;
+        }
+    };
+    
     protected CloseableHttpResponse handleRequest(HttpRequestBase request) throws Exception {
         String requestUrl = request.getURI().toString();
         Header authorization = request.getFirstHeader(OAuth2Constants.AUTHORIZATION); 
@@ -262,4 +282,35 @@ public class OAuth2BaseTest {
         
         return httpClient;
     }
+    
+    protected CloseableHttpAsyncClient mockHttpAsyncClient() {
+        CloseableHttpAsyncClient httpAsyncClient = mock(CloseableHttpAsyncClient.class);
+        when(httpAsyncClient.isRunning()).thenReturn(true);
+        when(httpAsyncClient.execute(any(HttpUriRequest.class), (FutureCallback<HttpResponse>) anyObject())).then(executeAsyncAnswer);
+        
+        return httpAsyncClient;
+    }
+    
+    protected static String createJwt(String payload) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"RS256\",\"typ\":\"at+jwt\"}".getBytes(StandardCharsets.UTF_8))
+                + "." + encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + ".c2lnbmF0dXJl";
+    }
+    
+    protected OAuth2Client withClientCredentialsGrant(String clientId, String clientSecret,
+            String urlAccessToken, HttpTransport transport) {
+        return OAuth2Client.withConfig(new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .transport(transport)
+                .build());
+    }
+    
+    protected OAuth2Client withPasswordGrant(String username, String password, String clientId,
+            String clientSecret, String urlAccessToken, HttpTransport transport) {
+        return OAuth2Client.withConfig(new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_PASSWORD)
+                .credentials(username, password)
+                .transport(transport)
+                .build());
+    }
 }
@@ -1,30 +1,59 @@
 package org.mayconbordin.oauth2.client;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.junit.*;
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  *
  * @author Maycon Bordin <mayconbordin@gmail.com>
  */
 public class OAuth2ClientTest extends OAuth2BaseTest {
+    private HttpTransport transport;
     
     @Before
     public void setUp() throws IOException {
-        CloseableHttpClient httpClient = mockHttpClient();
-        OAuth2Utils.setHttpClient(httpClient);
+        transport = new HttpTransport(mockHttpClient(), null);
     }
 
     @Test
     public void testGetAccessTokenGrantPassword() throws Exception {
         System.out.println("testGetAccessTokenGrantPassword");
 
-        OAuth2Client client = OAuth2Client.withPasswordGrant(
+        OAuth2Client client = withPasswordGrant(
             "oauth_user", "oauth_user_password",
             "client1id", "client1secret",
-            "http://localhost/api/oauth/access_token");
+            "http://localhost/api/oauth/access_token", transport);
         
         AccessToken token = client.getAccessToken();
         
@@ -38,10 +67,10 @@ public class OAuth2ClientTest extends OAuth2BaseTest {
     public void testGetAccessTokenGrantPasswordWrongUserCredentials() throws Exception {
         System.out.println("testGetAccessTokenGrantPasswordWrongUserCredentials");
 
-        OAuth2Client client = OAuth2Client.withPasswordGrant(
+        OAuth2Client client = withPasswordGrant(
             "oauth_user_wrong", "oauth_user_password",
             "client1id", "client1secret",
-            "http://localhost/api/oauth/access_token");
+            "http://localhost/api/oauth/access_token", transport);
         
         AccessToken token = client.getAccessToken();
     }
@@ -50,9 +79,9 @@ public class OAuth2ClientTest extends OAuth2BaseTest {
     public void testGetAccessTokenGrantClientCredentials() throws Exception {
         System.out.println("testGetAccessTokenGrantClientCredentials");
 
-        OAuth2Client client = OAuth2Client.withClientCredentialsGrant(
+        OAuth2Client client = withClientCredentialsGrant(
             "client1id", "client1secret",
-            "http://localhost/api/oauth/access_token");
+            "http://localhost/api/oauth/access_token", transport);
         
         AccessToken token = client.getAccessToken();
 
@@ -66,9 +95,9 @@ public class OAuth2ClientTest extends OAuth2BaseTest {
     public void testGetAccessTokenGrantClientCredentialsWrongCredentials() throws Exception {
         System.out.println("testGetAccessTokenGrantClientCredentialsWrongCredentials");
 
-        OAuth2Client client = OAuth2Client.withClientCredentialsGrant(
+        OAuth2Client client = withClientCredentialsGrant(
             "client1id_wrong", "client1secret",
-            "http://localhost/api/oauth/access_token");
+            "http://localhost/api/oauth/access_token", transport);
         
         AccessToken token = client.getAccessToken();
     }
@@ -77,11 +106,305 @@ public class OAuth2ClientTest extends OAuth2BaseTest {
     public void testGetAccessTokenGrantClientCredentialsWrongUrl() throws Exception {
         System.out.println("testGetAccessTokenGrantClientCredentialsMissingFields");
 
-        OAuth2Client client = OAuth2Client.withClientCredentialsGrant(
+        OAuth2Client client = withClientCredentialsGrant(
             "client1id", "client1secret",
-            "http://localhost/api/oauth/access_token_wrong");
+            "http://localhost/api/oauth/access_token_wrong", transport);
         
         AccessToken token = client.getAccessToken();
     }
     
+    @Test
+    public void testConcurrentGetAccessTokenIsCoalesced() throws Exception {
+        System.out.println("testConcurrentGetAccessTokenIsCoalesced");
+        
+        final int threads = 20;
+        final SingleFlight<Object, AccessToken> requests = OAuth2Utils.getTokenRequests();
+        final long coalesced = requests.getCoalescedCount();
+        
+        // hold the request until all the other threads are waiting on it
+        CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+        when(httpClient.execute(any(HttpUriRequest.class))).then(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                long deadline = System.currentTimeMillis() + 5000;
+                while (requests.getCoalescedCount() - coalesced < threads - 1
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                return executeAnswer.answer(invocation);
+            }
+        });
+        transport = new HttpTransport(httpClient, null);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<AccessToken>> results = new ArrayList<>();
+        
+        for (int i=0; i<threads; i++) {
+            results.add(executor.submit(new Callable<AccessToken>() {
+                @Override
+                public AccessToken call() throws Exception {
+                    return withClientCredentialsGrant(clientId, clientSecret, urlAccessToken, transport)
+                            .getAccessToken();
+                }
+            }));
+        }
+        
+        for (Future<AccessToken> result : results) {
+            assertEquals(accessTokenResponse.get(OAuth2Constants.ACCESS_TOKEN), result.get().getAccessToken());
+        }
+        executor.shutdown();
+        
+        verify(httpClient, times(1)).execute(any(HttpUriRequest.class));
+        assertEquals(threads - 1, requests.getCoalescedCount() - coalesced);
+    }
+    
+    @Test
+    public void testCancelledCallerDoesNotAffectCoalescedCallers() throws Throwable {
+        System.out.println("testCancelledCallerDoesNotAffectCoalescedCallers");
+        
+        final SingleFlight<Object, AccessToken> requests = OAuth2Utils.getTokenRequests();
+        final long coalesced = requests.getCoalescedCount();
+        final List<InvocationOnMock> pending = new ArrayList<>();
+        
+        // hold the request until it is answered by the test
+        CloseableHttpAsyncClient httpAsyncClient = mock(CloseableHttpAsyncClient.class);
+        when(httpAsyncClient.isRunning()).thenReturn(true);
+        when(httpAsyncClient.execute(any(HttpUriRequest.class), (FutureCallback<HttpResponse>) anyObject())).then(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                pending.add(invocation);
+                return null;
+            }
+        });
+        
+        final HttpTransport transport = new HttpTransport(mockHttpClient(), httpAsyncClient);
+        final OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .build();
+        
+        CompletableFuture<AccessToken> cancelled = OAuth2Utils.getAccessTokenAsync(config, transport);
+        CompletableFuture<AccessToken> async = OAuth2Utils.getAccessTokenAsync(config, transport);
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<AccessToken> blocking = executor.submit(new Callable<AccessToken>() {
+            @Override
+            public AccessToken call() throws Exception {
+                return OAuth2Utils.getAccessToken(config, transport);
+            }
+        });
+        
+        long deadline = System.currentTimeMillis() + 5000;
+        while (requests.getCoalescedCount() - coalesced < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, requests.getCoalescedCount() - coalesced);
+        
+        assertTrue(cancelled.cancel(true));
+        
+        assertEquals(1, pending.size());
+        InvocationOnMock request = pending.get(0);
+        request.getArgumentAt(1, FutureCallback.class).completed(executeAnswer.answer(request));
+        
+        String accessToken = (String) accessTokenResponse.get(OAuth2Constants.ACCESS_TOKEN);
+        assertTrue(cancelled.isCancelled());
+        assertEquals(accessToken, async.get(5, TimeUnit.SECONDS).getAccessToken());
+        assertEquals(accessToken, blocking.get(5, TimeUnit.SECONDS).getAccessToken());
+        executor.shutdown();
+    }
+    
+    @Test
+    public void testGetAccessTokenWithOtherSecretIsNotCoalesced() throws Exception {
+        System.out.println("testGetAccessTokenWithOtherSecretIsNotCoalesced");
+        
+        final CountDownLatch inFlight = new CountDownLatch(1);
+        final CountDownLatch rejected = new CountDownLatch(1);
+        
+        // hold the request with the right secret until the other one was answered
+        CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+        when(httpClient.execute(any(HttpUriRequest.class))).then(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                CloseableHttpResponse response = (CloseableHttpResponse) executeAnswer.answer(invocation);
+                
+                if (response.getStatusLine().getStatusCode() == 401) {
+                    rejected.countDown();
+                } else {
+                    inFlight.countDown();
+                    rejected.await(5, TimeUnit.SECONDS);
+                }
+                return response;
+            }
+        });
+        transport = new HttpTransport(httpClient, null);
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<AccessToken> valid = executor.submit(new Callable<AccessToken>() {
+            @Override
+            public AccessToken call() throws Exception {
+                return withClientCredentialsGrant(clientId, clientSecret, urlAccessToken, transport).getAccessToken();
+            }
+        });
+        
+        assertTrue(inFlight.await(5, TimeUnit.SECONDS));
+        
+        try {
+            withClientCredentialsGrant(clientId, "wrong_secret", urlAccessToken, transport).getAccessToken();
+            fail("Got the token requested with another secret");
+        } catch (OAuth2Exception e) {
+            assertEquals(0, rejected.getCount());
+        }
+        
+        assertNotNull(valid.get().getAccessToken());
+        executor.shutdown();
+    }
+    
+    @Test
+    public void testResponseClosedWhenParsingFails() throws Exception {
+        System.out.println("testResponseClosedWhenParsingFails");
+        
+        final CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+        when(response.getStatusLine()).thenReturn(createStatusLine(200));
+        when(response.getEntity()).thenReturn(new StringEntity("{\"access_token\":", ContentType.APPLICATION_JSON));
+        
+        // the connection is reset while the resource is read
+        HttpEntity entity = mock(HttpEntity.class);
+        when(entity.getContent()).thenThrow(new IOException("Connection reset"));
+        final CloseableHttpResponse resource = mock(CloseableHttpResponse.class);
+        when(resource.getStatusLine()).thenReturn(createStatusLine(200));
+        when(resource.getEntity()).thenReturn(entity);
+        
+        CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+        when(httpClient.execute(any(HttpUriRequest.class))).thenReturn(response, resource);
+        transport = new HttpTransport(httpClient, null);
+        
+        try {
+            withClientCredentialsGrant(clientId, clientSecret, urlAccessToken, transport).getAccessToken();
+            fail("Parsed a truncated response");
+        } catch (ParseErrorException e) {
+            verify(response).close();
+        }
+        
+        try {
+            OAuth2Utils.getProtectedResource(new AccessToken(3600, "Bearer", null, "abc").withTransport(transport), urlUserInfo);
+            fail("Read a reset resource");
+        } catch (OAuth2Exception e) {
+            verify(resource).close();
+        }
+    }
+    
+    @Test
+    public void testAuthSchemeIsRemembered() throws Exception {
+        System.out.println("testAuthSchemeIsRemembered");
+        
+        final String basicClient = OAuth2Constants.BASIC + " " 
+                + OAuth2RequestBuilder.encodeCredentials(clientId, clientSecret);
+        
+        // only accept basic authentication with the client credentials
+        CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+        when(httpClient.execute(any(HttpUriRequest.class))).then(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                HttpUriRequest request = invocation.getArgumentAt(0, HttpUriRequest.class);
+                Header authorization = request.getFirstHeader(OAuth2Constants.AUTHORIZATION);
+                
+                if (authorization == null || !authorization.getValue().equals(basicClient)) {
+                    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+                    when(response.getStatusLine()).thenReturn(createStatusLine(401));
+                    when(response.getEntity()).thenReturn(createHttpEntity(invalidClientResponse));
+                    return response;
+                }
+                return executeAnswer.answer(invocation);
+            }
+        });
+        transport = new HttpTransport(httpClient, null);
+        
+        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_PASSWORD)
+                .credentials(username, password)
+                .build();
+        
+        assertNotNull(OAuth2Utils.getAccessToken(config, transport));
+        verify(httpClient, times(3)).execute(any(HttpUriRequest.class));
+        
+        assertNotNull(OAuth2Utils.getAccessToken(config, transport));
+        verify(httpClient, times(4)).execute(any(HttpUriRequest.class));
+        
+        // an explicit scheme is used as is
+        config = new OAuth2Config.Builder(config).authScheme(ClientAuthScheme.BODY).build();
+        
+        try {
+            OAuth2Utils.getAccessToken(config, transport);
+            fail("Expected UnauthorizedClientException");
+        } catch (UnauthorizedClientException e) {
+            verify(httpClient, times(5)).execute(any(HttpUriRequest.class));
+        }
+    }
+    
+    @Test
+    public void testGetResourceReplaysWithNewToken() throws Exception {
+        System.out.println("testGetResourceReplaysWithNewToken");
+        
+        final String revoked = "revoked_access_token";
+        final Map<String, Object> revokedResponse = new HashMap<>(accessTokenRefreshResponse);
+        revokedResponse.put(OAuth2Constants.ACCESS_TOKEN, revoked);
+        final AtomicInteger tokenRequests = new AtomicInteger();
+        
+        // the first token issued is rejected by the resource server
+        CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+        when(httpClient.execute(any(HttpUriRequest.class))).then(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                HttpUriRequest request = invocation.getArgumentAt(0, HttpUriRequest.class);
+                
+                if (request.getURI().toString().equals(urlAccessToken)
+                        && tokenRequests.getAndIncrement() == 0) {
+                    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+                    when(response.getStatusLine()).thenReturn(createStatusLine(200));
+                    when(response.getEntity()).thenReturn(createHttpEntity(revokedResponse));
+                    return response;
+                }
+                return executeAnswer.answer(invocation);
+            }
+        });
+        transport = new HttpTransport(httpClient, null);
+        
+        OAuth2Client client = withPasswordGrant(username, password,
+                clientId, clientSecret, urlAccessToken, transport);
+        
+        assertEquals(revoked, client.getAccessToken().getAccessToken());
+        
+        String userInfo = client.getResource(urlUserInfo);
+        
+        assertEquals(userInfoResponse, ContentHandler.handleJsonResponse(userInfo));
+        assertEquals(accessTokenRefreshResponse.get(OAuth2Constants.ACCESS_TOKEN), 
+                client.getAccessToken().getAccessToken());
+        assertEquals(1, client.getResourceExecutor().getReplayCount());
+        assertEquals(0, client.getResourceExecutor().getReplayFailureCount());
+        verify(httpClient, times(4)).execute(any(HttpUriRequest.class));
+        
+        client.close();
+    }
+    
+    @Test
+    public void testGetResourceReplayIsBounded() throws Exception {
+        System.out.println("testGetResourceReplayIsBounded");
+        
+        CloseableHttpClient httpClient = mockHttpClient();
+        transport = new HttpTransport(httpClient, null);
+        
+        // tokens of the client credentials grant are never accepted by the resource server
+        OAuth2Client client = withClientCredentialsGrant(clientId, clientSecret, urlAccessToken, transport);
+        
+        try {
+            client.getResource(urlUserInfo);
+            fail("Expected UnauthorizedClientException");
+        } catch (UnauthorizedClientException e) {
+            assertEquals(1, client.getResourceExecutor().getReplayCount());
+            assertEquals(1, client.getResourceExecutor().getReplayFailureCount());
+            verify(httpClient, times(4)).execute(any(HttpUriRequest.class));
+        }
+        
+        client.close();
+    }
+    
 }
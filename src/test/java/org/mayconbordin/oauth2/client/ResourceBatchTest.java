@@ -0,0 +1,211 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class ResourceBatchTest extends OAuth2BaseTest {
+
+    private CloseableHttpClient httpClient;
+    private CloseableHttpAsyncClient httpAsyncClient;
+    private HttpTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        httpClient = mockHttpClient();
+        httpAsyncClient = mockHttpAsyncClient();
+        transport = new HttpTransport(httpClient, httpAsyncClient);
+    }
+
+    @Test
+    public void testGetResources() throws Exception {
+        System.out.println("testGetResources");
+
+        OAuth2Client client = withPasswordGrant(
+            username, password, clientId, clientSecret, urlAccessToken, transport);
+
+        List<String> urls = new ArrayList<>();
+        for (int i=0; i<50; i++) {
+            urls.add(urlUserInfo);
+        }
+        urls.add(25, urlUserInfo + "_missing");
+
+        ResourceBatch batch = client.getResources(urls);
+        int succeeded = 0, failed = 0;
+        ResourceResult result;
+
+        while ((result = batch.take()) != null) {
+            if (result.isSuccess()) {
+                assertTrue(result.getContent().contains((String) userInfoResponse.get("email")));
+                succeeded++;
+            } else {
+                assertTrue(result.getError() instanceof ResourceNotFoundException);
+                assertEquals(urlUserInfo + "_missing", result.getUrl());
+                failed++;
+            }
+        }
+
+        assertEquals(50, succeeded);
+        assertEquals(1, failed);
+        assertTrue(batch.isDone());
+
+        List<ResourceResult> results = batch.getResults().get();
+        assertEquals(51, results.size());
+        assertFalse(results.get(25).isSuccess());
+
+        try {
+            results.get(25).getContent();
+            fail("Expected ResourceNotFoundException");
+        } catch (ResourceNotFoundException e) {
+        }
+
+        client.close();
+    }
+
+    @Test
+    public void testGetResourcesOnExecutor() throws Exception {
+        System.out.println("testGetResourcesOnExecutor");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_PASSWORD)
+                .credentials(username, password)
+                .executor(executor)
+                .build();
+        OAuth2Client client = OAuth2Client.withConfig(new OAuth2Config.Builder(config)
+                .transport(new HttpTransport(config, httpClient, httpAsyncClient))
+                .build());
+
+        List<String> urls = new ArrayList<>();
+        for (int i=0; i<20; i++) {
+            urls.add(urlUserInfo);
+        }
+
+        for (ResourceResult result : client.getResources(urls).getResults().get()) {
+            assertTrue(result.getContent().contains((String) userInfoResponse.get("email")));
+        }
+
+        // the token and the resources were requested with the blocking client
+        verifyZeroInteractions(httpAsyncClient);
+
+        if (VirtualThreads.isSupported()) {
+            assertNotNull(new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken).virtualThreads().build().getExecutor());
+        } else {
+            try {
+                new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken).virtualThreads();
+                fail("Expected UnsupportedOperationException");
+            } catch (UnsupportedOperationException e) {
+            }
+        }
+
+        client.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testGetResourcesOnVirtualThreads() throws Exception {
+        System.out.println("testGetResourcesOnVirtualThreads");
+        Assume.assumeTrue(VirtualThreads.isSupported());
+
+        final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+        when(httpClient.execute(any(HttpUriRequest.class))).then(invocation -> {
+            threads.add(Thread.currentThread());
+            return executeAnswer.answer(invocation);
+        });
+
+        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_PASSWORD)
+                .credentials(username, password)
+                .virtualThreads()
+                .build();
+        OAuth2Client client = OAuth2Client.withConfig(new OAuth2Config.Builder(config)
+                .transport(new HttpTransport(config, httpClient, httpAsyncClient))
+                .build());
+        client.getAccessToken();
+        threads.clear();
+
+        List<String> urls = new ArrayList<>();
+        for (int i=0; i<20; i++) {
+            urls.add(urlUserInfo);
+        }
+
+        for (ResourceResult result : client.getResources(urls).getResults().get()) {
+            assertTrue(result.getContent().contains((String) userInfoResponse.get("email")));
+        }
+
+        // every blocking request ran on a virtual thread
+        Method isVirtual = Thread.class.getMethod("isVirtual");
+        assertFalse(threads.isEmpty());
+        for (Thread thread : threads) {
+            assertTrue((Boolean) isVirtual.invoke(thread));
+        }
+        verifyZeroInteractions(httpAsyncClient);
+
+        client.close();
+    }
+
+    @Test
+    public void testConcurrencyIsBounded() throws Exception {
+        System.out.println("testConcurrencyIsBounded");
+
+        final List<CompletableFuture<String>> pending = new ArrayList<>();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        ResourceBatch batch = new ResourceBatch(Arrays.asList("a", "b", "c", "d", "e"), 2, url -> {
+            CompletableFuture<String> future = new CompletableFuture<>();
+            pending.add(future);
+
+            int inFlight = (int) pending.stream().filter(f -> !f.isDone()).count();
+            maxInFlight.set(Math.max(maxInFlight.get(), inFlight));
+            return future;
+        });
+
+        assertEquals(2, pending.size());
+        assertNull(batch.poll(10, TimeUnit.MILLISECONDS));
+
+        // completions start the next requests, and are taken in the order they complete
+        pending.get(1).complete("b");
+        pending.get(0).completeExceptionally(new ServerErrorException());
+        assertEquals("b", batch.take().getContent());
+        assertTrue(batch.take().getError() instanceof ServerErrorException);
+        assertEquals(4, pending.size());
+
+        pending.get(3).complete("d");
+        pending.get(2).complete("c");
+        pending.get(4).complete("e");
+
+        assertEquals("d", batch.take().getContent());
+        assertEquals("c", batch.take().getContent());
+        assertEquals("e", batch.take().getContent());
+        assertNull(batch.take());
+
+        assertEquals(2, maxInFlight.get());
+        assertEquals("c", batch.getResults().get().get(2).getContent());
+    }
+}
@@ -0,0 +1,194 @@
+package org.mayconbordin.oauth2.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class ResourceBodyTest extends OAuth2BaseTest {
+    private HttpServer server;
+    private String baseUrl;
+    private final AtomicInteger tokenRequests = new AtomicInteger();
+    private final List<Upload> uploads = new CopyOnWriteArrayList<>();
+    private volatile int uploadStatus = 200;
+
+    private static class Upload {
+        String method;
+        String authorization;
+        String transferEncoding;
+        String contentLength;
+        String content;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/token", exchange -> {
+            int n = tokenRequests.incrementAndGet();
+            readContent(exchange);
+            respond(exchange, 200, "{\"access_token\":\"token" + n + "\",\"token_type\":\"Bearer\",\"expires_in\":3600}");
+        });
+        server.createContext("/files", exchange -> {
+            Upload upload = new Upload();
+            upload.method = exchange.getRequestMethod();
+            upload.authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            upload.transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+            upload.contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            upload.content = readContent(exchange);
+            uploads.add(upload);
+
+            respond(exchange, uploadStatus, (uploadStatus == 401) ? "{\"error\":\"invalid_token\"}" : "{\"id\":1}");
+        });
+        server.start();
+
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testStreamedBodies() throws Exception {
+        System.out.println("testStreamedBodies");
+
+        AccessToken token = new AccessToken(3600, "Bearer", null, "abc");
+        InputStream stream = new ByteArrayInputStream("streamed".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("{\"id\":1}", token.postResource(baseUrl + "/files", ResourceBody.of(stream, "text/plain")));
+        token.patchResource(baseUrl + "/files", ResourceBody.of(out -> {
+            for (int i = 0; i < 3; i++) {
+                out.write(("part" + i).getBytes(StandardCharsets.UTF_8));
+            }
+        }, "text/plain"));
+
+        assertEquals(2, uploads.size());
+        for (Upload upload : uploads) {
+            assertEquals("Bearer abc", upload.authorization);
+            assertEquals("chunked", upload.transferEncoding);
+        }
+        assertEquals("POST", uploads.get(0).method);
+        assertEquals("streamed", uploads.get(0).content);
+        assertEquals("PATCH", uploads.get(1).method);
+        assertEquals("part0part1part2", uploads.get(1).content);
+    }
+
+    @Test
+    public void testFileBody() throws Exception {
+        System.out.println("testFileBody");
+
+        AccessToken token = new AccessToken(3600, "Bearer", null, "abc");
+        Path file = Files.createTempFile("upload", ".txt");
+
+        try {
+            Files.write(file, "file content".getBytes(StandardCharsets.UTF_8));
+
+            ResourceBody body = ResourceBody.of(file, "text/plain");
+            assertTrue(body.isRepeatable());
+            assertFalse(body.isSent());
+
+            token.putResource(baseUrl + "/files", body);
+            token.putResource(baseUrl + "/files", ResourceBody.of(file, "text/plain").chunked());
+
+            assertTrue(body.isSent());
+            assertEquals("PUT", uploads.get(0).method);
+            assertEquals("12", uploads.get(0).contentLength);
+            assertNull(uploads.get(0).transferEncoding);
+            assertEquals("file content", uploads.get(0).content);
+            assertEquals("chunked", uploads.get(1).transferEncoding);
+            assertEquals("file content", uploads.get(1).content);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testNoReplayAfterBodySent() throws Exception {
+        System.out.println("testNoReplayAfterBodySent");
+
+        OAuth2Client client = OAuth2Client.withClientCredentialsGrant(clientId, clientSecret, baseUrl + "/token");
+        uploadStatus = 401;
+
+        ResourceBody body = ResourceBody.of(new ByteArrayInputStream(new byte[1024]), "application/octet-stream");
+
+        try {
+            client.postResource(baseUrl + "/files", body);
+            fail("The upload was accepted");
+        } catch (UnauthorizedClientException e) {
+            assertTrue(body.isSent());
+        }
+
+        assertEquals(1, uploads.size());
+        assertEquals(1024, uploads.get(0).content.length());
+        assertEquals(1, tokenRequests.get());
+        assertEquals(0, client.getResourceExecutor().getReplayCount());
+
+        client.close();
+    }
+
+    @Test
+    public void testDeleteReplayed() throws Exception {
+        System.out.println("testDeleteReplayed");
+
+        OAuth2Client client = OAuth2Client.withClientCredentialsGrant(clientId, clientSecret, baseUrl + "/token");
+        client.getAccessToken();
+        uploadStatus = 401;
+
+        try {
+            client.deleteResource(baseUrl + "/files");
+            fail("The request was accepted");
+        } catch (UnauthorizedClientException e) {
+        }
+
+        // without a body the request is replayed once, with a new token
+        assertEquals(Arrays.asList("DELETE", "DELETE"), Arrays.asList(uploads.get(0).method, uploads.get(1).method));
+        assertEquals("Bearer token1", uploads.get(0).authorization);
+        assertEquals("Bearer token2", uploads.get(1).authorization);
+        assertEquals(1, client.getResourceExecutor().getReplayCount());
+
+        client.close();
+    }
+
+    private static String readContent(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+
+        try (InputStream in = exchange.getRequestBody()) {
+            while ((n = in.read(buffer)) != -1) {
+                content.write(buffer, 0, n);
+            }
+        }
+        return new String(content.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int code, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.mayconbordin.oauth2.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class ResourceCacheTest extends OAuth2BaseTest {
+    private static final String PROFILE = "{\"name\":\"oauth_user\",\"email\":\"user@example.com\"}";
+
+    private HttpServer server;
+    private HttpTransport transport;
+    private String baseUrl;
+    private final List<String> conditions = new CopyOnWriteArrayList<>();
+    private final List<String> authorizations = new CopyOnWriteArrayList<>();
+    private volatile String cacheControl = "max-age=60";
+    private volatile String vary;
+    private volatile boolean failing;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/profile", exchange -> {
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            conditions.add(String.valueOf(ifNoneMatch));
+            authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            exchange.getResponseHeaders().add("Cache-Control", cacheControl);
+            if (vary != null) {
+                exchange.getResponseHeaders().add("Vary", vary);
+            }
+
+            if (failing) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            } else if ("\"v1\"".equals(ifNoneMatch)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+            } else {
+                respond(exchange, PROFILE);
+            }
+        });
+        server.createContext("/config", exchange -> {
+            String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+            conditions.add(String.valueOf(ifModifiedSince));
+
+            exchange.getResponseHeaders().add("Last-Modified", "Sun, 06 Nov 1994 08:49:37 GMT");
+
+            if (ifModifiedSince != null) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+            } else {
+                respond(exchange, "{\"theme\":\"dark\"}");
+            }
+        });
+        server.start();
+
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+        transport = new HttpTransport(new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .resourceCache(1024 * 1024)
+                .build());
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testFreshAndRevalidated() throws Exception {
+        System.out.println("testFreshAndRevalidated");
+
+        AccessToken token = token("abc");
+        ResourceCache cache = transport.getResourceCache();
+
+        assertEquals(PROFILE, token.getResource(baseUrl + "/profile"));
+        assertEquals(PROFILE, token.getResource(baseUrl + "/profile"));
+        assertEquals(1, conditions.size());
+        assertEquals(1, cache.getHitCount());
+
+        // stale responses are revalidated and served again on a 304
+        cacheControl = "no-cache";
+        cache.invalidateAll();
+        token.getResource(baseUrl + "/profile");
+
+        assertEquals(PROFILE, token.getResource(baseUrl + "/profile"));
+        assertEquals(PROFILE, token.getResource(baseUrl + "/profile"));
+        assertEquals("[null, null, \"v1\", \"v1\"]", conditions.toString());
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getRevalidationCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0.6, cache.getHitRatio(), 0.001);
+        assertEquals(3 * PROFILE.length(), cache.getBytesSaved());
+    }
+
+    @Test
+    public void testLastModified() throws Exception {
+        System.out.println("testLastModified");
+
+        AccessToken token = token("abc");
+
+        assertEquals("{\"theme\":\"dark\"}", token.getResource(baseUrl + "/config"));
+        assertEquals("{\"theme\":\"dark\"}", token.getResource(baseUrl + "/config"));
+        assertEquals("[null, Sun, 06 Nov 1994 08:49:37 GMT]", conditions.toString());
+        assertEquals(1, transport.getResourceCache().getRevalidationCount());
+    }
+
+    @Test
+    public void testNoStore() throws Exception {
+        System.out.println("testNoStore");
+
+        cacheControl = "private, no-store";
+        AccessToken token = token("abc");
+
+        token.getResource(baseUrl + "/profile");
+        token.getResource(baseUrl + "/profile");
+
+        assertEquals("[null, null]", conditions.toString());
+        assertEquals(0, transport.getResourceCache().size());
+    }
+
+    @Test
+    public void testVaryNotStored() throws Exception {
+        System.out.println("testVaryNotStored");
+
+        vary = "Accept-Language";
+        AccessToken token = token("abc");
+
+        token.getResource(baseUrl + "/profile");
+        token.getResource(baseUrl + "/profile");
+
+        assertEquals("[null, null]", conditions.toString());
+        assertEquals(0, transport.getResourceCache().size());
+    }
+
+    @Test
+    public void testMustRevalidate() throws Exception {
+        System.out.println("testMustRevalidate");
+
+        cacheControl = "max-age=0, must-revalidate";
+        AccessToken token = token("abc");
+
+        assertEquals(PROFILE, token.getResource(baseUrl + "/profile"));
+
+        // a stale response is not served when the server can't revalidate it
+        failing = true;
+        try {
+            token.getResource(baseUrl + "/profile");
+            fail("A stale response was served without being revalidated");
+        } catch (OAuth2Exception e) {
+            assertEquals(0, transport.getResourceCache().getRevalidationCount());
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        System.out.println("testAsync");
+
+        AccessToken token = token("abc");
+        ResourceCache cache = transport.getResourceCache();
+
+        assertEquals(PROFILE, token.getResourceAsync(baseUrl + "/profile").get());
+        assertEquals(PROFILE, token.getResourceAsync(baseUrl + "/profile").get());
+        assertEquals(1, cache.getHitCount());
+
+        cacheControl = "no-cache";
+        cache.invalidateAll();
+        token.getResourceAsync(baseUrl + "/profile").get();
+
+        assertEquals(PROFILE, token.getResourceAsync(baseUrl + "/profile").get());
+        assertEquals("[null, null, \"v1\"]", conditions.toString());
+        assertEquals(1, cache.getRevalidationCount());
+    }
+
+    @Test
+    public void testSeparatedBySubject() throws Exception {
+        System.out.println("testSeparatedBySubject");
+
+        token("abc").getResource(baseUrl + "/profile");
+        token("def").getResource(baseUrl + "/profile");
+
+        // tokens of the same user share the cached responses
+        token(jwt("user1", "1")).getResource(baseUrl + "/profile");
+        token(jwt("user1", "2")).getResource(baseUrl + "/profile");
+        token(jwt("user2", "1")).getResource(baseUrl + "/profile");
+
+        assertEquals(4, authorizations.size());
+        assertEquals("Bearer " + jwt("user2", "1"), authorizations.get(3));
+        assertEquals(1, transport.getResourceCache().getHitCount());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        System.out.println("testBounded");
+
+        transport.close();
+        transport = new HttpTransport(new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .resourceCache(500)
+                .build());
+
+        for (int i = 0; i < 20; i++) {
+            token("token" + i).getResource(baseUrl + "/profile");
+        }
+
+        assertTrue(transport.getResourceCache().size() < 20);
+    }
+
+    private AccessToken token(String value) {
+        return new AccessToken(3600, "Bearer", null, value).withTransport(transport);
+    }
+
+    private static String jwt(String subject, String id) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(("{\"iss\":\"http://localhost\",\"sub\":\"" + subject + "\",\"jti\":\"" + id + "\"}")
+                        .getBytes(StandardCharsets.UTF_8)) + ".";
+    }
+
+    private static void respond(HttpExchange exchange, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class TokenEndpointLimiterTest extends OAuth2BaseTest {
+    private CloseableHttpClient httpClient;
+    private HttpTransport transport;
+    private volatile String retryAfter;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        OAuth2Utils.clearTokenEndpointLimiters();
+        retryAfter = null;
+
+        // answers token requests with 429 Too Many Requests while retryAfter is set
+        httpClient = mock(CloseableHttpClient.class);
+        when(httpClient.execute(any(HttpUriRequest.class))).then(invocation -> {
+            requests.incrementAndGet();
+
+            if (retryAfter == null) {
+                return executeAnswer.answer(invocation);
+            }
+
+            CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+            when(response.getStatusLine()).thenReturn(createStatusLine(429));
+            when(response.getEntity()).thenReturn(new StringEntity("Too Many Requests"));
+            when(response.getFirstHeader(HttpHeaders.RETRY_AFTER)).thenReturn(new BasicHeader(HttpHeaders.RETRY_AFTER, retryAfter));
+            return response;
+        });
+        transport = new HttpTransport(httpClient, null);
+    }
+
+    @After
+    public void tearDown() {
+        OAuth2Utils.clearTokenEndpointLimiters();
+    }
+
+    @Test
+    public void testBackOffAfterTooManyRequests() throws Exception {
+        System.out.println("testBackOffAfterTooManyRequests");
+
+        HistogramMetrics metrics = new HistogramMetrics();
+        OAuth2Client client = OAuth2Client.withConfig(new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .metrics(metrics)
+                .transport(transport)
+                .build());
+
+        retryAfter = "2";
+
+        try {
+            client.getAccessToken();
+            fail("Expected RateLimitedException");
+        } catch (RateLimitedException e) {
+            assertEquals(429, e.getHttpCode());
+            assertEquals(2000, e.getRetryAfter());
+        }
+
+        // backing off, the server is not called again
+        retryAfter = null;
+
+        try {
+            client.getAccessToken();
+            fail("Expected RateLimitedException");
+        } catch (RateLimitedException e) {
+            assertTrue(e.getRetryAfter() > 0 && e.getRetryAfter() <= 2000);
+        }
+
+        assertEquals(1, requests.get());
+
+        TokenEndpointLimiter limiter = OAuth2Utils.getTokenEndpointLimiter(urlAccessToken);
+        assertEquals(1, limiter.getThrottledCount());
+        assertEquals(1, limiter.getRejectedCount());
+        assertTrue(limiter.getBackoffRemaining() > 0);
+        assertEquals(2, metrics.getTokenThrottles());
+        assertEquals(1, metrics.getTokenStatusCount(429));
+
+        client.close();
+    }
+
+    @Test
+    public void testResourceRateLimited() throws Exception {
+        System.out.println("testResourceRateLimited");
+
+        OAuth2Client client = withClientCredentialsGrant(clientId, clientSecret, urlAccessToken, transport);
+        client.getAccessToken();
+
+        retryAfter = "3";
+
+        try {
+            client.getResource(urlUserInfo);
+            fail("Expected RateLimitedException");
+        } catch (RateLimitedException e) {
+            assertEquals(429, e.getHttpCode());
+            assertEquals(3000, e.getRetryAfter());
+            assertEquals("The server is rate limiting the requests.", e.getMessage());
+        }
+
+        // a throttled resource server does not make the token endpoint back off
+        assertEquals(0, OAuth2Utils.getTokenEndpointLimiter(urlAccessToken).getThrottledCount());
+
+        client.close();
+    }
+
+    @Test
+    public void testCachedTokenServedWhileBackingOff() throws Exception {
+        System.out.println("testCachedTokenServedWhileBackingOff");
+
+        accessTokenRefreshResponse = new HashMap<>(accessTokenRefreshResponse);
+        accessTokenRefreshResponse.put("expires_in", 4);
+
+        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_PASSWORD)
+                .credentials(username, password)
+                .build();
+
+        TokenRegistry registry = new TokenRegistry(TokenRegistry.DEFAULT_MAXIMUM_SIZE, TokenRegistry.DEFAULT_IDLE_TIME, transport);
+        AccessToken token = registry.getAccessToken(config);
+
+        // past half of its lifetime the token is replaced, but the server is throttling
+        retryAfter = "60";
+        Thread.sleep(2100);
+
+        assertSame(token, registry.getAccessToken(config));
+        assertSame(token, registry.getAccessToken(config));
+
+        TokenEndpointLimiter limiter = OAuth2Utils.getTokenEndpointLimiter(urlAccessToken);
+        assertEquals(1, limiter.getThrottledCount());
+        assertEquals(1, limiter.getRejectedCount());
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testRateAdaptation() throws Exception {
+        System.out.println("testRateAdaptation");
+
+        TokenEndpointLimiter limiter = new TokenEndpointLimiter(urlAccessToken, 10, 500);
+
+        // a burst of one second of requests, then one every 100ms
+        for (int i=0; i<10; i++) {
+            assertEquals(0, limiter.reserve());
+        }
+        long wait = limiter.reserve();
+        assertTrue(wait > 0 && wait <= 100);
+        assertEquals(1, limiter.getDelayedCount());
+
+        // without Retry-After the backoff is exponential
+        assertEquals(TokenEndpointLimiter.MIN_BACKOFF, limiter.onThrottled(0));
+        assertEquals(5, limiter.getRate(), 0.001);
+        assertEquals(2 * TokenEndpointLimiter.MIN_BACKOFF, limiter.onThrottled(0));
+        assertEquals(2.5, limiter.getRate(), 0.001);
+
+        try {
+            limiter.reserve();
+            fail("Expected RateLimitedException");
+        } catch (RateLimitedException e) {
+            assertTrue(e.getRetryAfter() > TokenEndpointLimiter.MIN_BACKOFF);
+        }
+
+        limiter.onSuccess();
+        assertEquals(2.75, limiter.getRate(), 0.001);
+
+        for (int i=0; i<100; i++) {
+            limiter.onSuccess();
+        }
+        assertEquals(10, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void testRetryAfterHeader() throws Exception {
+        System.out.println("testRetryAfterHeader");
+
+        CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+        assertEquals(0, OAuth2Utils.getRetryAfter(response));
+
+        when(response.getFirstHeader(HttpHeaders.RETRY_AFTER)).thenReturn(new BasicHeader(HttpHeaders.RETRY_AFTER, "120"));
+        assertEquals(120000, OAuth2Utils.getRetryAfter(response));
+
+        String date = DateUtils.formatDate(new Date(System.currentTimeMillis() + 30000));
+        when(response.getFirstHeader(HttpHeaders.RETRY_AFTER)).thenReturn(new BasicHeader(HttpHeaders.RETRY_AFTER, date));
+        assertEquals(30000, OAuth2Utils.getRetryAfter(response), 2000);
+
+        when(response.getFirstHeader(HttpHeaders.RETRY_AFTER)).thenReturn(new BasicHeader(HttpHeaders.RETRY_AFTER, "soon"));
+        assertEquals(0, OAuth2Utils.getRetryAfter(response));
+    }
+}
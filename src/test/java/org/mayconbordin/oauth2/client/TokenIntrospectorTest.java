@@ -0,0 +1,175 @@
+package org.mayconbordin.oauth2.client;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class TokenIntrospectorTest extends OAuth2BaseTest {
+    private final String urlIntrospection = "http://localhost/api/oauth/introspect";
+    private final String activeToken = "mF_9.B5f-4.1JqM";
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile CountDownLatch release;
+    private HttpTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        transport = new HttpTransport(mockHttpClient(), mockHttpAsyncClient());
+    }
+
+    /**
+     * Introspection endpoint that only accepts the client credentials in the form.
+     */
+    @Override
+    protected CloseableHttpResponse handleRequestWithEntity(HttpEntityEnclosingRequestBase request) throws Exception {
+        if (!request.getURI().toString().equals(urlIntrospection)) {
+            return super.handleRequestWithEntity(request);
+        }
+
+        requests.incrementAndGet();
+        if (release != null) {
+            release.await(5, TimeUnit.SECONDS);
+        }
+
+        Map<String, Object> data = ContentHandler.handleEntity(request.getEntity());
+        CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+
+        if (!data.containsKey(OAuth2Constants.CLIENT_ID) || !checkClientCredentials(data)) {
+            when(response.getStatusLine()).thenReturn(createStatusLine(401));
+            when(response.getEntity()).thenReturn(createHttpEntity(invalidClientResponse));
+            return response;
+        }
+
+        Map<String, Object> result = activeToken.equals(data.get(OAuth2Constants.TOKEN))
+                ? new ImmutableMap.Builder<String, Object>()
+                    .put("active", true)
+                    .put("scope", "read write")
+                    .put("client_id", clientId)
+                    .put("sub", "Z5O3upPC88QrAjx00dis")
+                    .put("exp", System.currentTimeMillis() / 1000 + 3600)
+                    .build()
+                : ImmutableMap.<String, Object>of("active", false);
+
+        when(response.getStatusLine()).thenReturn(createStatusLine(200));
+        when(response.getEntity()).thenReturn(createHttpEntity(result));
+        return response;
+    }
+
+    @Test
+    public void testActiveResultCached() throws Exception {
+        System.out.println("testActiveResultCached");
+
+        OAuth2Client client = OAuth2Client.withConfig(config().build());
+        TokenIntrospection result = client.introspect(activeToken);
+
+        assertTrue(result.isActive());
+        assertEquals("read write", result.getScope());
+        assertEquals(clientId, result.getClientId());
+        assertEquals("Z5O3upPC88QrAjx00dis", result.getSubject());
+        assertTrue(result.getExpiration() > System.currentTimeMillis() / 1000);
+
+        // basic authentication was rejected, then the form was accepted
+        assertEquals(2, requests.get());
+
+        assertSame(result, client.introspect(activeToken));
+        assertSame(result, client.introspectAsync(activeToken).get());
+        assertEquals(2, requests.get());
+
+        // the accepted scheme is tried first from now on
+        assertFalse(client.introspect("another").isActive());
+        assertEquals(3, requests.get());
+
+        TokenIntrospector introspector = client.getTokenIntrospector();
+        assertEquals(2, introspector.getHitCount());
+        assertEquals(2, introspector.getMissCount());
+        assertEquals(2, introspector.getRequestCount());
+
+        client.close();
+    }
+
+    @Test
+    public void testInactiveResultCachedShortly() throws Exception {
+        System.out.println("testInactiveResultCachedShortly");
+
+        OAuth2Client client = OAuth2Client.withConfig(config()
+                .authScheme(ClientAuthScheme.BODY)
+                .introspectionCache(100, 0, 200)
+                .build());
+
+        assertFalse(client.introspectAsync("revoked").get().isActive());
+        assertFalse(client.introspect("revoked").isActive());
+        assertEquals(1, requests.get());
+        assertEquals(1, client.getTokenIntrospector().getInactiveHitCount());
+
+        Thread.sleep(250);
+
+        assertFalse(client.introspect("revoked").isActive());
+        assertEquals(2, requests.get());
+
+        client.close();
+    }
+
+    @Test
+    public void testConcurrentIntrospectionsCoalesced() throws Exception {
+        System.out.println("testConcurrentIntrospectionsCoalesced");
+
+        OAuth2Client client = OAuth2Client.withConfig(config()
+                .authScheme(ClientAuthScheme.BODY)
+                .build());
+
+        release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<TokenIntrospection>> results = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(() -> client.introspect(activeToken)));
+        }
+        CompletableFuture<TokenIntrospection> async = client.introspectAsync(activeToken);
+
+        Thread.sleep(100);
+        release.countDown();
+
+        for (Future<TokenIntrospection> result : results) {
+            assertTrue(result.get().isActive());
+        }
+        assertTrue(async.get().isActive());
+        assertEquals(1, requests.get());
+
+        executor.shutdown();
+        client.close();
+    }
+
+    @Test(expected = OAuth2Exception.class)
+    public void testNoIntrospectionUrl() throws Exception {
+        System.out.println("testNoIntrospectionUrl");
+
+        withClientCredentialsGrant(clientId, clientSecret, urlAccessToken, transport).introspect(activeToken);
+    }
+
+    private OAuth2Config.Builder config() {
+        return new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .introspectionUrl(urlIntrospection)
+                .transport(transport);
+    }
+}
@@ -0,0 +1,211 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class TokenManagerTest extends OAuth2BaseTest {
+    private CloseableHttpClient httpClient;
+    private HttpTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        httpClient = mockHttpClient();
+        transport = new HttpTransport(httpClient, mockHttpAsyncClient());
+    }
+
+    @Test
+    public void testGetAccessTokenFromMemory() throws Exception {
+        System.out.println("testGetAccessTokenFromMemory");
+
+        OAuth2Client client = withClientCredentialsGrant(clientId, clientSecret, urlAccessToken, transport);
+
+        AccessToken token = client.getAccessToken();
+
+        assertSame(token, client.getAccessToken());
+        assertSame(token, client.getAccessToken());
+        verify(httpClient, times(1)).execute(any(HttpUriRequest.class));
+
+        client.close();
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        System.out.println("testInvalidate");
+
+        OAuth2Client client = withClientCredentialsGrant(clientId, clientSecret, urlAccessToken, transport);
+
+        AccessToken token = client.getAccessToken();
+        client.getTokenManager().invalidate();
+        AccessToken newToken = client.getAccessToken();
+
+        assertNotSame(token, newToken);
+        verify(httpClient, times(2)).execute(any(HttpUriRequest.class));
+
+        client.close();
+    }
+
+    @Test
+    public void testTokenWithoutExpiresIn() throws Exception {
+        System.out.println("testTokenWithoutExpiresIn");
+
+        accessTokenResponse = new HashMap<>(accessTokenResponse);
+        accessTokenResponse.remove("expires_in");
+
+        OAuth2Client client = withClientCredentialsGrant(clientId, clientSecret, urlAccessToken, transport);
+
+        AccessToken token = client.getAccessToken();
+
+        // a missing lifetime is unknown, not zero: the token is kept until it is rejected
+        assertEquals(0, token.getExpiresIn());
+        assertFalse(token.hasExpiration());
+        assertFalse(token.isExpired());
+        assertSame(token, client.getAccessToken());
+        verify(httpClient, times(1)).execute(any(HttpUriRequest.class));
+
+        client.close();
+    }
+
+    @Test
+    public void testProactiveRefresh() throws Exception {
+        System.out.println("testProactiveRefresh");
+
+        accessTokenRefreshResponse = new HashMap<>(accessTokenRefreshResponse);
+        accessTokenRefreshResponse.put("expires_in", 2);
+
+        OAuth2Client client = withPasswordGrant(username, password,
+                clientId, clientSecret, urlAccessToken, transport);
+
+        AccessToken token = client.getAccessToken();
+        Thread.sleep(1500);
+        AccessToken refreshed = client.getTokenManager().peek();
+
+        assertNotSame(token, refreshed);
+        assertEquals(accessTokenRefreshResponse.get(OAuth2Constants.REFRESH_TOKEN), refreshed.getRefreshToken());
+        assertFalse(refreshed.isExpired());
+
+        client.close();
+    }
+
+    @Test
+    public void testRefreshDoesNotHoldLock() throws Exception {
+        System.out.println("testRefreshDoesNotHoldLock");
+
+        accessTokenRefreshResponse = new HashMap<>(accessTokenRefreshResponse);
+        accessTokenRefreshResponse.put("expires_in", 2);
+
+        OAuth2Client client = withPasswordGrant(username, password,
+                clientId, clientSecret, urlAccessToken, transport);
+        CountDownLatch fetching = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        TokenManager manager = new TokenManager(client) {
+            @Override
+            protected CompletableFuture<AccessToken> fetchAsync(AccessToken current) {
+                fetching.countDown();
+                return CompletableFuture.runAsync(() -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }).thenCompose(v -> super.fetchAsync(current));
+            }
+        };
+
+        manager.getAccessToken();
+        assertTrue(fetching.await(5, TimeUnit.SECONDS));
+
+        // the token can be discarded while the refresh waits on the token endpoint
+        CompletableFuture.runAsync(manager::invalidate).get(1, TimeUnit.SECONDS);
+        release.countDown();
+
+        Thread.sleep(200);
+        assertNull("A refresh of an invalidated token was kept", manager.peek());
+
+        manager.close();
+        client.close();
+    }
+
+    @Test
+    public void testSlowRefreshDoesNotDelayOtherClients() throws Exception {
+        System.out.println("testSlowRefreshDoesNotDelayOtherClients");
+
+        accessTokenRefreshResponse = new HashMap<>(accessTokenRefreshResponse);
+        accessTokenRefreshResponse.put("expires_in", 2);
+
+        // the first token is served, the refreshes never answer
+        CountDownLatch release = new CountDownLatch(1);
+        CloseableHttpClient slowHttpClient = mock(CloseableHttpClient.class);
+        when(slowHttpClient.execute(any(HttpUriRequest.class))).then(executeAnswer).then(invocation -> {
+            release.await();
+            return executeAnswer.answer(invocation);
+        });
+        CloseableHttpAsyncClient slowHttpAsyncClient = mock(CloseableHttpAsyncClient.class);
+        when(slowHttpAsyncClient.isRunning()).thenReturn(true);
+
+        OAuth2Client slow = OAuth2Client.withConfig(new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_PASSWORD)
+                .credentials(username, password)
+                .scope("slow")
+                .transport(new HttpTransport(slowHttpClient, slowHttpAsyncClient))
+                .build());
+        OAuth2Client client = withPasswordGrant(username, password,
+                clientId, clientSecret, urlAccessToken, transport);
+
+        // the refresh of the slow client is scheduled first
+        slow.getAccessToken();
+        AccessToken token = client.getAccessToken();
+        Thread.sleep(1500);
+
+        assertNotSame(token, client.getTokenManager().peek());
+
+        release.countDown();
+        slow.close();
+        client.close();
+    }
+
+    @Test
+    public void testUnreachableClientStopsRefreshing() throws Exception {
+        System.out.println("testUnreachableClientStopsRefreshing");
+
+        accessTokenRefreshResponse = new HashMap<>(accessTokenRefreshResponse);
+        accessTokenRefreshResponse.put("expires_in", 2);
+
+        OAuth2Client client = withPasswordGrant(username, password,
+                clientId, clientSecret, urlAccessToken, transport);
+        client.getAccessToken();
+
+        // dropped without being closed, the scheduled refresh must not keep it reachable
+        WeakReference<OAuth2Client> ref = new WeakReference<>(client);
+        client = null;
+
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assumeTrue("The client was not collected", ref.get() == null);
+
+        Thread.sleep(1500);
+        verify(httpClient, times(1)).execute(any(HttpUriRequest.class));
+    }
+}
@@ -0,0 +1,231 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class TokenRegistryTest extends OAuth2BaseTest {
+    private CloseableHttpClient httpClient;
+    private HttpTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        httpClient = mockHttpClient();
+        transport = new HttpTransport(httpClient, null);
+    }
+
+    @Test
+    public void testGetAccessTokenPerConfig() throws Exception {
+        System.out.println("testGetAccessTokenPerConfig");
+
+        TokenRegistry registry = registry();
+
+        AccessToken tenant1 = registry.getAccessToken(tenant("tenant1"));
+        AccessToken tenant2 = registry.getAccessToken(tenant("tenant2"));
+
+        assertNotSame(tenant1, tenant2);
+        assertSame(tenant1, registry.getAccessToken(tenant("tenant1")));
+        assertSame(tenant2, registry.getAccessToken(tenant("tenant2")));
+        verify(httpClient, times(2)).execute(any(HttpUriRequest.class));
+
+        assertEquals(2, registry.size());
+        assertEquals(2, registry.getStats().hitCount());
+        assertEquals(2, registry.getStats().missCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        System.out.println("testLeastRecentlyUsedIsEvicted");
+
+        TokenRegistry registry = new TokenRegistry(2, TokenRegistry.DEFAULT_IDLE_TIME, transport);
+
+        registry.getAccessToken(tenant("tenant1"));
+        registry.getAccessToken(tenant("tenant2"));
+        registry.getAccessToken(tenant("tenant1"));
+        registry.getAccessToken(tenant("tenant3"));
+
+        assertEquals(2, registry.size());
+        assertEquals(1, registry.getStats().evictionCount());
+        assertNotNull(registry.peek(tenant("tenant1")));
+        assertNull(registry.peek(tenant("tenant2")));
+        assertNotNull(registry.peek(tenant("tenant3")));
+    }
+
+    @Test
+    public void testExpiringTokenIsRefreshed() throws Exception {
+        System.out.println("testExpiringTokenIsRefreshed");
+
+        accessTokenRefreshResponse = new HashMap<>(accessTokenRefreshResponse);
+        accessTokenRefreshResponse.put("expires_in", 2);
+
+        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_PASSWORD)
+                .credentials(username, password)
+                .build();
+
+        TokenRegistry registry = registry();
+
+        AccessToken token = registry.getAccessToken(config);
+        Thread.sleep(1100);
+        AccessToken refreshed = registry.getAccessToken(config);
+
+        assertNotSame(token, refreshed);
+        assertEquals(token.getRefreshToken(), refreshed.getRefreshToken());
+        assertEquals(1, registry.getExpiredCount());
+
+        ArgumentCaptor<HttpUriRequest> requests = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(httpClient, times(2)).execute(requests.capture());
+        
+        Map<String, Object> data = ContentHandler.handleEntity(
+                ((HttpEntityEnclosingRequest) requests.getAllValues().get(1)).getEntity());
+        assertEquals(OAuth2Constants.GRANT_REFRESH_TOKEN, data.get(OAuth2Constants.GRANT_TYPE));
+    }
+
+    @Test
+    public void testExpiringJwtIsRefreshed() throws Exception {
+        System.out.println("testExpiringJwtIsRefreshed");
+
+        // the lifetime is only known from the exp claim
+        long now = System.currentTimeMillis() / 1000;
+        accessTokenRefreshResponse = new HashMap<>(accessTokenRefreshResponse);
+        accessTokenRefreshResponse.remove("expires_in");
+        accessTokenRefreshResponse.put("access_token", createJwt("{\"sub\":\"oauth_user\",\"exp\":" + (now + 4) + "}"));
+
+        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_PASSWORD)
+                .credentials(username, password)
+                .build();
+
+        TokenRegistry registry = registry();
+
+        AccessToken token = registry.getAccessToken(config);
+        assertEquals(0, token.getExpiresIn());
+
+        // past half of its lifetime, before it expires
+        Thread.sleep(2100);
+        assertFalse(token.isExpired());
+        assertNotSame(token, registry.getAccessToken(config));
+        assertEquals(1, registry.getExpiredCount());
+    }
+
+    @Test
+    public void testEqualScopesShareToken() throws Exception {
+        System.out.println("testEqualScopesShareToken");
+
+        TokenRegistry registry = registry();
+
+        AccessToken token = registry.getAccessToken(tenant("read,write"));
+
+        assertEquals(tenant("read,write"), tenant(" write read "));
+        assertSame(token, registry.getAccessToken(tenant(" write read ")));
+        verify(httpClient, times(1)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void testTokenWithMoreScopesShared() throws Exception {
+        System.out.println("testTokenWithMoreScopesShared");
+
+        TokenRegistry registry = registry();
+
+        // the response has no scope, so the requested ones were granted
+        AccessToken token = registry.getAccessToken(tenant("read write"));
+
+        assertSame(token, registry.getAccessToken(tenant("read")));
+        assertSame(token, registry.getAccessToken(tenant("write,read")));
+        assertEquals(1, registry.getSharedCount());
+        verify(httpClient, times(1)).execute(any(HttpUriRequest.class));
+
+        assertNotSame(token, registry.getAccessToken(tenant("read delete")));
+        assertNotSame(token, registry.getAccessToken(tenant(null)));
+        verify(httpClient, times(3)).execute(any(HttpUriRequest.class));
+
+        // without its token, the others are not given the scopes
+        registry.invalidate(tenant("read write"));
+        registry.invalidate(tenant("read delete"));
+        registry.getAccessToken(tenant("write"));
+        verify(httpClient, times(4)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void testGrantedScopesShared() throws Exception {
+        System.out.println("testGrantedScopesShared");
+
+        accessTokenResponse = new HashMap<>(accessTokenResponse);
+        accessTokenResponse.put("scope", "read");
+
+        TokenRegistry registry = registry();
+        AccessToken token = registry.getAccessToken(tenant("read write"));
+
+        assertEquals("read", token.getScope());
+        assertSame(token, registry.getAccessToken(tenant("read")));
+        assertNotSame(token, registry.getAccessToken(tenant("write")));
+
+        TokenRegistry unshared = new TokenRegistry(100, TokenRegistry.DEFAULT_IDLE_TIME, transport, false);
+        unshared.getAccessToken(tenant("read write"));
+        unshared.getAccessToken(tenant("read"));
+
+        assertEquals(0, unshared.getSharedCount());
+        verify(httpClient, times(4)).execute(any(HttpUriRequest.class));
+    }
+
+    @Test
+    public void testTokenNotGivenToOtherCredentials() throws Exception {
+        System.out.println("testTokenNotGivenToOtherCredentials");
+
+        TokenRegistry registry = new TokenRegistry(100, TokenRegistry.DEFAULT_IDLE_TIME, transport, false);
+        registry.getAccessToken(tenant("tenant1"));
+
+        try {
+            registry.getAccessToken(new OAuth2Config.Builder(clientId, "wrong_secret", urlAccessToken)
+                    .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                    .scope("tenant1")
+                    .build());
+            fail("Got the token of a client with another secret");
+        } catch (OAuth2Exception e) {
+            assertEquals(0, registry.getStats().hitCount());
+        }
+    }
+
+    @Test
+    public void testTokenNotSharedWithOtherCredentials() throws Exception {
+        System.out.println("testTokenNotSharedWithOtherCredentials");
+
+        TokenRegistry registry = registry();
+        registry.getAccessToken(tenant("read write"));
+
+        try {
+            registry.getAccessToken(new OAuth2Config.Builder(clientId, "wrong_secret", urlAccessToken)
+                    .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                    .scope("read")
+                    .build());
+            fail("Got the token of a client with another secret");
+        } catch (OAuth2Exception e) {
+            assertEquals(0, registry.getSharedCount());
+        }
+    }
+
+    private TokenRegistry registry() {
+        return new TokenRegistry(TokenRegistry.DEFAULT_MAXIMUM_SIZE, TokenRegistry.DEFAULT_IDLE_TIME, transport);
+    }
+
+    private OAuth2Config tenant(String scope) {
+        return new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .scope(scope)
+                .build();
+    }
+}
@@ -0,0 +1,97 @@
+package org.mayconbordin.oauth2.client;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Maycon Bordin <mayconbordin@gmail.com>
+ */
+public class TokenRequestTemplateTest extends OAuth2BaseTest {
+    private final AccessToken token = new AccessToken(3600, "Bearer", "refresh+token/1=", "access_token");
+
+    @Test
+    public void testSameRequestAsBuilder() throws Exception {
+        System.out.println("testSameRequestAsBuilder");
+
+        String[] grantTypes = {OAuth2Constants.GRANT_CLIENT_CREDENTIALS,
+            OAuth2Constants.GRANT_PASSWORD, OAuth2Constants.GRANT_REFRESH_TOKEN};
+
+        for (String grantType : grantTypes) {
+            OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                    .grantType(grantType)
+                    .credentials(username, "p@ss word&")
+                    .scope("read write")
+                    .build();
+
+            // only refreshes are requested with a token
+            AccessToken current = OAuth2Constants.GRANT_REFRESH_TOKEN.equals(grantType) ? token : null;
+
+            for (ClientAuthScheme scheme : ClientAuthScheme.values()) {
+                HttpUriRequest expected = scheme.apply(new OAuth2RequestBuilder(HttpPost.METHOD_NAME, config, current), config).build();
+                HttpUriRequest actual = TokenRequestTemplate.compile(config, scheme).build(current);
+
+                assertEquals(expected.getMethod(), actual.getMethod());
+                assertEquals(expected.getURI(), actual.getURI());
+                assertEquals(headerValue(expected.getFirstHeader(OAuth2Constants.AUTHORIZATION)),
+                        headerValue(actual.getFirstHeader(OAuth2Constants.AUTHORIZATION)));
+
+                HttpEntity expectedEntity = ((HttpEntityEnclosingRequest) expected).getEntity();
+                HttpEntity actualEntity = ((HttpEntityEnclosingRequest) actual).getEntity();
+
+                assertEquals(expectedEntity.getContentType().getValue(), actualEntity.getContentType().getValue());
+                assertEquals(form(expectedEntity), form(actualEntity));
+                assertTrue(actualEntity.isRepeatable());
+            }
+        }
+    }
+
+    @Test
+    public void testTemplateIsReused() throws Exception {
+        System.out.println("testTemplateIsReused");
+
+        OAuth2Config config = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .build();
+        OAuth2Config equalConfig = new OAuth2Config.Builder(clientId, clientSecret, urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .build();
+        OAuth2Config newSecret = new OAuth2Config.Builder(clientId, "new_secret", urlAccessToken)
+                .grantType(OAuth2Constants.GRANT_CLIENT_CREDENTIALS)
+                .build();
+
+        TokenRequestTemplate template = OAuth2Utils.getTokenRequestTemplate(config, ClientAuthScheme.BODY);
+
+        assertSame(template, OAuth2Utils.getTokenRequestTemplate(config, ClientAuthScheme.BODY));
+        assertSame(template, OAuth2Utils.getTokenRequestTemplate(equalConfig, ClientAuthScheme.BODY));
+        assertNotSame(template, OAuth2Utils.getTokenRequestTemplate(config, ClientAuthScheme.BASIC_CLIENT));
+
+        HttpUriRequest request = OAuth2Utils.getTokenRequestTemplate(newSecret, ClientAuthScheme.BODY).build(null);
+        assertTrue(form(((HttpEntityEnclosingRequest) request).getEntity()).contains(
+                OAuth2Constants.CLIENT_SECRET + "=new_secret"));
+    }
+
+    private static String headerValue(Header header) {
+        return (header != null) ? header.getValue() : null;
+    }
+
+    private static Set<String> form(HttpEntity entity) throws IOException {
+        Set<String> pairs = new HashSet<>();
+
+        for (NameValuePair pair : URLEncodedUtils.parse(entity)) {
+            pairs.add(pair.getName() + "=" + pair.getValue());
+        }
+
+        return pairs;
+    }
+}